@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import editortrees.Edit;
+import editortrees.EditTree;
+
+/**
+ * Time per edit for batches of k edits spread over a large tree, applied one
+ * by one with delete and insert and at once with EditTree.applyEdits(), best
+ * of a few runs each. Single edits cost O(log n) each; a batch costs
+ * O(log(n/k)) per edit, so its time per edit falls as k grows.
+ *
+ * Usage: ApplyEditsBenchmark [size in M characters, default 16]
+ *
+ * @author zhang
+ *
+ */
+public class ApplyEditsBenchmark {
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) {
+		int millions = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		Random r = new Random(26);
+		StringBuilder sb = new StringBuilder(millions << 20);
+		for (int i = 0; i < millions << 20; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		String text = sb.toString();
+		sb = null;
+
+		System.out.printf("%d M characters%n", millions);
+		System.out.printf("%8s %14s %14s%n", "edits", "single ns/edit", "batch ns/edit");
+		for (int k = 16; k <= 1 << 18; k *= 8) {
+			// one edit in every stretch of text.length() / k characters
+			List<Edit> edits = new ArrayList<Edit>(k);
+			int stretch = text.length() / k;
+			for (int i = 0; i < k; i++)
+				edits.add(new Edit(i * stretch + r.nextInt(stretch - 2), 2, "xyz"));
+			long single = Long.MAX_VALUE;
+			long batch = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				EditTree tree = new EditTree(text);
+				long begin = System.nanoTime();
+				for (int i = k - 1; i >= 0; i--) {
+					Edit e = edits.get(i);
+					tree.delete(e.getPosition(), e.getDeleteLength());
+					tree.insert(e.getPosition(), e.getText());
+				}
+				single = Math.min(single, System.nanoTime() - begin);
+
+				EditTree other = new EditTree(text);
+				begin = System.nanoTime();
+				other.applyEdits(edits);
+				batch = Math.min(batch, System.nanoTime() - begin);
+				if (tree.length() != other.length() || !tree.get(0, 1000).equals(other.get(0, 1000)))
+					throw new AssertionError();
+			}
+			System.out.printf("%8d %14.0f %14.0f%n", k, (double) single / k, (double) batch / k);
+		}
+	}
+}
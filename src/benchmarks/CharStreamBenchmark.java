@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+import editortrees.EditTree;
+
+/**
+ * Counting the vowels of a large tree with charAt in a loop, which is what
+ * the default CharSequence.chars() did, with EditTree.chars() and with
+ * EditTree.chars().parallel(), best of a few runs each.
+ *
+ * Usage: CharStreamBenchmark [size in M characters, default 32]
+ *
+ * @author zhang
+ *
+ */
+public class CharStreamBenchmark {
+	private static final int RUNS = 5;
+
+	private static final IntPredicate VOWEL = new IntPredicate() {
+		@Override
+		public boolean test(int c) {
+			return c == 'a' || c == 'e' || c == 'i' || c == 'o' || c == 'u';
+		}
+	};
+
+	public static void main(String[] args) {
+		int millions = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		Random r = new Random(46);
+		StringBuilder sb = new StringBuilder(millions << 20);
+		for (int i = 0; i < millions << 20; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		EditTree tree = new EditTree(sb.toString());
+		sb = null;
+		// a few edits, so part of the tree is made of real nodes
+		for (int i = 0; i < 10000; i++)
+			tree.add('e', r.nextInt(tree.length()));
+
+		System.out.printf("%d M characters, %d cores%n", millions, Runtime.getRuntime().availableProcessors());
+		long expected = -1;
+		for (String variant : new String[] { "charAt loop", "chars()", "chars().parallel()" }) {
+			long best = Long.MAX_VALUE;
+			long count = 0;
+			for (int run = 0; run < RUNS; run++) {
+				long start = System.nanoTime();
+				if (variant.equals("charAt loop")) {
+					count = 0;
+					for (int i = 0; i < tree.length(); i++)
+						if (VOWEL.test(tree.charAt(i)))
+							count++;
+				} else if (variant.equals("chars()")) {
+					count = tree.chars().filter(VOWEL).count();
+				} else {
+					count = tree.chars().parallel().filter(VOWEL).count();
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			if (expected != -1 && count != expected)
+				throw new AssertionError();
+			expected = count;
+			System.out.printf("%-20s %8.1f ms%n", variant, best / 1e6);
+		}
+	}
+}
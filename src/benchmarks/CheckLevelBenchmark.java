@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.Random;
+
+import editortrees.CheckLevel;
+import editortrees.EditTree;
+
+/**
+ * Time per single character edit on a small document at each check level.
+ * Before check levels, every edit of a tree under 10000 characters walked
+ * the whole tree, as FULL does now.
+ *
+ * Usage: CheckLevelBenchmark [document size, default 5000]
+ *
+ * @author zhang
+ *
+ */
+public class CheckLevelBenchmark {
+	private static final int EDITS = 200000;
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		StringBuilder sb = new StringBuilder(size);
+		Random r = new Random(50);
+		for (int i = 0; i < size; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		String text = sb.toString();
+		// warm up
+		for (CheckLevel level : CheckLevel.values())
+			time(text, level, 0);
+		for (CheckLevel level : CheckLevel.values()) {
+			long best = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++)
+				best = Math.min(best, time(text, level, run));
+			System.out.printf("%-10s %8.0f ns per edit%n", level, (double) best / EDITS);
+		}
+	}
+
+	/**
+	 * 
+	 * @return nanoseconds for EDITS random edits
+	 */
+	private static long time(String text, CheckLevel level, int seed) {
+		EditTree t = new EditTree(text);
+		t.setCheckLevel(level);
+		Random r = new Random(seed);
+		long start = System.nanoTime();
+		for (int i = 0; i < EDITS; i++) {
+			if (i % 2 == 0)
+				t.add('x', r.nextInt(t.length() + 1));
+			else
+				t.delete(r.nextInt(t.length()));
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import editortrees.ReplicatedText;
+import editortrees.ReplicatedText.Op;
+import editortrees.SimulatedNetwork;
+
+/**
+ * Time a replica takes to apply a burst of 10k remote ops, random single
+ * character inserts and deletes made by another site, on documents of
+ * growing size; it should grow with log n, not n. Then the throughput of a
+ * simulated session of several sites typing at once over a network that
+ * reorders their ops, and whether they converged.
+ *
+ * Usage: CollaborationBenchmark [sites, default 4]
+ *
+ * @author zhang
+ *
+ */
+public class CollaborationBenchmark {
+	private static final int BURST = 10000;
+
+	public static void main(String[] args) {
+		int sites = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		Random r = new Random(44);
+		for (int size = 1000; size <= 1000000; size *= 4) {
+			ReplicatedText local = new ReplicatedText(0);
+			ReplicatedText remote = new ReplicatedText(1);
+			StringBuilder sb = new StringBuilder(size);
+			for (int i = 0; i < size; i++)
+				sb.append((char) ('a' + r.nextInt(26)));
+			remote.apply(local.insert(0, sb.toString()));
+			for (int round = 0; round < 3; round++) {
+				List<Op> burst = new ArrayList<Op>(BURST);
+				for (int i = 0; i < BURST; i++) {
+					int pos = r.nextInt(local.length());
+					burst.addAll(r.nextBoolean() ? local.insert(pos, "x") : local.delete(pos, 1));
+				}
+				long start = System.nanoTime();
+				remote.apply(burst);
+				long nanos = System.nanoTime() - start;
+				if (round == 2)
+					System.out.printf("%8d chars: %6.2f ms per burst of %d ops, %5.0f ns per op%n", size, nanos / 1e6,
+							BURST, (double) nanos / BURST);
+				if (!remote.toString().equals(local.toString()))
+					throw new AssertionError();
+			}
+		}
+
+		SimulatedNetwork net = new SimulatedNetwork(sites, 44);
+		net.insert(0, 0, "start of a shared document\n");
+		net.deliverAll();
+		long start = System.nanoTime();
+		for (int step = 0; step < 200000; step++) {
+			int site = r.nextInt(sites);
+			ReplicatedText replica = net.replica(site);
+			int pos = r.nextInt(replica.length());
+			if (r.nextInt(4) == 0)
+				net.delete(site, pos, 1);
+			else
+				net.insert(site, pos, "typed");
+			for (int i = r.nextInt(2 * sites); i > 0; i--)
+				net.deliverOne();
+		}
+		net.deliverAll();
+		long nanos = System.nanoTime() - start;
+		System.out.printf("%d sites: %d ops applied remotely in %d ms (%.0f ops/s), %d chars, converged: %b%n", sites,
+				net.getDeliveredOps(), nanos / 1000000, net.getDeliveredOps() / (nanos / 1e9),
+				net.replica(0).length(), net.isConverged());
+	}
+}
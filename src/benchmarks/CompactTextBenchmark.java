@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.util.Random;
+
+import editortrees.EditTree;
+import editortrees.Node;
+import editortrees.Node.Code;
+
+/**
+ * Heap taken by the text of an ASCII document: a tree built by
+ * EditTree(String), whose leaves are compact, against the same tree made of
+ * one plain Node per character, and after scattered edits.
+ * 
+ * Usage: CompactTextBenchmark [size in MB, default 16] [edits, default 10000]
+ * 
+ * @author zhang
+ *
+ */
+public class CompactTextBenchmark {
+
+	public static void main(String[] args) {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int edits = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int length = megabytes << 20;
+		Random r = new Random(34);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			sb.append((char) (r.nextInt(12) == 0 ? ' ' : 'a' + r.nextInt(26)));
+		String text = sb.toString();
+		sb = null;
+
+		long before = usedMemory();
+		Node plain = plainTree(text, 0, length);
+		long plainBytes = usedMemory() - before;
+		System.out.printf("one node per char: %.1f bytes/char%n", (double) plainBytes / length);
+		plain = null;
+
+		before = usedMemory();
+		EditTree compact = new EditTree(text);
+		long compactBytes = usedMemory() - before;
+		System.out.printf("compact leaves:    %.1f bytes/char (%.0f%% less)%n", (double) compactBytes / length,
+				100 - 100.0 * compactBytes / plainBytes);
+
+		for (int i = 0; i < edits; i++)
+			compact.add('x', r.nextInt(compact.length()));
+		long editedBytes = usedMemory() - before;
+		System.out.printf("after %d edits:    %.1f bytes/char%n", edits, (double) editedBytes / length);
+		if (compact.length() != text.length() + edits || plain != null)
+			throw new AssertionError();
+	}
+
+	/**
+	 * the tree EditTree(String) built before leaves were compact
+	 */
+	private static Node plainTree(String s, int start, int end) {
+		if (start == end)
+			return Node.NULL_NODE;
+		int mid = (start + end) / 2;
+		Node left = plainTree(s, start, mid);
+		Node right = plainTree(s, mid + 1, end);
+		return new Node(s.charAt(mid), left, right, Code.getCode(height(end - mid - 1) - height(mid - start)));
+	}
+
+	private static int height(int size) {
+		return 31 - Integer.numberOfLeadingZeros(size);
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,137 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import editortrees.ConcurrentEditTree;
+import editortrees.EditTree;
+
+/**
+ * Reads per second of 1 to 8 reader threads, each reading a character and a
+ * line of 80 characters at random places, while one writer types into the
+ * same document as fast as it can. The document is read through one monitor
+ * shared with the writer, the way it was done before, and through a
+ * {@link ConcurrentEditTree}.
+ *
+ * Usage: ConcurrentReadBenchmark [size in MB, default 4] [seconds per run,
+ * default 2]
+ *
+ * @author zhang
+ *
+ */
+public class ConcurrentReadBenchmark {
+	/**
+	 * the operations of one run
+	 */
+	private interface Document {
+		char charAt(int pos);
+
+		String get(int pos, int length);
+
+		int length();
+
+		void add(char c, int pos);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+		Random r = new Random(42);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < megabytes << 20)
+			sb.append((char) ('a' + r.nextInt(26)));
+		String text = sb.toString();
+
+		System.out.println("readers  monitor reads/s  writes/s   optimistic reads/s  writes/s  retried");
+		for (int readers = 1; readers <= 8; readers *= 2) {
+			final EditTree plain = new EditTree(text);
+			long[] monitor = run(new Document() {
+				public synchronized char charAt(int pos) {
+					return plain.charAt(pos);
+				}
+
+				public synchronized String get(int pos, int length) {
+					return plain.get(pos, length);
+				}
+
+				public synchronized int length() {
+					return plain.length();
+				}
+
+				public synchronized void add(char c, int pos) {
+					plain.add(c, pos);
+				}
+			}, readers, seconds);
+			final ConcurrentEditTree concurrent = new ConcurrentEditTree(new EditTree(text));
+			long[] optimistic = run(new Document() {
+				public char charAt(int pos) {
+					return concurrent.charAt(pos);
+				}
+
+				public String get(int pos, int length) {
+					return concurrent.get(pos, length);
+				}
+
+				public int length() {
+					return concurrent.length();
+				}
+
+				public void add(char c, int pos) {
+					concurrent.add(c, pos);
+				}
+			}, readers, seconds);
+			System.out.printf("%7d %18.0f %9.0f %20.0f %9.0f %7.2f%%%n", readers, monitor[0] / seconds,
+					monitor[1] / seconds, optimistic[0] / seconds, optimistic[1] / seconds,
+					100.0 * concurrent.getRetriedReads()
+							/ Math.max(1, concurrent.getRetriedReads() + concurrent.getOptimisticReads()));
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of reads and writes done
+	 */
+	private static long[] run(final Document document, int readers, double seconds) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong writes = new AtomicLong();
+		Thread[] threads = new Thread[readers + 1];
+		for (int i = 0; i < readers; i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					long done = 0;
+					while (!stop.get()) {
+						int length = document.length();
+						document.charAt(r.nextInt(length));
+						document.get(r.nextInt(length - 80), 80);
+						done += 2;
+					}
+					reads.addAndGet(done);
+				}
+			};
+		}
+		threads[readers] = new Thread() {
+			@Override
+			public void run() {
+				Random r = new Random(-1);
+				long done = 0;
+				while (!stop.get()) {
+					document.add('x', r.nextInt(document.length()));
+					done++;
+				}
+				writes.addAndGet(done);
+			}
+		};
+		for (Thread t : threads)
+			t.start();
+		Thread.sleep((long) (seconds * 1000));
+		stop.set(true);
+		for (Thread t : threads)
+			t.join();
+		return new long[] { reads.get(), writes.get() };
+	}
+}
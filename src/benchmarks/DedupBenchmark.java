@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.util.Random;
+
+import editortrees.EditTree;
+import editortrees.EditTreeBuilder;
+import editortrees.Interner;
+
+/**
+ * Heap taken by a repetitive document, a synthetic server log where most
+ * lines are stack frames and status lines seen many times before, built with
+ * and without an {@link Interner}, and the time it takes to build.
+ * 
+ * Usage: DedupBenchmark [size in MB, default 16]
+ * 
+ * @author zhang
+ *
+ */
+public class DedupBenchmark {
+	private static final String[] COMMON = {
+			"\tat org.eclipse.jetty.server.handler.HandlerWrapper.handle(HandlerWrapper.java:127)",
+			"\tat org.eclipse.jetty.util.thread.QueuedThreadPool.runJob(QueuedThreadPool.java:883)",
+			"\tat com.example.documents.DocumentService.applyEdits(DocumentService.java:214)",
+			"\tat java.base/java.lang.Thread.run(Thread.java:829)",
+			"java.lang.IndexOutOfBoundsException: delete range extends past end of string",
+			"INFO  [qtp1937348256-31] c.e.documents.DocumentService - request completed, status 200",
+			"WARN  [qtp1937348256-17] c.e.documents.DocumentService - slow request, retrying once", "" };
+
+	public static void main(String[] args) {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int length = megabytes << 20;
+		Random r = new Random(36);
+		StringBuilder sb = new StringBuilder(length + 100);
+		long time = 1500000000000L;
+		while (sb.length() < length) {
+			if (r.nextInt(8) == 0)
+				sb.append(time += r.nextInt(1000)).append(" GET /documents/").append(r.nextInt(100000));
+			else
+				sb.append(COMMON[r.nextInt(COMMON.length)]);
+			sb.append('\n');
+		}
+		String text = sb.toString();
+		sb = null;
+
+		long before = usedMemory();
+		long start = System.nanoTime();
+		EditTree plain = new EditTreeBuilder().append(text).build();
+		long plainNanos = System.nanoTime() - start;
+		long plainBytes = usedMemory() - before;
+		System.out.printf("compact leaves: %.2f bytes/char, built in %d ms%n", (double) plainBytes / plain.length(),
+				plainNanos / 1000000);
+		plain = null;
+
+		Interner interner = new Interner();
+		before = usedMemory();
+		start = System.nanoTime();
+		EditTree shared = new EditTreeBuilder().setInterner(interner).append(text).build();
+		long sharedNanos = System.nanoTime() - start;
+		long sharedBytes = usedMemory() - before;
+		System.out.printf("shared lines:   %.2f bytes/char, built in %d ms (%.0f%% less memory)%n",
+				(double) sharedBytes / shared.length(), sharedNanos / 1000000, 100 - 100.0 * sharedBytes / plainBytes);
+		System.out.printf("%d lines, %d distinct, dedup ratio %.1f, %d ns per lookup%n", interner.getLookups(),
+				interner.size(), interner.getDedupRatio(), interner.getAverageLookupNanos());
+		if (shared.length() != text.length() || plain != null)
+			throw new AssertionError();
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
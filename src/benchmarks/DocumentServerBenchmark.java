@@ -0,0 +1,175 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import editortrees.DocumentClient;
+import editortrees.DocumentServer;
+import editortrees.DocumentService;
+
+/**
+ * Many sessions editing a few documents of a DocumentServer at once: every
+ * session connects and opens its document, then all of them send their
+ * requests together, mostly short inserts with some deletes and reads, each
+ * waiting for the answer before sending the next. Reports the latency of the
+ * requests and, for a server in this JVM, how many edits went into each
+ * batch.
+ *
+ * Each session is a socket at both ends, so 10000 sessions against a server
+ * in the same JVM need more than 20000 file descriptors; run the server by
+ * itself (java editortrees.DocumentServer) and give its port to get past that.
+ *
+ * Usage: DocumentServerBenchmark [sessions, default 10000] [documents, default
+ * 100] [requests per session, default 20] [port of a running server, default
+ * one in this JVM]
+ *
+ * @author zhang
+ *
+ */
+public class DocumentServerBenchmark {
+	private static final int CONNECT_ATTEMPTS = 20;
+
+	public static void main(String[] args) throws Exception {
+		final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int documents = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		final int requests = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		DocumentServer server = null;
+		final int port;
+		if (args.length > 3) {
+			port = Integer.parseInt(args[3]);
+		} else {
+			server = new DocumentServer(new DocumentService(), 0);
+			server.start();
+			port = server.getPort();
+		}
+
+		final long[][] latencies = new long[sessions][];
+		final AtomicInteger rejected = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final CountDownLatch connected = new CountDownLatch(sessions);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(sessions);
+		ExecutorService executor = newThreadPerTaskExecutor();
+		for (int i = 0; i < sessions; i++) {
+			final int session = i;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Random r = new Random(session);
+					long[] times = new long[requests];
+					DocumentClient client = null;
+					boolean ready = false;
+					try {
+						client = connect(port);
+						int handle = client.open("doc" + session % documents);
+						int length = client.length(handle);
+						ready = true;
+						connected.countDown();
+						go.await();
+						for (int k = 0; k < requests; k++) {
+							int kind = r.nextInt(10);
+							long start = System.nanoTime();
+							try {
+								if (kind < 7)
+									length = client.insert(handle, r.nextInt(length + 1), "w" + session + " ");
+								else if (kind < 9) {
+									int delete = Math.min(length, 1 + r.nextInt(3));
+									length = client.delete(handle, r.nextInt(length - delete + 1), delete);
+								} else
+									client.get(handle, 0, Math.min(length, 80));
+							} catch (IndexOutOfBoundsException e) {
+								// another session shortened the document
+								rejected.incrementAndGet();
+								length = client.length(handle);
+							}
+							times[k] = System.nanoTime() - start;
+						}
+						latencies[session] = times;
+					} catch (Exception e) {
+						if (failed.getAndIncrement() == 0)
+							e.printStackTrace();
+						if (!ready)
+							connected.countDown();
+					} finally {
+						finished.countDown();
+						if (client != null) {
+							try {
+								client.close();
+							} catch (IOException e) {
+								// nothing left to do
+							}
+						}
+					}
+				}
+			});
+		}
+		connected.await();
+		long start = System.nanoTime();
+		go.countDown();
+		finished.await();
+		long wall = System.nanoTime() - start;
+		executor.shutdown();
+
+		long[] all = new long[sessions * requests];
+		int n = 0;
+		for (long[] times : latencies) {
+			if (times != null) {
+				System.arraycopy(times, 0, all, n, times.length);
+				n += times.length;
+			}
+		}
+		all = Arrays.copyOf(all, n);
+		Arrays.sort(all);
+		System.out.printf("%d sessions (%d failed), %d documents, %d requests, %d cores%n", sessions, failed.get(),
+				documents, n, Runtime.getRuntime().availableProcessors());
+		System.out.printf("throughput %10.0f requests/s%n", n / (wall / 1e9));
+		System.out.printf("p50        %10.2f ms%n", percentile(all, 0.50) / 1e6);
+		System.out.printf("p99        %10.2f ms%n", percentile(all, 0.99) / 1e6);
+		System.out.printf("max        %10.2f ms%n", (n == 0 ? 0 : all[n - 1]) / 1e6);
+		System.out.printf("rejected   %10d%n", rejected.get());
+		if (server != null) {
+			DocumentService service = server.getService();
+			System.out.printf("edits      %10d in %d batches, %.2f per batch%n", service.getEdits(),
+					service.getBatches(), (double) service.getEdits() / Math.max(1, service.getBatches()));
+			server.close();
+		}
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	/**
+	 * retry while the backlog of the server is full
+	 */
+	private static DocumentClient connect(int port) throws IOException, InterruptedException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return new DocumentClient("localhost", port);
+			} catch (ConnectException e) {
+				if (attempt == CONNECT_ATTEMPTS)
+					throw e;
+				Thread.sleep(10 * attempt);
+			}
+		}
+	}
+
+	/**
+	 * a virtual thread per session where the JVM has them
+	 */
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import editortrees.DocumentFile;
+import editortrees.EditTree;
+
+/**
+ * Save latency for single keystroke changes in a large file, and for two
+ * keystrokes at the two ends of it between saves, compared with writing the
+ * whole file.
+ * 
+ * Usage: IncrementalSaveBenchmark [size in MB, default 1024] [keystrokes,
+ * default 200]
+ * 
+ * @author zhang
+ *
+ */
+public class IncrementalSaveBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int keystrokes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		Path file = Files.createTempFile("incremental-save", ".txt");
+		try {
+			writeRandomText(file, (long) megabytes << 20);
+			DocumentFile document = new DocumentFile(file, StandardCharsets.ISO_8859_1);
+			long start = System.nanoTime();
+			EditTree tree = document.open();
+			System.out.printf("opened %d MB in %.1f ms%n", megabytes, (System.nanoTime() - start) / 1e6);
+
+			Random r = new Random(31);
+			report("incremental save", document, save(document, tree, r, keystrokes, false));
+			report("two distant edits", document, save(document, tree, r, keystrokes, true));
+
+			Path copy = Files.createTempFile("full-save", ".txt");
+			try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+				start = System.nanoTime();
+				tree.writeTo(channel, StandardCharsets.ISO_8859_1);
+				channel.force(false);
+				System.out.printf("full save: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+			} finally {
+				Files.delete(copy);
+			}
+			Files.deleteIfExists(document.getJournal());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * save after each keystroke, or after each pair of keystrokes within 1000
+	 * characters of the two ends of the tree
+	 *
+	 * @return the sorted save latencies in nanoseconds
+	 */
+	private static long[] save(DocumentFile document, EditTree tree, Random r, int keystrokes, boolean distant)
+			throws IOException {
+		long[] latencies = new long[keystrokes];
+		for (int i = 0; i < keystrokes; i++) {
+			if (distant) {
+				tree.add((char) ('a' + r.nextInt(26)), r.nextInt(Math.min(1000, tree.length())));
+				tree.add((char) ('a' + r.nextInt(26)), tree.length() - r.nextInt(Math.min(1000, tree.length())));
+			} else {
+				tree.add((char) ('a' + r.nextInt(26)), r.nextInt(tree.length()));
+			}
+			long start = System.nanoTime();
+			document.save(tree);
+			latencies[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static void report(String name, DocumentFile document, long[] latencies) throws IOException {
+		int n = latencies.length;
+		System.out.printf("%s: p50 %.3f ms, p99 %.3f ms, max %.3f ms, journal %d bytes%n", name,
+				latencies[n / 2] / 1e6, latencies[n * 99 / 100] / 1e6, latencies[n - 1] / 1e6,
+				Files.size(document.getJournal()));
+	}
+
+	/**
+	 * fill a file with lines of random lower case words
+	 */
+	static void writeRandomText(Path file, long bytes) throws IOException {
+		Random r = new Random(bytes);
+		byte[] block = new byte[1 << 20];
+		for (int i = 0; i < block.length; i++)
+			block[i] = (byte) (r.nextInt(12) == 0 ? (r.nextInt(8) == 0 ? '\n' : ' ') : 'a' + r.nextInt(26));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			for (long written = 0; written < bytes; written += block.length) {
+				ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, bytes - written));
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import editortrees.EditTree;
+
+/**
+ * Time to build an EditTree from a large String on one thread and on
+ * ForkJoinPools of 1 to 32 threads, best of a few runs each, and the speedup
+ * over one thread. Counts above the number of cores only show the overhead
+ * of the extra threads.
+ *
+ * Usage: ParallelBuildBenchmark [size in M characters, default 128]
+ *
+ * @author zhang
+ *
+ */
+public class ParallelBuildBenchmark {
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) {
+		int millions = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+		int length = millions << 20;
+		Random r = new Random(45);
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) ('a' + r.nextInt(26));
+		String text = new String(chars);
+		chars = null;
+
+		System.out.printf("%d M characters, %d cores%n", millions, Runtime.getRuntime().availableProcessors());
+		double sequential = time(text, null);
+		System.out.printf("sequential  %7.1f ms%n", sequential);
+		for (int threads = 1; threads <= 32; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			double ms = time(text, pool);
+			pool.shutdown();
+			System.out.printf("%2d threads  %7.1f ms  speedup %5.2f%n", threads, ms, sequential / ms);
+		}
+	}
+
+	/**
+	 *
+	 * @return milliseconds of the fastest build
+	 */
+	private static double time(String text, ForkJoinPool pool) {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run++) {
+			System.gc();
+			long start = System.nanoTime();
+			EditTree tree = new EditTree(text, pool);
+			best = Math.min(best, System.nanoTime() - start);
+			if (tree.length() != text.length())
+				throw new AssertionError();
+		}
+		return best / 1e6;
+	}
+}
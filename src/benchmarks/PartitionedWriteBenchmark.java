@@ -0,0 +1,96 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import editortrees.ConcurrentEditTree;
+import editortrees.EditTree;
+import editortrees.PartitionedEditTree;
+
+/**
+ * Threads appending lines to regions of their own of one document, each
+ * region a segment of a PartitionedEditTree, against the same threads
+ * appending to their regions of a ConcurrentEditTree, where every edit takes
+ * the one write lock. Best of a few runs for each number of threads.
+ *
+ * Usage: PartitionedWriteBenchmark [lines per thread, default 50000]
+ * [most threads, default 8]
+ *
+ * @author zhang
+ *
+ */
+public class PartitionedWriteBenchmark {
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) throws Exception {
+		final int lines = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int most = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		System.out.printf("%d lines per thread, %d cores%n", lines, Runtime.getRuntime().availableProcessors());
+		System.out.printf("%8s %16s %16s%n", "threads", "partitioned", "one lock");
+		for (int threads = 1; threads <= most; threads *= 2) {
+			long partitioned = Long.MAX_VALUE;
+			long single = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				final PartitionedEditTree document = new PartitionedEditTree("", threads);
+				final List<PartitionedEditTree.Segment> segments = document.getSegments();
+				partitioned = Math.min(partitioned, time(threads, new Job() {
+					@Override
+					void run(int thread) {
+						PartitionedEditTree.Segment segment = segments.get(thread);
+						for (int i = 0; i < lines; i++)
+							segment.append("line " + i + "\n");
+					}
+				}));
+
+				// the regions are kept apart by their ends, which only the
+				// thread of the region moves
+				final ConcurrentEditTree tree = new ConcurrentEditTree(new EditTree());
+				final int[] ends = new int[threads];
+				single = Math.min(single, time(threads, new Job() {
+					@Override
+					void run(int thread) {
+						for (int i = 0; i < lines; i++) {
+							String line = "line " + i + "\n";
+							synchronized (ends) {
+								tree.insert(ends[thread], line);
+								for (int k = thread; k < ends.length; k++)
+									ends[k] += line.length();
+							}
+						}
+					}
+				}));
+				if (document.length() != tree.length())
+					throw new AssertionError();
+			}
+			System.out.printf("%8d %13.0f k/s %13.0f k/s%n", threads, (double) threads * lines / partitioned * 1e6,
+					(double) threads * lines / single * 1e6);
+		}
+	}
+
+	private abstract static class Job {
+		abstract void run(int thread);
+	}
+
+	/**
+	 * 
+	 * @return nanoseconds for all threads to run the job
+	 */
+	private static long time(int threads, final Job job) throws InterruptedException {
+		List<Thread> started = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			final int thread = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					job.run(thread);
+				}
+			};
+			t.start();
+			started.add(t);
+		}
+		for (Thread t : started)
+			t.join();
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import editortrees.EditTree;
+import editortrees.TreeSnapshot;
+
+/**
+ * Time to load a document from a binary snapshot, compared with building the
+ * tree from its text with new EditTree(String). Each is run a few times, the
+ * best run is reported.
+ * 
+ * Usage: SnapshotLoadBenchmark [size in MB, default 16] [runs, default 5]
+ * 
+ * @author zhang
+ *
+ */
+public class SnapshotLoadBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		Path text = Files.createTempFile("snapshot-load", ".txt");
+		Path snapshot = Files.createTempFile("snapshot-load", ".bin");
+		try {
+			IncrementalSaveBenchmark.writeRandomText(text, (long) megabytes << 20);
+			String content = new String(Files.readAllBytes(text), StandardCharsets.ISO_8859_1);
+			// a tree that has been edited, so its shape is not the balanced one
+			EditTree edited = new EditTree(content);
+			for (int i = 0; i < 10000; i++)
+				edited.add('x', (int) ((i * 7919L) % edited.length()));
+			TreeSnapshot.write(edited, snapshot);
+			System.out.printf("%d MB, snapshot %d bytes%n", megabytes, Files.size(snapshot));
+			edited = null;
+
+			long fromString = Long.MAX_VALUE;
+			long fromText = Long.MAX_VALUE;
+			long fromSnapshot = Long.MAX_VALUE;
+			EditTree t = null;
+			for (int run = 0; run < runs; run++) {
+				t = null;
+				System.gc();
+				long start = System.nanoTime();
+				t = new EditTree(content);
+				fromString = Math.min(fromString, System.nanoTime() - start);
+
+				t = null;
+				System.gc();
+				start = System.nanoTime();
+				t = new EditTree(new String(Files.readAllBytes(text), StandardCharsets.ISO_8859_1));
+				fromText = Math.min(fromText, System.nanoTime() - start);
+
+				t = null;
+				System.gc();
+				start = System.nanoTime();
+				t = TreeSnapshot.read(snapshot);
+				fromSnapshot = Math.min(fromSnapshot, System.nanoTime() - start);
+				if (t.length() != content.length() + 10000)
+					throw new AssertionError();
+			}
+			System.out.printf("new EditTree(String):         %.1f ms%n", fromString / 1e6);
+			System.out.printf("read file + new EditTree:     %.1f ms%n", fromText / 1e6);
+			System.out.printf("TreeSnapshot.read:            %.1f ms%n", fromSnapshot / 1e6);
+		} finally {
+			Files.delete(text);
+			Files.delete(snapshot);
+		}
+	}
+}
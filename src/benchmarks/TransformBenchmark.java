@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.util.Random;
+
+import editortrees.CharUnaryOperator;
+import editortrees.EditTree;
+
+/**
+ * Upper-casing most of a large tree by get, delete and insert, as it had to
+ * be done before, and by EditTree.transform(), which rewrites the text in
+ * place, best of a few runs each.
+ *
+ * Usage: TransformBenchmark [size in M characters, default 32]
+ *
+ * @author zhang
+ *
+ */
+public class TransformBenchmark {
+	private static final int RUNS = 5;
+
+	private static final CharUnaryOperator UPPER = new CharUnaryOperator() {
+		@Override
+		public char apply(char c) {
+			return Character.toUpperCase(c);
+		}
+	};
+
+	public static void main(String[] args) {
+		int millions = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		Random r = new Random(47);
+		StringBuilder sb = new StringBuilder(millions << 20);
+		for (int i = 0; i < millions << 20; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		String text = sb.toString();
+		sb = null;
+		int start = 1000;
+		int end = text.length() - 1000;
+
+		System.out.printf("%d M characters, %d cores%n", millions, Runtime.getRuntime().availableProcessors());
+		long copy = Long.MAX_VALUE;
+		long inPlace = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run++) {
+			EditTree tree = new EditTree(text);
+			long begin = System.nanoTime();
+			String upper = tree.get(start, end - start).toUpperCase();
+			tree.delete(start, end - start);
+			tree.insert(start, upper);
+			copy = Math.min(copy, System.nanoTime() - begin);
+			upper = null;
+
+			EditTree other = new EditTree(text);
+			begin = System.nanoTime();
+			other.transform(start, end, UPPER);
+			inPlace = Math.min(inPlace, System.nanoTime() - begin);
+			if (tree.length() != other.length() || tree.charAt(end / 2) != other.charAt(end / 2))
+				throw new AssertionError();
+		}
+		System.out.printf("get, delete, insert  %8.1f ms%n", copy / 1e6);
+		System.out.printf("transform            %8.1f ms%n", inPlace / 1e6);
+	}
+}
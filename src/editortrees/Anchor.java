@@ -0,0 +1,74 @@
+package editortrees;
+
+/**
+ * A position in an EditTree that follows the edits made to the tree, like a
+ * cursor, a bookmark or the start of a diagnostic. Create one with
+ * {@link EditTree#createAnchor(int, Bias)}.
+ *
+ * Text inserted before the anchor moves it right, and text deleted before it
+ * moves it left; an anchor inside deleted text ends up where the text was.
+ * Keeping all anchors of a tree up to date costs O(log n) per edit, however
+ * many there are.
+ *
+ * @author zhang
+ *
+ */
+public final class Anchor {
+	/**
+	 * what an anchor does when text is inserted right at its position
+	 */
+	public enum Bias {
+		/**
+		 * stay where it is, before the new text
+		 */
+		LEFT,
+		/**
+		 * move right, after the new text
+		 */
+		RIGHT
+	}
+
+	private final AnchorTree owner;
+	private final Bias bias;
+	AnchorTree.Entry entry;
+
+	Anchor(AnchorTree owner, Bias bias) {
+		this.owner = owner;
+		this.bias = bias;
+	}
+
+	/**
+	 *
+	 * @return the position of this anchor in its tree now
+	 * @throws IllegalStateException
+	 *             if this anchor was disposed
+	 */
+	public int getPosition() throws IllegalStateException {
+		if (entry == null)
+			throw new IllegalStateException("anchor disposed");
+		return owner.position(entry);
+	}
+
+	public Bias getBias() {
+		return bias;
+	}
+
+	/**
+	 * stop following the edits of the tree
+	 */
+	public void dispose() {
+		if (entry != null) {
+			owner.remove(entry);
+			entry = null;
+		}
+	}
+
+	public boolean isDisposed() {
+		return entry == null;
+	}
+
+	@Override
+	public String toString() {
+		return entry == null ? "disposed" : getPosition() + (bias == Bias.LEFT ? "L" : "R");
+	}
+}
@@ -0,0 +1,140 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import editortrees.Anchor.Bias;
+
+/**
+ * Tests for {@link Anchor}
+ * 
+ */
+public class AnchorTest {
+
+	/**
+	 * where an anchor should be after deleted characters were removed from pos
+	 * and inserted ones put there
+	 */
+	private static int moved(int anchor, Bias bias, int pos, int deleted, int inserted) {
+		if (anchor > pos)
+			anchor = Math.max(pos, anchor - deleted);
+		if (anchor > pos || anchor == pos && bias == Bias.RIGHT)
+			anchor += inserted;
+		return anchor;
+	}
+
+	@Test
+	public void testSimpleEdits() {
+		EditTree t = new EditTree("hello world");
+		Anchor left = t.createAnchor(5, Bias.LEFT);
+		Anchor right = t.createAnchor(5, Bias.RIGHT);
+		Anchor end = t.createAnchor(11, Bias.LEFT);
+		t.insert(5, ",");
+		assertEquals(5, left.getPosition());
+		assertEquals(6, right.getPosition());
+		assertEquals(12, end.getPosition());
+		t.add('!');
+		assertEquals(12, end.getPosition());
+		t.delete(0, 3);
+		assertEquals(2, left.getPosition());
+		assertEquals(3, right.getPosition());
+		assertEquals(9, end.getPosition());
+		t.delete(1, 5);
+		assertEquals(1, left.getPosition());
+		assertEquals(1, right.getPosition());
+		assertEquals(4, end.getPosition());
+		right.dispose();
+		assertTrue(right.isDisposed());
+		t.add('x', 0);
+		assertEquals(2, left.getPosition());
+		assertEquals(5, end.getPosition());
+	}
+
+	@Test
+	public void testRandomEdits() {
+		Random r = new Random(39);
+		EditTree t = new EditTree("0123456789012345678901234567890123456789");
+		List<Anchor> anchors = new ArrayList<Anchor>();
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 3000; i++) {
+			int pos = r.nextInt(t.length() + 1);
+			int choice = r.nextInt(10);
+			if (choice < 3) {
+				Anchor a = t.createAnchor(pos, r.nextBoolean() ? Bias.LEFT : Bias.RIGHT);
+				anchors.add(a);
+				expected.add(pos);
+			} else if (choice == 3 && !anchors.isEmpty()) {
+				int k = r.nextInt(anchors.size());
+				anchors.remove(k).dispose();
+				expected.remove(k);
+			} else {
+				int deleted = 0;
+				String inserted = "";
+				if (choice < 6) {
+					inserted = "ab";
+					t.insert(pos, inserted);
+				} else if (choice < 8 && pos < t.length()) {
+					deleted = 1;
+					t.delete(pos);
+				} else if (choice == 8 && pos < t.length()) {
+					deleted = Math.min(r.nextInt(8), t.length() - pos - 1);
+					t.delete(pos, deleted);
+				} else {
+					inserted = "c";
+					t.add('c', pos);
+				}
+				for (int k = 0; k < anchors.size(); k++)
+					expected.set(k, moved(expected.get(k), anchors.get(k).getBias(), pos, deleted, inserted.length()));
+			}
+			for (int k = 0; k < anchors.size(); k++)
+				assertEquals(expected.get(k).intValue(), anchors.get(k).getPosition());
+		}
+	}
+
+	@Test
+	public void testSplitConcatenateAndBatch() {
+		EditTree t = new EditTree("abcdefghij");
+		Anchor a = t.createAnchor(3, Bias.LEFT);
+		Anchor b = t.createAnchor(8, Bias.RIGHT);
+		EditTree tail = t.split(5);
+		assertEquals(3, a.getPosition());
+		assertEquals(5, b.getPosition());
+		Anchor c = tail.createAnchor(2, Bias.LEFT);
+		t.concatenate(tail);
+		// text added right at a right anchor goes before it
+		assertEquals(10, b.getPosition());
+		assertEquals(0, c.getPosition());
+		List<Edit> edits = new ArrayList<Edit>();
+		edits.add(Edit.insert(0, "xx"));
+		edits.add(new Edit(4, 2, "y"));
+		t.applyEdits(edits);
+		assertEquals(5, a.getPosition());
+		assertEquals(11, b.getPosition());
+	}
+
+	@Test
+	public void testManyAnchors() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+			sb.append('a');
+		EditTree t = new EditTree(sb.toString());
+		List<Anchor> anchors = new ArrayList<Anchor>();
+		for (int i = 0; i <= 100000; i += 10)
+			anchors.add(t.createAnchor(i, Bias.LEFT));
+		Collections.shuffle(anchors, new Random(390));
+		t.delete(50000, 20000);
+		t.insert(0, "0123456789");
+		for (Anchor a : anchors) {
+			int p = a.getPosition() - 10;
+			int original = p <= 50000 ? p : p + 20000;
+			assertTrue(original % 10 == 0 || p == 50000);
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package editortrees;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The anchors of one EditTree, in a treap per bias, ordered by position.
+ * Each entry keeps the gap to the entry before it instead of its position,
+ * and each subtree the sum of its gaps, so the position of an entry is the
+ * sum of the gaps up to it. Text inserted at pos only changes the gap of the
+ * first anchor after pos, and text deleted only the gap of the first anchor
+ * after it; the anchors inside the deleted text get a pending "all gaps are
+ * zero" mark on their subtree. Every edit is O(log n) in the number of
+ * anchors.
+ *
+ * @author zhang
+ *
+ */
+final class AnchorTree {
+	/**
+	 * one anchor in a treap
+	 */
+	static final class Entry {
+		final Anchor anchor;
+		final int priority;
+		Entry left;
+		Entry right;
+		Entry parent;
+		int gap;
+		int sum;
+		int size = 1;
+		/**
+		 * the gaps below this entry must be made zero
+		 */
+		boolean zero;
+
+		Entry(Anchor anchor, int priority) {
+			this.anchor = anchor;
+			this.priority = priority;
+		}
+	}
+
+	private final Random random = new Random();
+	private final Entry[] roots = new Entry[Anchor.Bias.values().length];
+
+	/**
+	 * create an anchor at pos
+	 *
+	 * @param pos
+	 * @param bias
+	 * @return the anchor
+	 */
+	Anchor create(int pos, Anchor.Bias bias) {
+		Anchor anchor = new Anchor(this, bias);
+		Entry e = new Entry(anchor, random.nextInt());
+		anchor.entry = e;
+		int b = bias.ordinal();
+		Entry[] parts = new Entry[2];
+		split(roots[b], 0, pos, true, parts);
+		Entry before = parts[0];
+		Entry after = parts[1];
+		e.gap = pos - sum(before);
+		e.sum = e.gap;
+		addToFirst(after, -e.gap);
+		setRoot(b, merge(before, merge(e, after)));
+		return anchor;
+	}
+
+	/**
+	 *
+	 * @param e
+	 * @return the position of the anchor of e
+	 */
+	int position(Entry e) {
+		pushPath(e);
+		int pos = sum(e.left) + e.gap;
+		for (Entry child = e, p = e.parent; p != null; child = p, p = p.parent)
+			if (child == p.right)
+				pos += sum(p.left) + p.gap;
+		return pos;
+	}
+
+	/**
+	 *
+	 * @param pos
+	 * @param bias
+	 * @return the first anchor with that bias at pos or after it, null if
+	 *         there is none
+	 */
+	Anchor find(int pos, Anchor.Bias bias) {
+		Anchor found = null;
+		int base = 0;
+		for (Entry t = roots[bias.ordinal()]; t != null;) {
+			push(t);
+			int at = base + sum(t.left) + t.gap;
+			if (at >= pos) {
+				found = t.anchor;
+				t = t.left;
+			} else {
+				base = at;
+				t = t.right;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * remove the anchor of e
+	 *
+	 * @param e
+	 */
+	void remove(Entry e) {
+		pushPath(e);
+		int rank = size(e.left);
+		for (Entry child = e, p = e.parent; p != null; child = p, p = p.parent)
+			if (child == p.right)
+				rank += size(p.left) + 1;
+		int b = e.anchor.getBias().ordinal();
+		Entry[] parts = new Entry[2];
+		splitRank(roots[b], rank, parts);
+		Entry before = parts[0];
+		splitRank(parts[1], 1, parts);
+		addToFirst(parts[1], e.gap);
+		setRoot(b, merge(before, parts[1]));
+		e.parent = null;
+	}
+
+	/**
+	 *
+	 * @return number of anchors
+	 */
+	int size() {
+		int size = 0;
+		for (Entry root : roots)
+			size += size(root);
+		return size;
+	}
+
+	/**
+	 * follow text inserted at pos
+	 *
+	 * @param pos
+	 * @param length
+	 */
+	void inserted(int pos, int length) {
+		for (Anchor.Bias bias : Anchor.Bias.values()) {
+			int b = bias.ordinal();
+			Entry[] parts = new Entry[2];
+			split(roots[b], 0, pos, bias == Anchor.Bias.LEFT, parts);
+			Entry before = parts[0];
+			addToFirst(parts[1], length);
+			setRoot(b, merge(before, parts[1]));
+		}
+	}
+
+	/**
+	 * follow text deleted from pos
+	 *
+	 * @param pos
+	 * @param length
+	 */
+	void deleted(int pos, int length) {
+		for (int b = 0; b < roots.length; b++) {
+			Entry[] parts = new Entry[2];
+			split(roots[b], 0, pos, true, parts);
+			Entry before = parts[0];
+			int previous = sum(before);
+			split(parts[1], previous, pos + length, true, parts);
+			Entry inside = parts[0];
+			Entry after = parts[1];
+			int last = previous;
+			if (inside != null) {
+				last += inside.sum;
+				inside.gap = 0;
+				inside.sum = 0;
+				inside.zero = true;
+				addToFirst(inside, pos - previous);
+			}
+			// the first anchor after the deleted text keeps its distance to pos
+			if (after != null)
+				addToFirst(after, last - length - (inside != null ? pos : previous));
+			setRoot(b, merge(before, merge(inside, after)));
+		}
+	}
+
+	private void setRoot(int b, Entry root) {
+		if (root != null)
+			root.parent = null;
+		roots[b] = root;
+	}
+
+	private static int sum(Entry e) {
+		return e == null ? 0 : e.sum;
+	}
+
+	private static int size(Entry e) {
+		return e == null ? 0 : e.size;
+	}
+
+	private static void push(Entry e) {
+		if (e.zero) {
+			for (Entry child : new Entry[] { e.left, e.right }) {
+				if (child != null) {
+					child.gap = 0;
+					child.sum = 0;
+					child.zero = true;
+				}
+			}
+			e.zero = false;
+		}
+	}
+
+	private static void update(Entry e) {
+		e.size = 1 + size(e.left) + size(e.right);
+		e.sum = e.gap + sum(e.left) + sum(e.right);
+		if (e.left != null)
+			e.left.parent = e;
+		if (e.right != null)
+			e.right.parent = e;
+	}
+
+	/**
+	 * push the pending marks down the path from the root to e
+	 */
+	private static void pushPath(Entry e) {
+		List<Entry> path = new ArrayList<Entry>();
+		for (Entry p = e; p != null; p = p.parent)
+			path.add(p);
+		for (int i = path.size() - 1; i >= 0; i--)
+			push(path.get(i));
+	}
+
+	/**
+	 * add delta to the gap of the first entry of t
+	 */
+	private static void addToFirst(Entry t, int delta) {
+		if (t == null)
+			return;
+		push(t);
+		if (t.left != null)
+			addToFirst(t.left, delta);
+		else
+			t.gap += delta;
+		update(t);
+	}
+
+	private static Entry merge(Entry a, Entry b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (a.priority > b.priority) {
+			push(a);
+			a.right = merge(a.right, b);
+			update(a);
+			return a;
+		}
+		push(b);
+		b.left = merge(a, b.left);
+		update(b);
+		return b;
+	}
+
+	/**
+	 * split t into the entries before x, or at x too if inclusive, and the
+	 * others
+	 *
+	 * @param t
+	 * @param base
+	 *            position of the entry before t
+	 * @param x
+	 * @param inclusive
+	 * @param parts
+	 *            gets the two parts
+	 */
+	private static void split(Entry t, int base, int x, boolean inclusive, Entry[] parts) {
+		if (t == null) {
+			parts[0] = parts[1] = null;
+			return;
+		}
+		push(t);
+		int pos = base + sum(t.left) + t.gap;
+		if (pos < x || inclusive && pos == x) {
+			split(t.right, pos, x, inclusive, parts);
+			t.right = parts[0];
+			update(t);
+			parts[0] = t;
+		} else {
+			split(t.left, base, x, inclusive, parts);
+			t.left = parts[1];
+			update(t);
+			parts[1] = t;
+		}
+	}
+
+	/**
+	 * split t into its first rank entries and the others
+	 */
+	private static void splitRank(Entry t, int rank, Entry[] parts) {
+		if (t == null) {
+			parts[0] = parts[1] = null;
+			return;
+		}
+		push(t);
+		if (size(t.left) < rank) {
+			splitRank(t.right, rank - size(t.left) - 1, parts);
+			t.right = parts[0];
+			update(t);
+			parts[0] = t;
+		} else {
+			splitRank(t.left, rank, parts);
+			t.left = parts[1];
+			update(t);
+			parts[1] = t;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package editortrees;
+
+/**
+ * The parts of a tree that changed since its last checkpoint, as runs: each
+ * run is a range of the current text together with the length the text it
+ * replaced had at the checkpoint. Runs are sorted and apart from each other,
+ * and the text between them is the same as at the checkpoint, so replaying
+ * the runs from the first to the last, each at its current start, turns the
+ * text at the checkpoint into the current text.
+ *
+ * An edit merges the runs it touches into one and moves the runs after it.
+ * Past MAX_RUNS runs the two closest are merged, with the text between them,
+ * so an edit costs O(MAX_RUNS) at most.
+ *
+ * @author zhang
+ *
+ */
+final class ChangeList {
+	/**
+	 * most runs kept apart
+	 */
+	static final int MAX_RUNS = 64;
+
+	private final int[] starts = new int[MAX_RUNS + 1];
+	private final int[] ends = new int[MAX_RUNS + 1];
+	private final int[] oldLengths = new int[MAX_RUNS + 1];
+	private int count;
+
+	/**
+	 * record that removed characters from pos were replaced by inserted ones
+	 *
+	 * @param pos
+	 * @param removed
+	 * @param inserted
+	 */
+	void replaced(int pos, int removed, int inserted) {
+		if (removed == 0 && inserted == 0)
+			return;
+		int end = pos + removed;
+		// the first run that ends at pos or later
+		int first = 0;
+		int high = count;
+		while (first < high) {
+			int mid = (first + high) >>> 1;
+			if (ends[mid] < pos)
+				first = mid + 1;
+			else
+				high = mid;
+		}
+		int start = pos;
+		int mergedEnd = end;
+		int covered = 0;
+		int oldLength = 0;
+		int last = first;
+		for (; last < count && starts[last] <= end; last++) {
+			start = Math.min(start, starts[last]);
+			mergedEnd = Math.max(mergedEnd, ends[last]);
+			covered += ends[last] - starts[last];
+			oldLength += oldLengths[last];
+		}
+		// the characters of the merged range outside of the runs were there
+		// at the checkpoint
+		oldLength += mergedEnd - start - covered;
+		int delta = inserted - removed;
+		for (int i = last; i < count; i++) {
+			starts[i] += delta;
+			ends[i] += delta;
+		}
+		int runs = mergedEnd + delta > start || oldLength > 0 ? 1 : 0;
+		int moved = count - last;
+		System.arraycopy(starts, last, starts, first + runs, moved);
+		System.arraycopy(ends, last, ends, first + runs, moved);
+		System.arraycopy(oldLengths, last, oldLengths, first + runs, moved);
+		count = first + runs + moved;
+		if (runs == 1) {
+			starts[first] = start;
+			ends[first] = mergedEnd + delta;
+			oldLengths[first] = oldLength;
+		}
+		if (count > MAX_RUNS)
+			mergeClosest();
+	}
+
+	/**
+	 * merge the two runs with the least unchanged text between them
+	 */
+	private void mergeClosest() {
+		int closest = 0;
+		for (int i = 1; i < count - 1; i++)
+			if (starts[i + 1] - ends[i] < starts[closest + 1] - ends[closest])
+				closest = i;
+		oldLengths[closest] += starts[closest + 1] - ends[closest] + oldLengths[closest + 1];
+		ends[closest] = ends[closest + 1];
+		int moved = count - closest - 2;
+		System.arraycopy(starts, closest + 2, starts, closest + 1, moved);
+		System.arraycopy(ends, closest + 2, ends, closest + 1, moved);
+		System.arraycopy(oldLengths, closest + 2, oldLengths, closest + 1, moved);
+		count--;
+	}
+
+	/**
+	 *
+	 * @return the number of runs
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 *
+	 * @param run
+	 * @return the current position of the first character of the run
+	 */
+	int start(int run) {
+		return starts[run];
+	}
+
+	/**
+	 *
+	 * @param run
+	 * @return the current position after the run
+	 */
+	int end(int run) {
+		return ends[run];
+	}
+
+	/**
+	 *
+	 * @param run
+	 * @return the length of the text the run replaced
+	 */
+	int oldLength(int run) {
+		return oldLengths[run];
+	}
+}
@@ -0,0 +1,18 @@
+package editortrees;
+
+/**
+ * A function from a char to a char, such as a case conversion or a mask, for
+ * {@link EditTree#transform(int, int, CharUnaryOperator)}. java.util.function
+ * has none for char.
+ * 
+ * @author zhang
+ *
+ */
+public interface CharUnaryOperator {
+	/**
+	 * 
+	 * @param c
+	 * @return the char that replaces c
+	 */
+	char apply(char c);
+}
@@ -0,0 +1,52 @@
+package editortrees;
+
+/**
+ * How much of an EditTree is checked after each edit, see
+ * {@link EditTree#setCheckLevel(CheckLevel)}. New trees take the level from
+ * the system property editortrees.check (off, path-only, sampled or full),
+ * OFF if it is not set.
+ *
+ * @author zhang
+ *
+ */
+public enum CheckLevel {
+	/**
+	 * no checks
+	 */
+	OFF,
+	/**
+	 * the nodes on the path to the edit, O(log^2 n)
+	 */
+	PATH_ONLY,
+	/**
+	 * the path to every edit, and the whole tree once every n edits, so
+	 * amortized O(log^2 n)
+	 */
+	SAMPLED,
+	/**
+	 * the whole tree after every edit, O(n)
+	 */
+	FULL;
+
+	/**
+	 * the system property that sets the level of new trees
+	 */
+	public static final String PROPERTY = "editortrees.check";
+
+	/**
+	 * 
+	 * @return the level named by the system property, OFF if it is not set
+	 * @throws IllegalArgumentException
+	 *             if it names no level
+	 */
+	static CheckLevel fromProperty() throws IllegalArgumentException {
+		String value = System.getProperty(PROPERTY);
+		if (value == null)
+			return OFF;
+		try {
+			return valueOf(value.trim().toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(PROPERTY + " must be off, path-only, sampled or full, not " + value);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CheckLevel} and {@link TreeCheckException}
+ *
+ */
+public class CheckLevelTest {
+
+	/**
+	 * a tree of 127 characters
+	 */
+	private static EditTree tree(CheckLevel level) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 127; i++)
+			sb.append((char) ('a' + i % 26));
+		EditTree t = new EditTree(sb.toString());
+		t.setCheckLevel(level);
+		return t;
+	}
+
+	/**
+	 * give the second leaf, root.LLLLLR, a wrong size, so the sizes do not add
+	 * up at its parent, root.LLLLL
+	 */
+	private static EditTree breakLeaf(EditTree t) throws Exception {
+		Node n = t.getRoot();
+		for (int i = 0; i < 5; i++)
+			n = n.getLeft();
+		n = n.getRight();
+		Field size = Node.class.getDeclaredField("size");
+		size.setAccessible(true);
+		size.setInt(n, 2);
+		return t;
+	}
+
+	private static EditTree brokenTree(CheckLevel level) throws Exception {
+		return breakLeaf(tree(level));
+	}
+
+	@Test
+	public void testDefaultLevel() {
+		assertEquals(CheckLevel.fromProperty(), new EditTree("abc").getCheckLevel());
+		String old = System.getProperty(CheckLevel.PROPERTY);
+		try {
+			System.clearProperty(CheckLevel.PROPERTY);
+			assertEquals(CheckLevel.OFF, CheckLevel.fromProperty());
+			System.setProperty(CheckLevel.PROPERTY, "path-only");
+			assertEquals(CheckLevel.PATH_ONLY, CheckLevel.fromProperty());
+			System.setProperty(CheckLevel.PROPERTY, "Sampled");
+			assertEquals(CheckLevel.SAMPLED, CheckLevel.fromProperty());
+			System.setProperty(CheckLevel.PROPERTY, "some");
+			try {
+				CheckLevel.fromProperty();
+				fail();
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			if (old == null)
+				System.clearProperty(CheckLevel.PROPERTY);
+			else
+				System.setProperty(CheckLevel.PROPERTY, old);
+		}
+	}
+
+	@Test
+	public void testLevels() throws Exception {
+		EditTree off = brokenTree(CheckLevel.OFF);
+		off.add('x', 0);
+
+		EditTree path = brokenTree(CheckLevel.PATH_ONLY);
+		path.add('x', path.length());
+		try {
+			// an edit left of the broken leaf, under its parent
+			path.add('x', 0);
+			fail();
+		} catch (TreeCheckException e) {
+			assertEquals("LLLLL", e.getPath());
+		}
+
+		EditTree full = brokenTree(CheckLevel.FULL);
+		try {
+			full.add('x', full.length());
+			fail();
+		} catch (TreeCheckException e) {
+			assertEquals("LLLLL", e.getPath());
+			assertTrue(e.getMessage(), e.getMessage().contains("root.LLLLL"));
+			assertTrue(e.getMessage(), e.getMessage().contains("FULL"));
+		}
+
+		EditTree sampled = tree(CheckLevel.SAMPLED);
+		// the first edit checks the whole tree, then one in length() edits
+		sampled.add('x', sampled.length());
+		breakLeaf(sampled);
+		int edits = 0;
+		try {
+			while (edits < 1000) {
+				sampled.add('x', sampled.length());
+				edits++;
+			}
+			fail();
+		} catch (TreeCheckException e) {
+			// the appends have moved it down by then
+			assertEquals("size 3 of 'b' is not 1 + 2 + 1", e.getProblem());
+		}
+		assertEquals(127, edits);
+	}
+
+	@Test
+	public void testExplicitCheck() throws Exception {
+		EditTree t = brokenTree(CheckLevel.OFF);
+		try {
+			t.check();
+			fail();
+		} catch (TreeCheckException e) {
+			assertEquals("LLLLL", e.getPath());
+		}
+		Random r = new Random(50);
+		EditTree good = new EditTree("start");
+		good.setCheckLevel(CheckLevel.FULL);
+		for (int i = 0; i < 500; i++) {
+			if (good.length() > 0 && r.nextInt(3) == 0)
+				good.delete(r.nextInt(good.length()));
+			else
+				good.add((char) ('a' + r.nextInt(26)), r.nextInt(good.length() + 1));
+		}
+		assertEquals(CheckLevel.FULL, good.split(good.length() / 2).getCheckLevel());
+	}
+
+	@Test
+	public void testLazyNodesStayLazy() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1 << 20; i++)
+			sb.append((char) ('a' + i % 26));
+		EditTree t = new EditTree(sb.toString());
+		t.setCheckLevel(CheckLevel.FULL);
+		t.add('x', 1000);
+		int before = materialized(t.getRoot());
+		t.check();
+		assertEquals(before, materialized(t.getRoot()));
+		// only the path to the edit was turned into nodes
+		assertTrue(before < 2 * t.height());
+	}
+
+	@Test
+	public void testBrokenLazyNodes() throws Exception {
+		Field balance = Node.class.getDeclaredField("balance");
+		balance.setAccessible(true);
+		// the two halves of the root are lazy source nodes of 63 characters
+		EditTree t = tree(CheckLevel.OFF);
+		balance.set(t.getRoot().getLeft(), Node.Code.LEFT);
+		try {
+			t.check();
+			fail();
+		} catch (TreeCheckException e) {
+			assertEquals("L", e.getPath());
+		}
+		t = tree(CheckLevel.OFF);
+		balance.set(t.getRoot(), Node.Code.LEFT);
+		try {
+			t.check();
+			fail();
+		} catch (TreeCheckException e) {
+			assertEquals("R", e.getPath());
+			assertTrue(e.getProblem(), e.getProblem().contains("height 5"));
+		}
+		assertEquals(0, materialized(t.getRoot()));
+
+		// an edit on the other side still finds the broken lazy node
+		t = tree(CheckLevel.FULL);
+		balance.set(t.getRoot().getLeft(), Node.Code.LEFT);
+		try {
+			t.add('x', t.length());
+			fail();
+		} catch (TreeCheckException e) {
+			assertEquals("L", e.getPath());
+		}
+
+		t = tree(CheckLevel.PATH_ONLY);
+		balance.set(t.getRoot(), Node.Code.RIGHT);
+		try {
+			t.delete(0);
+			fail();
+		} catch (TreeCheckException e) {
+			// found by going down the taller side into lazy nodes
+			assertEquals("L", e.getPath());
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of source nodes of the subtree that have been turned
+	 *         into nodes
+	 */
+	private static int materialized(Node n) {
+		if (n == Node.NULL_NODE || LazyNode.isLazy(n))
+			return 0;
+		return (n instanceof SourceNode ? 1 : 0) + materialized(n.getLeft()) + materialized(n.getRight());
+	}
+}
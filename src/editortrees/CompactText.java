@@ -0,0 +1,136 @@
+package editortrees;
+
+import java.util.Arrays;
+
+/**
+ * A piece of text that keeps its characters in one byte each (Latin-1) as
+ * long as all of them are below 256, and two bytes each otherwise, the way
+ * the JDK's compact strings do. The leaves of trees built from a String or by
+ * an EditTreeBuilder read their characters from here until they are edited.
+ * Two compact texts are equal if they hold the same characters, which lets
+ * an {@link Interner} share them.
+ * 
+ * @author zhang
+ *
+ */
+final class CompactText implements TextSource, CharSequence {
+	private final byte[] latin1;
+	private final char[] utf16;
+	private int hash;
+
+	/**
+	 * wrap the characters, exactly one of the arrays must be null
+	 * 
+	 * @param latin1
+	 * @param utf16
+	 */
+	CompactText(byte[] latin1, char[] utf16) {
+		this.latin1 = latin1;
+		this.utf16 = utf16;
+	}
+
+	/**
+	 * 
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @return a copy of the characters of s from start to end, in the
+	 *         narrowest form they fit in
+	 */
+	static CompactText of(CharSequence s, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= 256) {
+				char[] chars = new char[end - start];
+				for (int j = start; j < end; j++)
+					chars[j - start] = s.charAt(j);
+				return new CompactText(null, chars);
+			}
+			bytes[i - start] = (byte) c;
+		}
+		return new CompactText(bytes, null);
+	}
+
+	/**
+	 * 
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @param op
+	 * @return the characters of s from start to end rewritten by op, in the
+	 *         narrowest form they fit in, copied only once
+	 */
+	static CompactText transformed(TextSource s, int start, int end, CharUnaryOperator op) {
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			char c = op.apply(s.charAt(i));
+			if (c >= 256) {
+				char[] chars = new char[end - start];
+				for (int j = 0; j < i - start; j++)
+					chars[j] = (char) (bytes[j] & 0xff);
+				chars[i - start] = c;
+				for (int j = i + 1; j < end; j++)
+					chars[j - start] = op.apply(s.charAt(j));
+				return new CompactText(null, chars);
+			}
+			bytes[i - start] = (byte) c;
+		}
+		return new CompactText(bytes, null);
+	}
+
+	/**
+	 * 
+	 * @return true if every character takes one byte
+	 */
+	boolean isLatin1() {
+		return latin1 != null;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (latin1 != null)
+			return (char) (latin1[index] & 0xff);
+		return utf16[index];
+	}
+
+	@Override
+	public int length() {
+		return latin1 != null ? latin1.length : utf16.length;
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return of(this, start, end);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CompactText))
+			return false;
+		CompactText other = (CompactText) obj;
+		if (latin1 != null && other.latin1 != null)
+			return Arrays.equals(latin1, other.latin1);
+		if (utf16 != null && other.utf16 != null)
+			return Arrays.equals(utf16, other.utf16);
+		// of() always picks the narrow form when it can
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = latin1 != null ? Arrays.hashCode(latin1) : Arrays.hashCode(utf16);
+			hash = h;
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return new StringBuilder(length()).append(this).toString();
+	}
+}
@@ -0,0 +1,52 @@
+package editortrees;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A subtree that a {@link Compressor} encoded and compressed in memory. It is
+ * decompressed, with its exact shape, the first time anything below this node
+ * is needed.
+ *
+ * @author zhang
+ *
+ */
+class CompressedNode extends LazyNode {
+	private final Compressor compressor;
+	private byte[] data;
+	private final int rawLength;
+	private Node[] lazy;
+	private final long saved;
+
+	/**
+	 *
+	 * @param original
+	 *            the subtree that was compressed
+	 * @param compressor
+	 * @param data
+	 *            the compressed encoding of the subtree
+	 * @param rawLength
+	 *            length of the encoding before compression
+	 * @param lazy
+	 *            lazy nodes inside the subtree, which are kept as they are
+	 * @param saved
+	 *            estimated number of bytes freed by compressing the subtree
+	 */
+	CompressedNode(Node original, Compressor compressor, byte[] data, int rawLength, Node[] lazy, long saved) {
+		super(original.size(), original.getBalance());
+		this.compressor = compressor;
+		this.data = data;
+		this.rawLength = rawLength;
+		this.lazy = lazy;
+		this.saved = saved;
+	}
+
+	@Override
+	protected void materialize() {
+		long start = System.nanoTime();
+		Node root = SubtreeCodec.read(ByteBuffer.wrap(Lz77.decompress(data, rawLength)), lazy);
+		install(root.getElement(), root.getLeft(), root.getRight());
+		compressor.decompressed(saved, data.length, System.nanoTime() - start);
+		data = null;
+		lazy = null;
+	}
+}
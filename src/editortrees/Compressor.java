@@ -0,0 +1,306 @@
+package editortrees;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compresses the subtrees of a tree that have not been used for a while, and
+ * keeps them in memory in that form until they are needed again.
+ *
+ * The tree is cut into pages the same way a {@link Pager} does: the subtrees
+ * of height at most pageHeight whose parent is higher. Every access to the
+ * tree stamps the page it went through with the time. Every so often (at
+ * most twice per idle time, and only when the tree is used) or when
+ * compressIdle() is called, pages that have not been stamped for the idle
+ * time are encoded with their exact shape, compressed with {@link Lz77} and
+ * replaced by a {@link CompressedNode}. charAt, get, find, toString and all
+ * edits decompress them again transparently.
+ *
+ * Nodes above a compressed page that a {@link TreeVersion} shares are copied
+ * rather than changed, so snapshots read on other threads are left alone.
+ *
+ * A compressor belongs to one tree and is not thread safe, just like
+ * EditTree: an editor that wants documents it does not touch at all to be
+ * compressed calls compressIdle() from its own timer, on the thread that
+ * edits the tree.
+ *
+ * @author zhang
+ *
+ */
+public class Compressor {
+	/**
+	 * pages of height 10 hold between 2^10 and 2^11 nodes when balanced
+	 */
+	public static final int DEFAULT_PAGE_HEIGHT = 10;
+
+	/**
+	 * least time between two sweeps started by accesses
+	 */
+	private static final long MIN_SWEEP_NANOS = 50000000L;
+
+	/**
+	 * estimated heap taken by a node, a lazy leaf without its text, and a
+	 * compressed node without its data
+	 */
+	private static final int NODE_BYTES = 32;
+	private static final int LEAF_BYTES = 96;
+	private static final int COMPRESSED_BYTES = 80;
+
+	private final long idleNanos;
+	private final int pageHeight;
+	private EditTree tree;
+
+	private Map<Node, Long> lastUse = new IdentityHashMap<Node, Long>();
+	private long lastSweep;
+
+	private long compressions;
+	private long decompressions;
+	private long compressNanos;
+	private long decompressNanos;
+	private long bytesSaved;
+	private long compressedBytes;
+
+	/**
+	 *
+	 * @param idleMillis
+	 *            time after which an unused page is compressed
+	 */
+	public Compressor(long idleMillis) {
+		this(idleMillis, DEFAULT_PAGE_HEIGHT);
+	}
+
+	/**
+	 *
+	 * @param idleMillis
+	 *            time after which an unused page is compressed
+	 * @param pageHeight
+	 *            height of the subtrees that are compressed as a unit
+	 */
+	public Compressor(long idleMillis, int pageHeight) {
+		if (idleMillis < 0 || pageHeight < 0)
+			throw new IllegalArgumentException();
+		this.idleNanos = idleMillis * 1000000L;
+		this.pageHeight = pageHeight;
+	}
+
+	/**
+	 * start watching a tree; nothing is compressed before it has been idle
+	 *
+	 * @param tree
+	 */
+	void attach(EditTree tree) {
+		this.tree = tree;
+		this.lastUse = new IdentityHashMap<Node, Long>();
+		this.lastSweep = System.nanoTime();
+	}
+
+	/**
+	 * Record an access to the tree at pos, and compress idle pages if it is
+	 * time for a sweep. Called by the tree after every operation.
+	 *
+	 * @param tree
+	 * @param pos
+	 *            position the operation worked at
+	 */
+	void accessed(EditTree tree, int pos) {
+		int length = tree.length();
+		long now = System.nanoTime();
+		if (length > 0) {
+			pos = Math.max(0, Math.min(pos, length - 1));
+			Node current = tree.getRoot();
+			int height = tree.height();
+			while (height > pageHeight && !LazyNode.isLazy(current)) {
+				int rank = current.getRank();
+				if (pos == rank)
+					break;
+				if (pos < rank) {
+					height -= current.getBalance() == Node.Code.RIGHT ? 2 : 1;
+					current = current.getLeft();
+				} else {
+					height -= current.getBalance() == Node.Code.LEFT ? 2 : 1;
+					pos -= rank + 1;
+					current = current.getRight();
+				}
+			}
+			lastUse.put(current, now);
+		}
+		if (now - lastSweep >= Math.max(idleNanos / 2, MIN_SWEEP_NANOS))
+			sweep(now);
+	}
+
+	/**
+	 * Compress every page of the tree that has not been used for the idle
+	 * time.
+	 *
+	 * @return number of pages compressed
+	 */
+	public int compressIdle() {
+		if (tree == null)
+			throw new IllegalStateException("not attached to a tree");
+		return sweep(System.nanoTime());
+	}
+
+	/**
+	 * one page of the tree, with the position of its first node
+	 */
+	private static class Page {
+		final int pos;
+		final Node root;
+
+		Page(int pos, Node root) {
+			this.pos = pos;
+			this.root = root;
+		}
+	}
+
+	private int sweep(long now) {
+		lastSweep = now;
+		List<Page> idle = new ArrayList<Page>();
+		Map<Node, Long> stamps = new IdentityHashMap<Node, Long>();
+		collect(0, tree.getRoot(), tree.height(), now, idle, stamps);
+		lastUse = stamps;
+		int compressed = 0;
+		for (Page page : idle) {
+			Node replacement = compress(page.root);
+			if (replacement != null) {
+				tree.replacePage(page.root, page.pos, replacement);
+				lastUse.remove(page.root);
+				compressed++;
+			}
+		}
+		return compressed;
+	}
+
+	/**
+	 * walk the tree down to the pages, keeping the stamps of the pages still
+	 * there. A page seen for the first time counts as used now.
+	 */
+	private void collect(int pos, Node current, int height, long now, List<Page> idle, Map<Node, Long> stamps) {
+		if (current == Node.NULL_NODE || LazyNode.isLazy(current))
+			return;
+		if (height <= pageHeight) {
+			Long stamp = lastUse.get(current);
+			if (stamp == null)
+				stamp = now;
+			stamps.put(current, stamp);
+			if (current != tree.getRoot() && now - stamp >= idleNanos)
+				idle.add(new Page(pos, current));
+			return;
+		}
+		int leftHeight = height - (current.getBalance() == Node.Code.RIGHT ? 2 : 1);
+		int rightHeight = height - (current.getBalance() == Node.Code.LEFT ? 2 : 1);
+		collect(pos, current.getLeft(), leftHeight, now, idle, stamps);
+		collect(pos + current.getRank() + 1, current.getRight(), rightHeight, now, idle, stamps);
+	}
+
+	/**
+	 *
+	 * @param root
+	 * @return the node that replaces the page, null if compressing would not
+	 *         save any memory
+	 */
+	private CompressedNode compress(Node root) {
+		long start = System.nanoTime();
+		int rawLength = SubtreeCodec.encodedSize(root);
+		ByteBuffer raw = ByteBuffer.allocate(rawLength);
+		List<Node> lazy = new ArrayList<Node>();
+		SubtreeCodec.write(root, raw, lazy);
+		byte[] data = Lz77.compress(raw.array(), rawLength);
+		long saved = heapEstimate(root) - data.length - COMPRESSED_BYTES - 4 * lazy.size();
+		compressNanos += System.nanoTime() - start;
+		if (saved <= 0)
+			return null;
+		compressions++;
+		bytesSaved += saved;
+		compressedBytes += data.length;
+		return new CompressedNode(root, this, data, rawLength, lazy.toArray(new Node[0]), saved);
+	}
+
+	/**
+	 *
+	 * @return estimated number of bytes the subtree takes, not counting lazy
+	 *         nodes other than compact leaves
+	 */
+	private static long heapEstimate(Node n) {
+		if (n == Node.NULL_NODE)
+			return 0;
+		if (n instanceof SourceNode && LazyNode.isLazy(n)) {
+			CompactText text = ((SourceNode) n).getCompactText();
+			if (text == null)
+				return 0;
+			return LEAF_BYTES + (text.isLatin1() ? 1 : 2) * (long) n.size();
+		}
+		if (LazyNode.isLazy(n))
+			return 0;
+		return NODE_BYTES + heapEstimate(n.getLeft()) + heapEstimate(n.getRight());
+	}
+
+	/**
+	 * count a page that was decompressed
+	 *
+	 * @param saved
+	 *            what compressing it had saved
+	 * @param dataLength
+	 *            its compressed size
+	 * @param nanos
+	 *            time it took
+	 */
+	void decompressed(long saved, int dataLength, long nanos) {
+		decompressions++;
+		decompressNanos += nanos;
+		bytesSaved -= saved;
+		compressedBytes -= dataLength;
+	}
+
+	/**
+	 *
+	 * @return the number of pages compressed so far
+	 */
+	public long getCompressions() {
+		return compressions;
+	}
+
+	/**
+	 *
+	 * @return the number of pages decompressed so far
+	 */
+	public long getDecompressions() {
+		return decompressions;
+	}
+
+	/**
+	 *
+	 * @return estimated number of bytes of heap that the pages compressed now
+	 *         would take if they were not
+	 */
+	public long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	/**
+	 *
+	 * @return number of bytes held by the pages compressed now
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	/**
+	 *
+	 * @return average time to compress one page, in nanoseconds
+	 */
+	public long getAverageCompressNanos() {
+		return compressions == 0 ? 0 : compressNanos / compressions;
+	}
+
+	/**
+	 *
+	 * @return average time to decompress one page, in nanoseconds
+	 */
+	public long getAverageDecompressNanos() {
+		return decompressions == 0 ? 0 : decompressNanos / decompressions;
+	}
+}
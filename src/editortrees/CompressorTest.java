@@ -0,0 +1,112 @@
+package editortrees;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.Compressor} and {@link editortrees.Lz77}
+ *
+ */
+public class CompressorTest {
+
+	private static String logText(Random r, int n) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < n)
+			sb.append("2024-05-0" + r.nextInt(10) + " INFO request " + r.nextInt(1000) + " served in "
+					+ r.nextInt(100) + "ms\n");
+		sb.setLength(n);
+		return sb.toString();
+	}
+
+	@Test
+	public void testLz77RoundTrip() {
+		Random r = new Random(35);
+		for (int round = 0; round < 200; round++) {
+			byte[] in = new byte[r.nextInt(3000)];
+			int alphabet = 1 + r.nextInt(255);
+			for (int i = 0; i < in.length; i++)
+				in[i] = (byte) (r.nextInt(4) == 0 && i > 10 ? in[i - 1 - r.nextInt(10)] : r.nextInt(alphabet));
+			assertArrayEquals(in, Lz77.decompress(Lz77.compress(in, in.length), in.length));
+		}
+		byte[] same = new byte[100000];
+		byte[] packed = Lz77.compress(same, same.length);
+		assertTrue(packed.length < 1000);
+		assertArrayEquals(same, Lz77.decompress(packed, same.length));
+	}
+
+	@Test
+	public void testCompressAndRead() {
+		String s = logText(new Random(350), 200000);
+		EditTree t = new EditTree(s);
+		Compressor compressor = new Compressor(0, 6);
+		t.setCompressor(compressor);
+		assertTrue(compressor.compressIdle() > 0);
+		assertTrue(compressor.getBytesSaved() > 0);
+		assertEquals(0, compressor.getDecompressions());
+
+		assertEquals(s.charAt(123456), t.charAt(123456));
+		assertTrue(compressor.getDecompressions() > 0);
+		assertEquals(s.substring(5000, 6000), t.get(5000, 1000));
+		assertEquals(s.indexOf("request 999 served"), t.find("request 999 served"));
+		assertEquals(s, t.toString());
+	}
+
+	@Test
+	public void testEditsOnCompressedTree() {
+		Random r = new Random(351);
+		String s = logText(r, 50000);
+		EditTree t = new EditTree(s);
+		EditTree plain = new EditTree(s);
+		Compressor compressor = new Compressor(0, 5);
+		t.setCompressor(compressor);
+		StringBuilder sb = new StringBuilder(s);
+		for (int i = 0; i < 2000; i++) {
+			int pos = r.nextInt(sb.length());
+			if (r.nextBoolean()) {
+				t.add('#', pos);
+				plain.add('#', pos);
+				sb.insert(pos, '#');
+			} else {
+				assertEquals(sb.charAt(pos), t.delete(pos));
+				plain.delete(pos);
+				sb.deleteCharAt(pos);
+			}
+			if (i % 100 == 0)
+				compressor.compressIdle();
+		}
+		assertEquals(sb.toString(), t.toString());
+		assertEquals(plain.toDebugString(), t.toDebugString());
+		assertEquals(plain.totalRotationCount(), t.totalRotationCount());
+		assertTrue(compressor.getCompressions() > 0);
+	}
+
+	@Test
+	public void testRecentPagesStay() {
+		EditTree t = new EditTree(logText(new Random(352), 100000));
+		Compressor compressor = new Compressor(3600 * 1000);
+		t.setCompressor(compressor);
+		t.charAt(50000);
+		assertEquals(0, compressor.compressIdle());
+		assertEquals(0, compressor.getCompressions());
+	}
+
+	@Test
+	public void testSnapshotsAreNotCompressed() {
+		String s = logText(new Random(353), 200000);
+		EditTree t = new EditTree(s);
+		t.add('!', 100000);
+		TreeVersion version = t.snapshot();
+		Compressor compressor = new Compressor(0, 6);
+		t.setCompressor(compressor);
+		assertTrue(compressor.compressIdle() > 0);
+		assertTrue(PagerTest.countLazy(t.getRoot(), CompressedNode.class) > 0);
+		// the version read by other threads was not changed in place
+		assertEquals(0, PagerTest.countLazy(version.getRoot(), CompressedNode.class));
+		assertEquals(t.toString(), version.toString());
+	}
+}
@@ -0,0 +1,363 @@
+package editortrees;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An EditTree that many threads can read while one of them edits it, e.g. an
+ * indexer, a spellchecker and a renderer reading while the UI thread types.
+ *
+ * Writers take the write lock of a StampedLock for the edit itself, which is
+ * O(log n). Before each edit the root is shared, so the edit copies the path
+ * it changes and leaves every node of the version readers may be walking as
+ * it was; the new root is published when the edit is done. Readers take an
+ * optimistic stamp, read the published root without locking, and validate
+ * the stamp afterwards. Only when a write got in between do they read again,
+ * under the read lock. Snapshots and iterators hold on to the version
+ * published when they were taken and never fail with a
+ * ConcurrentModificationException.
+ *
+ * The tree must only be used through this wrapper afterwards. Trees with a
+ * pager or a compressor are not supported, since those move nodes of the
+ * tree around on reads.
+ *
+ * @author zhang
+ *
+ */
+public class ConcurrentEditTree implements Iterable<Character> {
+	private final EditTree tree;
+	private final StampedLock lock = new StampedLock();
+	/**
+	 * root of the last version published by a writer
+	 */
+	private Node root;
+	private final LongAdder optimisticReads = new LongAdder();
+	private final LongAdder retriedReads = new LongAdder();
+
+	/**
+	 * Let many threads read tree while one edits it
+	 *
+	 * @param tree
+	 * @throws IllegalArgumentException
+	 *             if tree has a pager or a compressor
+	 */
+	public ConcurrentEditTree(EditTree tree) throws IllegalArgumentException {
+		if (tree.getPager() != null || tree.getCompressor() != null)
+			throw new IllegalArgumentException("paged or compressed trees can not be read concurrently");
+		this.tree = tree;
+		this.root = tree.share();
+	}
+
+	/**
+	 * a read of the published version
+	 */
+	private abstract static class Read<T> {
+		abstract T read(Node root);
+	}
+
+	/**
+	 * read optimistically, and again under the read lock if a writer got in
+	 * the way
+	 */
+	private <T> T read(Read<T> r) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			T result = null;
+			boolean failed = false;
+			try {
+				result = r.read(root);
+			} catch (RuntimeException e) {
+				// a torn read of a version being published, or a real error
+				// that the read under the lock throws again
+				failed = true;
+			} catch (StackOverflowError e) {
+				failed = true;
+			}
+			if (!failed && lock.validate(stamp)) {
+				optimisticReads.increment();
+				return result;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			retriedReads.increment();
+			return r.read(root);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of characters
+	 */
+	public int length() {
+		return read(new Read<Integer>() {
+			@Override
+			Integer read(Node root) {
+				return root.size();
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @param pos
+	 * @return the character at pos
+	 * @throws IndexOutOfBoundsException
+	 */
+	public char charAt(final int pos) throws IndexOutOfBoundsException {
+		Character c = read(new Read<Character>() {
+			@Override
+			Character read(Node root) {
+				if (pos < 0 || pos >= root.size())
+					return null;
+				return root.get(pos);
+			}
+		});
+		if (c == null)
+			throw new IndexOutOfBoundsException();
+		return c;
+	}
+
+	/**
+	 *
+	 * @param pos
+	 * @param length
+	 * @return the text from pos of that length
+	 * @throws IndexOutOfBoundsException
+	 */
+	public String get(final int pos, final int length) throws IndexOutOfBoundsException {
+		String s = read(new Read<String>() {
+			@Override
+			String read(Node root) {
+				if (pos < 0 || length < 0 || pos + length > root.size())
+					return null;
+				StringBuilder sb = new StringBuilder(length);
+				root.get(pos, pos + length, sb);
+				return sb.toString();
+			}
+		});
+		if (s == null)
+			throw new IndexOutOfBoundsException();
+		return s;
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @return position of the first occurrence of s, -1 if there is none
+	 */
+	public int find(String s) {
+		return find(s, 0);
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @param pos
+	 * @return position of the first occurrence of s that does not start before
+	 *         pos, -1 if there is none
+	 */
+	public int find(final String s, final int pos) {
+		if (s.length() == 0)
+			return pos;
+		return read(new Read<Integer>() {
+			@Override
+			Integer read(Node root) {
+				int l = root.find(s, pos, new LinkedList<Integer>());
+				return l == -1 ? -1 : l - s.length() + 1;
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return read(new Read<String>() {
+			@Override
+			String read(Node root) {
+				StringBuilder sb = new StringBuilder(root.size());
+				root.get(0, root.size(), sb);
+				return sb.toString();
+			}
+		});
+	}
+
+	/**
+	 * Take the version published now, which can then be read for as long as
+	 * needed without any locking, e.g. by a full text search
+	 *
+	 * @return the published version
+	 */
+	public TreeVersion snapshot() {
+		return read(new Read<TreeVersion>() {
+			@Override
+			TreeVersion read(Node root) {
+				return new TreeVersion(root);
+			}
+		});
+	}
+
+	/**
+	 * iterate over the characters of the version published now, without
+	 * holding any lock
+	 */
+	@Override
+	public Iterator<Character> iterator() {
+		return snapshot().iterator();
+	}
+
+	/**
+	 * an edit of the tree
+	 */
+	private abstract static class Write<T> {
+		abstract T write(EditTree tree);
+	}
+
+	/**
+	 * edit under the write lock, then publish the new version
+	 */
+	private <T> T write(Write<T> w) {
+		long stamp = lock.writeLock();
+		try {
+			return w.write(tree);
+		} finally {
+			root = tree.share();
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public void add(final char c) {
+		write(new Write<Void>() {
+			@Override
+			Void write(EditTree tree) {
+				tree.add(c);
+				return null;
+			}
+		});
+	}
+
+	public void add(final char c, final int pos) throws IndexOutOfBoundsException {
+		write(new Write<Void>() {
+			@Override
+			Void write(EditTree tree) {
+				tree.add(c, pos);
+				return null;
+			}
+		});
+	}
+
+	public void insert(final int pos, final String s) throws IndexOutOfBoundsException {
+		write(new Write<Void>() {
+			@Override
+			Void write(EditTree tree) {
+				tree.insert(pos, s);
+				return null;
+			}
+		});
+	}
+
+	public char delete(final int pos) throws IndexOutOfBoundsException {
+		return write(new Write<Character>() {
+			@Override
+			Character write(EditTree tree) {
+				return tree.delete(pos);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @param start
+	 * @param length
+	 * @return the deleted text
+	 * @throws IndexOutOfBoundsException
+	 *             as {@link EditTree#delete(int, int)}
+	 */
+	public String delete(final int start, final int length) throws IndexOutOfBoundsException {
+		return write(new Write<String>() {
+			@Override
+			String write(EditTree tree) {
+				return tree.delete(start, length).toString();
+			}
+		});
+	}
+
+	public void applyEdits(List<Edit> edits) throws IndexOutOfBoundsException, IllegalArgumentException {
+		final List<Edit> copy = new ArrayList<Edit>(edits);
+		write(new Write<Void>() {
+			@Override
+			Void write(EditTree tree) {
+				tree.applyEdits(copy);
+				return null;
+			}
+		});
+	}
+
+	public int[] insertAtAll(final int[] sortedPositions, final CharSequence text)
+			throws IndexOutOfBoundsException, IllegalArgumentException {
+		return write(new Write<int[]>() {
+			@Override
+			int[] write(EditTree tree) {
+				return tree.insertAtAll(sortedPositions, text);
+			}
+		});
+	}
+
+	public int[] deleteAtAll(final int[] sortedPositions, final int length)
+			throws IndexOutOfBoundsException, IllegalArgumentException {
+		return write(new Write<int[]>() {
+			@Override
+			int[] write(EditTree tree) {
+				return tree.deleteAtAll(sortedPositions, length);
+			}
+		});
+	}
+
+	/**
+	 * Listeners are called by the writer, while it holds the write lock, so
+	 * they must not read through this wrapper from another thread and wait
+	 * for it.
+	 *
+	 * @param listener
+	 */
+	public void addEditListener(final EditListener listener) {
+		write(new Write<Void>() {
+			@Override
+			Void write(EditTree tree) {
+				tree.addEditListener(listener);
+				return null;
+			}
+		});
+	}
+
+	public void removeEditListener(final EditListener listener) {
+		write(new Write<Void>() {
+			@Override
+			Void write(EditTree tree) {
+				tree.removeEditListener(listener);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @return the number of reads that did not have to take the read lock
+	 */
+	public long getOptimisticReads() {
+		return optimisticReads.sum();
+	}
+
+	/**
+	 *
+	 * @return the number of reads that were done again under the read lock
+	 */
+	public long getRetriedReads() {
+		return retriedReads.sum();
+	}
+}
@@ -0,0 +1,142 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ConcurrentEditTree}
+ *
+ */
+public class ConcurrentEditTreeTest {
+
+	private static String text(Iterator<Character> it) {
+		StringBuilder sb = new StringBuilder();
+		while (it.hasNext())
+			sb.append(it.next());
+		return sb.toString();
+	}
+
+	@Test
+	public void testIteratorKeepsItsVersion() {
+		Random r = new Random(42);
+		StringBuilder model = new StringBuilder();
+		for (int i = 0; i < 3000; i++)
+			model.append((char) ('a' + r.nextInt(26)));
+		ConcurrentEditTree t = new ConcurrentEditTree(new EditTree(model.toString()));
+		List<Iterator<Character>> iterators = new ArrayList<Iterator<Character>>();
+		List<String> versions = new ArrayList<String>();
+		for (int round = 0; round < 400; round++) {
+			if (round % 20 == 0) {
+				iterators.add(t.iterator());
+				versions.add(model.toString());
+			}
+			int pos = r.nextInt(model.length());
+			switch (r.nextInt(4)) {
+			case 0:
+				t.add('#', pos);
+				model.insert(pos, '#');
+				break;
+			case 1:
+				t.insert(pos, "insert");
+				model.insert(pos, "insert");
+				break;
+			case 2:
+				int length = Math.min(r.nextInt(40), model.length() - pos - 1);
+				assertEquals(model.substring(pos, pos + length), t.delete(pos, length));
+				model.delete(pos, pos + length);
+				break;
+			default:
+				int[] moved = t.insertAtAll(new int[] { pos / 2, pos }, "||");
+				model.insert(pos, "||").insert(pos / 2, "||");
+				assertEquals(pos + 4, moved[1]);
+			}
+			assertEquals(model.length(), t.length());
+			assertEquals(model.charAt(pos), t.charAt(pos));
+		}
+		assertEquals(model.toString(), t.toString());
+		for (int i = 0; i < iterators.size(); i++)
+			assertEquals(versions.get(i), text(iterators.get(i)));
+	}
+
+	@Test
+	public void testReads() {
+		ConcurrentEditTree t = new ConcurrentEditTree(new EditTree("one two three"));
+		assertEquals("two", t.get(4, 3));
+		assertEquals(8, t.find("three"));
+		assertEquals(-1, t.find("four"));
+		assertEquals(8, t.find("t", 5));
+		assertEquals('e', t.delete(12));
+		assertEquals("one two thre", t.toString());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testCharAtOutOfBounds() {
+		new ConcurrentEditTree(new EditTree("abc")).charAt(3);
+	}
+
+	/**
+	 * the writer only ever inserts and deletes "()" pairs, so every version a
+	 * reader sees is balanced
+	 */
+	@Test
+	public void testReadersNeverSeeTornText() throws InterruptedException {
+		final ConcurrentEditTree t = new ConcurrentEditTree(new EditTree("(()())"));
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			Thread reader = new Thread() {
+				@Override
+				public void run() {
+					while (!stop.get()) {
+						String s = t.toString();
+						if (!balanced(s))
+							failure.set(s);
+						int length = t.length();
+						if (length % 2 != 0)
+							failure.set("odd length " + length);
+						if (t.find(")(") != -1 && t.find("(") == -1)
+							failure.set("find");
+					}
+				}
+			};
+			readers.add(reader);
+			reader.start();
+		}
+		Random r = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			int length = t.length();
+			if (length > 2 && r.nextInt(3) == 0) {
+				int pos = t.find("()", r.nextInt(length - 1));
+				if (pos != -1 && pos + 2 < length)
+					t.delete(pos, 2);
+			} else {
+				t.insert(r.nextInt(length + 1), "()");
+			}
+		}
+		stop.set(true);
+		for (Thread reader : readers)
+			reader.join();
+		assertEquals(null, failure.get());
+		assertTrue(balanced(t.toString()));
+	}
+
+	private static boolean balanced(String s) {
+		int depth = 0;
+		for (int i = 0; i < s.length(); i++) {
+			depth += s.charAt(i) == '(' ? 1 : -1;
+			if (depth < 0)
+				return false;
+		}
+		return depth == 0;
+	}
+}
@@ -0,0 +1,81 @@
+package editortrees;
+
+/**
+ * A range of the text with a value attached, such as a style, a search hit
+ * or a diagnostic, kept by a {@link DecorationSet}. The range follows the
+ * edits made to the tree.
+ *
+ * @author zhang
+ *
+ * @param <T>
+ *            type of the value
+ */
+public final class Decoration<T> {
+	private final DecorationSet<T> owner;
+	private final T value;
+
+	// node of the treap of the owner
+	final int priority;
+	Decoration<T> left;
+	Decoration<T> right;
+	Decoration<T> parent;
+	int start;
+	int end;
+	/**
+	 * largest end in this subtree
+	 */
+	int maxEnd;
+	/**
+	 * shift not yet applied to the children
+	 */
+	int shift;
+	boolean removed;
+
+	Decoration(DecorationSet<T> owner, int start, int end, T value, int priority) {
+		this.owner = owner;
+		this.start = start;
+		this.end = end;
+		this.maxEnd = end;
+		this.value = value;
+		this.priority = priority;
+	}
+
+	/**
+	 *
+	 * @return position of the first character of the range
+	 */
+	public int getStart() {
+		owner.settle(this);
+		return start;
+	}
+
+	/**
+	 *
+	 * @return position after the last character of the range
+	 */
+	public int getEnd() {
+		owner.settle(this);
+		return end;
+	}
+
+	public T getValue() {
+		return value;
+	}
+
+	/**
+	 * take this decoration out of its set
+	 */
+	public void remove() {
+		if (!removed)
+			owner.remove(this);
+	}
+
+	public boolean isRemoved() {
+		return removed;
+	}
+
+	@Override
+	public String toString() {
+		return removed ? "removed" : "[" + getStart() + ", " + getEnd() + ") " + value;
+	}
+}
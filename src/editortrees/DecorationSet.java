@@ -0,0 +1,287 @@
+package editortrees;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Ranges of the text of an EditTree with values attached, e.g. the styles of
+ * a syntax highlighter or the hits of a search, that follow the edits made
+ * to the tree.
+ *
+ * The decorations are kept in a treap ordered by start, where every subtree
+ * knows the largest end in it, so the decorations overlapping a range, like
+ * the part of the text on the screen, are found in O(log n + k). An edit
+ * shifts all the decorations after it at once with a shift that is only
+ * pushed down to a subtree when it is visited. Only the decorations that
+ * cross the edit, which are usually few, and those in deleted text are
+ * changed one by one.
+ *
+ * Text inserted inside a decoration becomes part of it. Text inserted at the
+ * start or the end of a decoration does not, and deleting all the text of a
+ * decoration leaves it empty rather than removing it.
+ *
+ * @author zhang
+ *
+ * @param <T>
+ *            type of the values
+ */
+public class DecorationSet<T> implements EditListener {
+	private final EditTree tree;
+	private final Random random = new Random();
+	private Decoration<T> root;
+	private int size;
+
+	/**
+	 * Keep decorations of tree, starting with none.
+	 *
+	 * @param tree
+	 */
+	public DecorationSet(EditTree tree) {
+		this.tree = tree;
+		tree.addEditListener(this);
+	}
+
+	/**
+	 * decorate the range from start to end
+	 *
+	 * @param start
+	 * @param end
+	 * @param value
+	 * @return the decoration
+	 * @throws IndexOutOfBoundsException
+	 *             unless 0 &lt;= start &lt;= end &lt;= tree.length()
+	 */
+	public Decoration<T> add(int start, int end, T value) throws IndexOutOfBoundsException {
+		if (start < 0 || end < start || end > tree.length())
+			throw new IndexOutOfBoundsException();
+		Decoration<T> d = new Decoration<T>(this, start, end, value, random.nextInt());
+		List<Decoration<T>> parts = split(root, start);
+		root = merge(merge(parts.get(0), d), parts.get(1));
+		root.parent = null;
+		size++;
+		return d;
+	}
+
+	/**
+	 *
+	 * @param start
+	 * @param end
+	 * @return the decorations that share at least one character with the
+	 *         range from start to end, and the empty ones inside it, by start.
+	 *         For an empty range, the decorations that cover start or are
+	 *         empty there.
+	 */
+	public List<Decoration<T>> overlapping(int start, int end) {
+		List<Decoration<T>> found = new ArrayList<Decoration<T>>();
+		collect(root, start, end, found);
+		return found;
+	}
+
+	private void collect(Decoration<T> d, int start, int end, List<Decoration<T>> found) {
+		if (d == null || d.maxEnd < start)
+			return;
+		push(d);
+		collect(d.left, start, end, found);
+		if (d.start > end || d.start == end && end > start)
+			return;
+		if (d.end > start || d.start == d.end && d.start >= start)
+			found.add(d);
+		collect(d.right, start, end, found);
+	}
+
+	/**
+	 *
+	 * @return the number of decorations
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * stop following the edits of the tree and drop all decorations
+	 */
+	public void dispose() {
+		tree.removeEditListener(this);
+		for (Decoration<T> d : overlapping(0, Integer.MAX_VALUE))
+			d.removed = true;
+		root = null;
+		size = 0;
+	}
+
+	@Override
+	public void inserted(EditTree tree, int pos, int length) {
+		List<Decoration<T>> parts = split(root, pos);
+		shift(parts.get(1), length);
+		grow(parts.get(0), pos, length);
+		root = merge(parts.get(0), parts.get(1));
+		if (root != null)
+			root.parent = null;
+	}
+
+	@Override
+	public void deleted(EditTree tree, int pos, int length) {
+		List<Decoration<T>> parts = split(root, pos);
+		Decoration<T> before = parts.get(0);
+		parts = split(parts.get(1), pos + length);
+		Decoration<T> inside = parts.get(0);
+		Decoration<T> after = parts.get(1);
+		shrink(before, pos, length);
+		shrink(inside, pos, length);
+		shift(after, -length);
+		root = merge(merge(before, inside), after);
+		if (root != null)
+			root.parent = null;
+	}
+
+	/**
+	 * text rewritten in place keeps its decorations
+	 */
+	@Override
+	public void replaced(EditTree tree, int pos, int length) {
+	}
+
+	@Override
+	public void done(EditTree tree) {
+	}
+
+	/**
+	 * move all of a subtree by delta, lazily
+	 */
+	private void shift(Decoration<T> d, int delta) {
+		if (d != null) {
+			d.start += delta;
+			d.end += delta;
+			d.maxEnd += delta;
+			d.shift += delta;
+		}
+	}
+
+	private void push(Decoration<T> d) {
+		if (d.shift != 0) {
+			shift(d.left, d.shift);
+			shift(d.right, d.shift);
+			d.shift = 0;
+		}
+	}
+
+	private void update(Decoration<T> d) {
+		d.maxEnd = d.end;
+		if (d.left != null) {
+			d.maxEnd = Math.max(d.maxEnd, d.left.maxEnd);
+			d.left.parent = d;
+		}
+		if (d.right != null) {
+			d.maxEnd = Math.max(d.maxEnd, d.right.maxEnd);
+			d.right.parent = d;
+		}
+	}
+
+	/**
+	 * extend the decorations that start before pos and end after it
+	 */
+	private void grow(Decoration<T> d, int pos, int length) {
+		if (d == null || d.maxEnd <= pos)
+			return;
+		push(d);
+		grow(d.left, pos, length);
+		grow(d.right, pos, length);
+		if (d.end > pos)
+			d.end += length;
+		update(d);
+	}
+
+	/**
+	 * cut the text from pos out of the decorations that end after pos
+	 */
+	private void shrink(Decoration<T> d, int pos, int length) {
+		if (d == null || d.maxEnd <= pos)
+			return;
+		push(d);
+		shrink(d.left, pos, length);
+		shrink(d.right, pos, length);
+		if (d.start > pos)
+			d.start = Math.max(pos, d.start - length);
+		if (d.end > pos)
+			d.end = Math.max(pos, d.end - length);
+		update(d);
+	}
+
+	/**
+	 * put all pending shifts above d into d
+	 */
+	void settle(Decoration<T> d) {
+		if (d.removed)
+			throw new IllegalStateException("decoration removed");
+		List<Decoration<T>> path = new ArrayList<Decoration<T>>();
+		for (Decoration<T> p = d.parent; p != null; p = p.parent)
+			path.add(p);
+		for (int i = path.size() - 1; i >= 0; i--)
+			push(path.get(i));
+	}
+
+	void remove(Decoration<T> d) {
+		settle(d);
+		push(d);
+		Decoration<T> replacement = merge(d.left, d.right);
+		Decoration<T> p = d.parent;
+		if (replacement != null)
+			replacement.parent = p;
+		if (p == null) {
+			root = replacement;
+		} else {
+			if (p.left == d)
+				p.left = replacement;
+			else
+				p.right = replacement;
+			for (; p != null; p = p.parent)
+				update(p);
+		}
+		d.left = d.right = d.parent = null;
+		d.removed = true;
+		size--;
+	}
+
+	private Decoration<T> merge(Decoration<T> a, Decoration<T> b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (a.priority > b.priority) {
+			push(a);
+			a.right = merge(a.right, b);
+			update(a);
+			return a;
+		}
+		push(b);
+		b.left = merge(a, b.left);
+		update(b);
+		return b;
+	}
+
+	/**
+	 *
+	 * @return the decorations of d that start before pos, and the others
+	 */
+	private List<Decoration<T>> split(Decoration<T> d, int pos) {
+		List<Decoration<T>> parts = new ArrayList<Decoration<T>>(2);
+		if (d == null) {
+			parts.add(null);
+			parts.add(null);
+			return parts;
+		}
+		push(d);
+		if (d.start < pos) {
+			parts = split(d.right, pos);
+			d.right = parts.get(0);
+			update(d);
+			parts.set(0, d);
+		} else {
+			parts = split(d.left, pos);
+			d.left = parts.get(1);
+			update(d);
+			parts.set(1, d);
+		}
+		return parts;
+	}
+}
@@ -0,0 +1,114 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DecorationSet}
+ * 
+ */
+public class DecorationSetTest {
+
+	@Test
+	public void testShiftAndGrow() {
+		EditTree t = new EditTree("int x = 42;");
+		DecorationSet<String> styles = new DecorationSet<String>(t);
+		Decoration<String> keyword = styles.add(0, 3, "keyword");
+		Decoration<String> number = styles.add(8, 10, "number");
+		t.insert(0, "  ");
+		assertEquals(2, keyword.getStart());
+		assertEquals(5, keyword.getEnd());
+		t.add('1', 11);
+		assertEquals(10, number.getStart());
+		assertEquals(13, number.getEnd());
+		t.add('0', 10);
+		assertEquals(11, number.getStart());
+		t.delete(11, 3);
+		assertEquals(11, number.getStart());
+		assertEquals(11, number.getEnd());
+		assertEquals("[2, 5) keyword", keyword.toString());
+	}
+
+	@Test
+	public void testOverlapping() {
+		EditTree t = new EditTree("0123456789");
+		DecorationSet<Integer> set = new DecorationSet<Integer>(t);
+		set.add(0, 2, 0);
+		set.add(2, 5, 1);
+		set.add(4, 4, 2);
+		set.add(6, 10, 3);
+		assertEquals("[[2, 5) 1, [4, 4) 2]", set.overlapping(3, 5).toString());
+		assertEquals("[[2, 5) 1]", set.overlapping(2, 2).toString());
+		assertEquals(0, set.overlapping(5, 6).size());
+		assertEquals(4, set.overlapping(0, 10).size());
+	}
+
+	@Test
+	public void testRandom() {
+		Random r = new Random(40);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		EditTree t = new EditTree(sb.toString());
+		DecorationSet<Integer> set = new DecorationSet<Integer>(t);
+		List<Decoration<Integer>> decorations = new ArrayList<Decoration<Integer>>();
+		List<int[]> model = new ArrayList<int[]>();
+		for (int i = 0; i < 4000; i++) {
+			int pos = r.nextInt(t.length() + 1);
+			int choice = r.nextInt(10);
+			if (choice < 3) {
+				int end = Math.min(t.length(), pos + r.nextInt(30));
+				decorations.add(set.add(pos, end, i));
+				model.add(new int[] { pos, end });
+			} else if (choice == 3 && !decorations.isEmpty()) {
+				int k = r.nextInt(decorations.size());
+				decorations.remove(k).remove();
+				model.remove(k);
+			} else if (choice < 7) {
+				int length = 1 + r.nextInt(5);
+				t.insert(pos, "xxxxx".substring(0, length));
+				for (int[] m : model) {
+					if (m[0] >= pos)
+						m[0] += length;
+					if (m[1] > pos || m[0] >= pos)
+						m[1] += length;
+				}
+			} else if (pos < t.length()) {
+				int length = Math.min(1 + r.nextInt(20), t.length() - pos - 1);
+				if (length == 0)
+					continue;
+				t.delete(pos, length);
+				for (int[] m : model) {
+					if (m[0] > pos)
+						m[0] = Math.max(pos, m[0] - length);
+					if (m[1] > pos)
+						m[1] = Math.max(pos, m[1] - length);
+				}
+			}
+			assertEquals(model.size(), set.size());
+			for (int k = 0; k < model.size(); k++) {
+				assertEquals(model.get(k)[0], decorations.get(k).getStart());
+				assertEquals(model.get(k)[1], decorations.get(k).getEnd());
+			}
+			int start = r.nextInt(t.length() + 1);
+			int end = Math.min(t.length(), start + r.nextInt(50));
+			int expected = 0;
+			for (int[] m : model)
+				if (start == end ? m[0] <= start && m[1] > start || m[0] == start && m[1] == start
+						: m[0] < end && m[1] > start || m[0] == m[1] && m[0] >= start && m[0] < end)
+					expected++;
+			List<Decoration<Integer>> found = set.overlapping(start, end);
+			assertEquals(expected, found.size());
+			for (int k = 1; k < found.size(); k++)
+				assertTrue(found.get(k - 1).getStart() <= found.get(k).getStart());
+		}
+		set.dispose();
+		assertTrue(decorations.isEmpty() || decorations.get(0).isRemoved());
+	}
+}
@@ -0,0 +1,134 @@
+package editortrees;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * One session with a {@link DocumentServer}. Not thread-safe: a session
+ * waits for the answer to each request before it sends the next.
+ *
+ * @author zhang
+ *
+ */
+public class DocumentClient implements Closeable {
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	public DocumentClient(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return the handle of the document with that name, created empty if
+	 *         there was none
+	 * @throws IOException
+	 */
+	public int open(String name) throws IOException {
+		out.writeByte(DocumentServer.OPEN);
+		DocumentServer.writeString(out, name);
+		answer();
+		int handle = in.readInt();
+		in.readInt();
+		return handle;
+	}
+
+	/**
+	 * 
+	 * @param handle
+	 * @param pos
+	 * @param text
+	 * @return the length of the document right after the insert
+	 * @throws IOException
+	 * @throws IndexOutOfBoundsException
+	 */
+	public int insert(int handle, int pos, String text) throws IOException, IndexOutOfBoundsException {
+		out.writeByte(DocumentServer.INSERT);
+		out.writeInt(handle);
+		out.writeInt(pos);
+		DocumentServer.writeString(out, text);
+		answer();
+		return in.readInt();
+	}
+
+	/**
+	 * 
+	 * @param handle
+	 * @param pos
+	 * @param length
+	 * @return the length of the document right after the delete
+	 * @throws IOException
+	 * @throws IndexOutOfBoundsException
+	 */
+	public int delete(int handle, int pos, int length) throws IOException, IndexOutOfBoundsException {
+		out.writeByte(DocumentServer.DELETE);
+		out.writeInt(handle);
+		out.writeInt(pos);
+		out.writeInt(length);
+		answer();
+		return in.readInt();
+	}
+
+	public String get(int handle, int pos, int length) throws IOException, IndexOutOfBoundsException {
+		out.writeByte(DocumentServer.GET);
+		out.writeInt(handle);
+		out.writeInt(pos);
+		out.writeInt(length);
+		answer();
+		return DocumentServer.readString(in, Integer.MAX_VALUE);
+	}
+
+	public int length(int handle) throws IOException {
+		out.writeByte(DocumentServer.LENGTH);
+		out.writeInt(handle);
+		answer();
+		return in.readInt();
+	}
+
+	/**
+	 * 
+	 * @param handle
+	 * @param s
+	 * @param pos
+	 * @return position of the first occurrence of s from pos, -1 if there is
+	 *         none
+	 * @throws IOException
+	 */
+	public int find(int handle, String s, int pos) throws IOException {
+		out.writeByte(DocumentServer.FIND);
+		out.writeInt(handle);
+		out.writeInt(pos);
+		DocumentServer.writeString(out, s);
+		answer();
+		return in.readInt();
+	}
+
+	/**
+	 * send the request and read the status of its answer
+	 */
+	private void answer() throws IOException {
+		out.flush();
+		int status = in.readUnsignedByte();
+		if (status == DocumentServer.OK)
+			return;
+		String message = DocumentServer.readString(in, Integer.MAX_VALUE);
+		if (status == DocumentServer.OUT_OF_BOUNDS)
+			throw new IndexOutOfBoundsException(message);
+		throw new IllegalArgumentException(message);
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,277 @@
+package editortrees;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * A text file that is saved incrementally. Saving asks the tree for the runs
+ * of text that changed since the last save (see
+ * {@link EditTree#changesSinceCheckpoint()}) and writes only those, so two
+ * keystrokes at the two ends of a large file write two short runs:
+ *
+ * <ul>
+ * <li>if every run kept its length, the charset has a fixed number of bytes
+ * per character and the file has no journal, their bytes are overwritten in
+ * place; a lazily opened tree that still reads the old bytes of a run from
+ * the mapped file at other positions, after edits that shifted text inside
+ * it, has the runs journaled instead;</li>
+ * <li>otherwise each run is appended to a journal next to the file
+ * (name.journal) as a record of its own, and open() replays them;</li>
+ * <li>once the journal grows past a limit, the whole tree is written to a
+ * temporary file that replaces the file, and the journal is removed.</li>
+ * </ul>
+ *
+ * Every journal record ends with a CRC32, so a record torn by a crash is
+ * dropped on the next open.
+ *
+ * @author zhang
+ *
+ */
+public class DocumentFile {
+	/**
+	 * journal size above which save() rewrites the whole file
+	 */
+	public static final long DEFAULT_JOURNAL_LIMIT = 64 << 20;
+
+	private static final int RECORD_HEADER = 12;
+	private static final int RECORD_TRAILER = 4;
+
+	private final Path file;
+	private final Path journal;
+	private final Charset charset;
+	private final int width;
+	private long journalLimit = DEFAULT_JOURNAL_LIMIT;
+	private long journalSize;
+	private boolean mapped;
+
+	/**
+	 *
+	 * @param file
+	 * @param charset
+	 */
+	public DocumentFile(Path file, Charset charset) {
+		this.file = file;
+		this.journal = file.resolveSibling(file.getFileName() + ".journal");
+		this.charset = charset;
+		this.width = MappedText.width(charset);
+	}
+
+	/**
+	 *
+	 * @param limit
+	 *            journal size in bytes above which save() rewrites the whole
+	 *            file
+	 */
+	public void setJournalLimit(long limit) {
+		this.journalLimit = limit;
+	}
+
+	/**
+	 *
+	 * @return the path of the journal of this file
+	 */
+	public Path getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Open the file lazily and replay its journal. The returned tree is at a
+	 * checkpoint, ready for save().
+	 *
+	 * @return the tree
+	 * @throws IOException
+	 */
+	public EditTree open() throws IOException {
+		EditTree tree = EditTree.open(file, charset);
+		mapped = width > 0;
+		journalSize = 0;
+		if (Files.exists(journal)) {
+			try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer in = ByteBuffer.allocate((int) channel.size());
+				while (in.hasRemaining() && channel.read(in) >= 0)
+					;
+				in.flip();
+				Edit e;
+				while ((e = readRecord(in)) != null) {
+					tree.applyEdits(Collections.singletonList(e));
+					journalSize = in.position();
+				}
+				// drop a torn record at the end
+				channel.truncate(journalSize);
+			}
+		}
+		tree.checkpoint();
+		return tree;
+	}
+
+	/**
+	 * Save the changes of tree since it was opened or last saved, and take a
+	 * new checkpoint. A tree that never had a checkpoint is written
+	 * completely.
+	 *
+	 * @param tree
+	 * @throws IOException
+	 */
+	public void save(EditTree tree) throws IOException {
+		if (!tree.hasCheckpoint()) {
+			rewrite(tree);
+			tree.checkpoint();
+			return;
+		}
+		ChangeList runs = tree.changedRuns();
+		int count = runs.count();
+		if (count == 0)
+			return;
+		// decide before reading the text of any run
+		boolean inPlace = journalSize == 0 && width > 0;
+		long records = 0;
+		boolean fits = true;
+		// how far the text at the start of the run moved since the checkpoint
+		int shift = 0;
+		for (int i = 0; i < count; i++) {
+			int start = runs.start(i);
+			int end = runs.end(i);
+			inPlace = inPlace && runs.oldLength(i) == end - start
+					&& (!mapped || tree.readsInPlace(start, end, start - shift));
+			records += recordSize(end - start);
+			fits = fits && recordSize(end - start) <= Integer.MAX_VALUE;
+			shift += end - start - runs.oldLength(i);
+		}
+		if (inPlace)
+			overwrite(tree, runs);
+		else if (!fits || journalSize + records > journalLimit)
+			rewrite(tree);
+		else
+			append(tree, runs);
+		tree.checkpoint();
+	}
+
+	/**
+	 * write the text of runs that kept their length over the old bytes
+	 *
+	 * @param tree
+	 * @param runs
+	 * @throws IOException
+	 */
+	private void overwrite(EditTree tree, ChangeList runs) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			for (int i = 0; i < runs.count(); i++) {
+				int start = runs.start(i);
+				ByteBuffer bytes = charset.encode(tree.get(start, runs.end(i) - start));
+				long position = (long) start * width;
+				while (bytes.hasRemaining())
+					position += channel.write(bytes, position);
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * append one record per run to the journal, each in the positions left by
+	 * the runs before it
+	 *
+	 * @param tree
+	 * @param runs
+	 * @throws IOException
+	 */
+	private void append(EditTree tree, ChangeList runs) throws IOException {
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND)) {
+			for (int i = 0; i < runs.count(); i++) {
+				int start = runs.start(i);
+				int end = runs.end(i);
+				ByteBuffer record = record(new Edit(start, runs.oldLength(i), tree.get(start, end - start)));
+				while (record.hasRemaining())
+					channel.write(record);
+				journalSize += recordSize(end - start);
+			}
+			channel.force(false);
+		}
+	}
+
+	/**
+	 *
+	 * @param change
+	 * @return the journal record of change, ready to be written
+	 */
+	private static ByteBuffer record(Edit change) {
+		ByteBuffer record = ByteBuffer.allocate((int) recordSize(change.getText().length()));
+		record.putInt(change.getPosition());
+		record.putInt(change.getDeleteLength());
+		record.putInt(change.getText().length());
+		for (int i = 0; i < change.getText().length(); i++)
+			record.putChar(change.getText().charAt(i));
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putInt((int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * 
+	 * @param length
+	 *            of the text of a change
+	 * @return the size of its journal record
+	 */
+	private static long recordSize(int length) {
+		return RECORD_HEADER + 2L * length + RECORD_TRAILER;
+	}
+
+	/**
+	 *
+	 * @param in
+	 * @return the next complete record of the journal, null at the end or at a
+	 *         torn record
+	 */
+	private static Edit readRecord(ByteBuffer in) {
+		if (in.remaining() < RECORD_HEADER)
+			return null;
+		int start = in.position();
+		int position = in.getInt();
+		int deleteLength = in.getInt();
+		int length = in.getInt();
+		if (length < 0 || deleteLength < 0 || in.remaining() < 2 * (long) length + RECORD_TRAILER)
+			return null;
+		char[] text = new char[length];
+		for (int i = 0; i < length; i++)
+			text[i] = in.getChar();
+		CRC32 crc = new CRC32();
+		crc.update(in.array(), start, in.position() - start);
+		if (in.getInt() != (int) crc.getValue())
+			return null;
+		return new Edit(position, deleteLength, new String(text));
+	}
+
+	/**
+	 * Write the whole tree to a temporary file and move it over the file. A
+	 * tree that maps the old file keeps reading the old contents.
+	 *
+	 * @param tree
+	 * @throws IOException
+	 */
+	private void rewrite(EditTree tree) throws IOException {
+		Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				tree.writeTo(channel, charset);
+				channel.force(false);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		Files.deleteIfExists(journal);
+		journalSize = 0;
+		mapped = false;
+	}
+}
@@ -0,0 +1,371 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.EditTree#changesSinceCheckpoint()} and
+ * {@link editortrees.DocumentFile}
+ * 
+ */
+public class DocumentFileTest {
+
+	private static String randomText(Random r, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	/**
+	 * apply one random edit to both t and sb
+	 */
+	private static void randomEdit(Random r, EditTree t, StringBuilder sb) {
+		int pos = r.nextInt(sb.length() + 1);
+		int len = Math.min(r.nextInt(5), sb.length() - pos);
+		switch (r.nextInt(7)) {
+		case 0:
+			t.add('#', pos);
+			sb.insert(pos, '#');
+			break;
+		case 1:
+			if (pos < sb.length()) {
+				t.delete(pos);
+				sb.deleteCharAt(pos);
+			}
+			break;
+		case 2:
+			t.insert(pos, "XYZ");
+			sb.insert(pos, "XYZ");
+			break;
+		case 3:
+			if (pos + len < sb.length()) {
+				t.delete(pos, len);
+				sb.delete(pos, pos + len);
+			}
+			break;
+		case 4:
+			t.concatenate(t.split(pos));
+			break;
+		case 5:
+			t.applyEdits(Arrays.asList(new Edit(pos, len, "Q")));
+			sb.replace(pos, pos + len, "Q");
+			break;
+		default:
+			EditTree tail = t.split(pos);
+			t.concatenate(new EditTree("tail"));
+			tail.split(0);
+			sb.setLength(pos);
+			sb.append("tail");
+		}
+	}
+
+	@Test
+	public void testChangesSinceCheckpoint() {
+		Random r = new Random(31);
+		for (int round = 0; round < 300; round++) {
+			String s = randomText(r, r.nextInt(200));
+			EditTree t = new EditTree(s);
+			t.checkpoint();
+			assertNull(t.changesSinceCheckpoint());
+			StringBuilder sb = new StringBuilder(s);
+			int edits = r.nextInt(4);
+			for (int i = 0; i < edits; i++)
+				randomEdit(r, t, sb);
+			Edit change = t.changesSinceCheckpoint();
+			StringBuilder replayed = new StringBuilder(s);
+			if (change != null)
+				replayed.replace(change.getPosition(), change.getEnd(), change.getText());
+			assertEquals(sb.toString(), replayed.toString());
+		}
+	}
+
+	/**
+	 * small trees, where split and concatenate often meet single nodes
+	 */
+	@Test
+	public void testChangesOfSmallTrees() {
+		EditTree t = new EditTree("abcd");
+		t.checkpoint();
+		t.delete(0);
+		t.delete(1, 0);
+		Edit change = t.changesSinceCheckpoint();
+		assertEquals("bcd", new StringBuilder("abcd").replace(change.getPosition(), change.getEnd(), change.getText())
+				.toString());
+		Random r = new Random(3131);
+		for (int round = 0; round < 3000; round++) {
+			String s = randomText(r, r.nextInt(8));
+			t = new EditTree(s);
+			t.checkpoint();
+			StringBuilder sb = new StringBuilder(s);
+			int edits = 1 + r.nextInt(6);
+			for (int i = 0; i < edits; i++) {
+				randomEdit(r, t, sb);
+				change = t.changesSinceCheckpoint();
+				StringBuilder replayed = new StringBuilder(s);
+				if (change != null)
+					replayed.replace(change.getPosition(), change.getEnd(), change.getText());
+				assertEquals(t.toString(), replayed.toString());
+				assertEquals(sb.toString(), t.toString());
+			}
+		}
+	}
+
+	/**
+	 * a changed node can be spilled or compressed before the changes are
+	 * asked for
+	 */
+	@Test
+	public void testChangesOfPagedAndCompressedTrees() throws IOException {
+		String s = randomText(new Random(311), 200000);
+		Path spill = Files.createTempFile("spill", ".bin");
+		try (Pager pager = new Pager(spill, 1000)) {
+			EditTree paged = new EditTree(s);
+			paged.checkpoint();
+			paged.add('X', 5);
+			paged.setPager(pager);
+			assertTrue(pager.getEvictions() > 0);
+			assertEquals(new Edit(5, 0, "X"), paged.changesSinceCheckpoint());
+		} finally {
+			Files.deleteIfExists(spill);
+		}
+
+		EditTree compressed = new EditTree(s);
+		compressed.checkpoint();
+		compressed.add('X', 5);
+		Compressor compressor = new Compressor(0);
+		compressed.setCompressor(compressor);
+		assertTrue(compressor.compressIdle() > 0);
+		assertEquals(new Edit(5, 0, "X"), compressed.changesSinceCheckpoint());
+
+		Path file = Files.createTempFile("document", ".txt");
+		spill = Files.createTempFile("spill", ".bin");
+		Charset latin1 = StandardCharsets.ISO_8859_1;
+		try (Pager pager = new Pager(spill, 1000)) {
+			Files.write(file, s.getBytes(latin1));
+			DocumentFile document = new DocumentFile(file, latin1);
+			EditTree t = document.open();
+			t.add('X', 5);
+			t.setPager(pager);
+			document.save(t);
+			assertEquals(new StringBuilder(s).insert(5, 'X').toString(),
+					new DocumentFile(file, latin1).open().toString());
+			Files.deleteIfExists(document.getJournal());
+		} finally {
+			Files.delete(file);
+			Files.deleteIfExists(spill);
+		}
+	}
+
+	@Test
+	public void testSingleKeystrokeChange() {
+		EditTree t = new EditTree(randomText(new Random(3), 100000));
+		t.checkpoint();
+		t.add('#', 54321);
+		assertEquals(new Edit(54321, 0, "#"), t.changesSinceCheckpoint());
+		t.checkpoint();
+		t.delete(12345);
+		t.add('$', 12345);
+		Edit change = t.changesSinceCheckpoint();
+		assertEquals(12345, change.getPosition());
+		assertTrue(change.getDeleteLength() <= 2);
+		assertEquals(change.getDeleteLength(), change.getText().length());
+	}
+
+	@Test
+	public void testSaveAndReopen() throws IOException {
+		Random r = new Random(310);
+		Path file = Files.createTempFile("document", ".txt");
+		try {
+			String s = randomText(r, 50000);
+			Files.write(file, s.getBytes(StandardCharsets.ISO_8859_1));
+			DocumentFile document = new DocumentFile(file, StandardCharsets.ISO_8859_1);
+			document.setJournalLimit(2000);
+			EditTree t = document.open();
+			StringBuilder sb = new StringBuilder(s);
+			for (int i = 0; i < 200; i++) {
+				if (r.nextBoolean()) {
+					randomEdit(r, t, sb);
+				} else {
+					int pos = r.nextInt(sb.length());
+					t.delete(pos);
+					t.add('!', pos);
+					sb.setCharAt(pos, '!');
+				}
+				document.save(t);
+				assertNull(t.changesSinceCheckpoint());
+				if (i % 20 == 0)
+					assertEquals(sb.toString(), new DocumentFile(file, StandardCharsets.ISO_8859_1).open().toString());
+			}
+			assertEquals(sb.toString(), new DocumentFile(file, StandardCharsets.ISO_8859_1).open().toString());
+			Files.deleteIfExists(document.getJournal());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testReopenSmallDocuments() throws IOException {
+		Path file = Files.createTempFile("document", ".txt");
+		Charset latin1 = StandardCharsets.ISO_8859_1;
+		try {
+			Files.write(file, "abcdefg".getBytes(latin1));
+			DocumentFile document = new DocumentFile(file, latin1);
+			EditTree t = document.open();
+			t.delete(0);
+			t.add('x', 0);
+			t.delete(1, 4);
+			document.save(t);
+			assertEquals("xfg", t.toString());
+			assertEquals("xfg", new DocumentFile(file, latin1).open().toString());
+			Files.deleteIfExists(document.getJournal());
+
+			Random r = new Random(3132);
+			for (int round = 0; round < 300; round++) {
+				String s = randomText(r, 1 + r.nextInt(8));
+				Files.write(file, s.getBytes(latin1));
+				document = new DocumentFile(file, latin1);
+				t = document.open();
+				StringBuilder sb = new StringBuilder(s);
+				for (int i = 0; i < 1 + r.nextInt(4); i++)
+					randomEdit(r, t, sb);
+				document.save(t);
+				assertEquals(sb.toString(), new DocumentFile(file, latin1).open().toString());
+				Files.deleteIfExists(document.getJournal());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testOverwriteMappedFile() throws IOException {
+		Path file = Files.createTempFile("document", ".txt");
+		Charset latin1 = StandardCharsets.ISO_8859_1;
+		try {
+			String s = randomText(new Random(3133), 100000);
+			Files.write(file, s.getBytes(latin1));
+			DocumentFile document = new DocumentFile(file, latin1);
+			EditTree t = document.open();
+			StringBuilder sb = new StringBuilder(s);
+			t.delete(50000);
+			t.add('!', 50000);
+			sb.setCharAt(50000, '!');
+			document.save(t);
+			// written in place, though the tree still maps the file
+			assertFalse(Files.exists(document.getJournal()));
+			assertEquals(sb.toString(), new DocumentFile(file, latin1).open().toString());
+
+			// the text between the two edits moved by one, and the tree reads
+			// it from the mapping at its old position
+			t.delete(10);
+			t.add('?', 90000);
+			sb.deleteCharAt(10);
+			sb.insert(90000, '?');
+			document.save(t);
+			assertTrue(Files.exists(document.getJournal()));
+			assertEquals(sb.toString(), t.toString());
+			assertEquals(sb.toString(), new DocumentFile(file, latin1).open().toString());
+			Files.delete(document.getJournal());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testChangedRuns() {
+		Random r = new Random(3134);
+		for (int round = 0; round < 200; round++) {
+			String s = randomText(r, r.nextInt(300));
+			EditTree t = new EditTree(s);
+			t.checkpoint();
+			StringBuilder sb = new StringBuilder(s);
+			// enough edits to go past the most runs kept apart
+			for (int i = 0; i < 1 + r.nextInt(ChangeList.MAX_RUNS * 2); i++)
+				randomEdit(r, t, sb);
+			ChangeList runs = t.changedRuns();
+			assertTrue(runs.count() <= ChangeList.MAX_RUNS);
+			StringBuilder replayed = new StringBuilder(s);
+			for (int i = 0; i < runs.count(); i++) {
+				int start = runs.start(i);
+				assertTrue(i == 0 || start > runs.end(i - 1));
+				replayed.replace(start, start + runs.oldLength(i), sb.substring(start, runs.end(i)));
+			}
+			assertEquals(sb.toString(), replayed.toString());
+		}
+	}
+
+	@Test
+	public void testTwoDistantEdits() throws IOException {
+		Path file = Files.createTempFile("document", ".txt");
+		Charset latin1 = StandardCharsets.ISO_8859_1;
+		try {
+			String s = randomText(new Random(3135), 100000);
+			Files.write(file, s.getBytes(latin1));
+			DocumentFile document = new DocumentFile(file, latin1);
+			EditTree t = document.open();
+			StringBuilder sb = new StringBuilder(s);
+			t.delete(5);
+			t.add('!', 5);
+			t.delete(99990);
+			t.add('?', 99990);
+			sb.setCharAt(5, '!');
+			sb.setCharAt(99990, '?');
+			assertEquals(2, t.changedRuns().count());
+			document.save(t);
+			// both keystrokes written in place
+			assertFalse(Files.exists(document.getJournal()));
+			assertEquals(sb.toString(), new DocumentFile(file, latin1).open().toString());
+
+			t.insert(5, "ab");
+			t.delete(99991);
+			sb.insert(5, "ab");
+			sb.deleteCharAt(99991);
+			document.save(t);
+			// one short record for each, not the text between them
+			assertTrue(Files.size(document.getJournal()) < 100);
+			assertEquals(sb.toString(), new DocumentFile(file, latin1).open().toString());
+			Files.delete(document.getJournal());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testTornJournalRecord() throws IOException {
+		Path file = Files.createTempFile("document", ".txt");
+		Charset utf8 = StandardCharsets.UTF_8;
+		try {
+			Files.write(file, "hello world".getBytes(utf8));
+			DocumentFile document = new DocumentFile(file, utf8);
+			EditTree t = document.open();
+			t.insert(5, ",");
+			document.save(t);
+			t.add('!');
+			document.save(t);
+			assertTrue(Files.exists(document.getJournal()));
+			try (FileChannel journal = FileChannel.open(document.getJournal(), StandardOpenOption.WRITE)) {
+				journal.truncate(journal.size() - 1);
+			}
+			assertEquals("hello, world", new DocumentFile(file, utf8).open().toString());
+			Files.delete(document.getJournal());
+			assertFalse(Files.exists(document.getJournal()));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package editortrees;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the documents of a {@link DocumentService} over a local socket, one
+ * session per connection, each on a thread of its own: a virtual thread where
+ * the JVM has them, a pooled platform thread otherwise.
+ *
+ * A request is an op code byte followed by its arguments, and is answered by
+ * a status byte followed by the result when the status is OK. Numbers are
+ * big-endian ints; a string is its length in bytes followed by its UTF-8
+ * bytes; handles are given out by OPEN and are only good on their connection.
+ *
+ * <pre>
+ * OPEN   name                 -> handle, length
+ * INSERT handle, pos, text    -> length after
+ * DELETE handle, pos, length  -> length after
+ * GET    handle, pos, length  -> text
+ * LENGTH handle               -> length
+ * FIND   handle, pos, text    -> position or -1
+ * </pre>
+ *
+ * A request that fails gets OUT_OF_BOUNDS or BAD_REQUEST followed by a
+ * message, and the session goes on; an unknown op code or a string longer
+ * than MAX_STRING bytes ends the session.
+ *
+ * @author zhang
+ *
+ */
+public class DocumentServer implements Closeable {
+	static final int OPEN = 1;
+	static final int INSERT = 2;
+	static final int DELETE = 3;
+	static final int GET = 4;
+	static final int LENGTH = 5;
+	static final int FIND = 6;
+
+	static final int OK = 0;
+	static final int OUT_OF_BOUNDS = 1;
+	static final int BAD_REQUEST = 2;
+
+	/**
+	 * longest string a request may have, in bytes
+	 */
+	static final int MAX_STRING = 1 << 24;
+
+	private static final int BACKLOG = 4096;
+
+	private final DocumentService service;
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor;
+	private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * Listen on the loopback address
+	 *
+	 * @param service
+	 * @param port
+	 *            0 for any free port
+	 * @throws IOException
+	 */
+	public DocumentServer(DocumentService service, int port) throws IOException {
+		this.service = service;
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+		this.executor = newThreadPerTaskExecutor();
+	}
+
+	/**
+	 * 
+	 * @return an executor that runs each task on a new virtual thread, or on
+	 *         a cached platform thread before Java 21
+	 */
+	static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	public DocumentService getService() {
+		return service;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * start accepting connections
+	 */
+	public void start() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					final Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						if (!closed)
+							e.printStackTrace();
+						return;
+					}
+					sessions.add(socket);
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								serve(socket);
+							} catch (IOException e) {
+								// the client went away
+							} finally {
+								sessions.remove(socket);
+								try {
+									socket.close();
+								} catch (IOException e) {
+									// nothing left to do
+								}
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * stop accepting connections and end all sessions
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		for (Socket socket : sessions)
+			socket.close();
+		executor.shutdownNow();
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		List<DocumentService.Document> handles = new ArrayList<DocumentService.Document>();
+		while (true) {
+			int op = in.read();
+			if (op == -1)
+				return;
+			// read all of the request first, so a failure leaves the stream
+			// at the next one
+			int handle = op == OPEN ? -1 : in.readInt();
+			int pos = 0;
+			int length = 0;
+			String text = null;
+			switch (op) {
+			case OPEN:
+				text = readString(in, MAX_STRING);
+				break;
+			case INSERT:
+			case FIND:
+				pos = in.readInt();
+				text = readString(in, MAX_STRING);
+				break;
+			case DELETE:
+			case GET:
+				pos = in.readInt();
+				length = in.readInt();
+				break;
+			case LENGTH:
+				break;
+			default:
+				return;
+			}
+			try {
+				if (op == OPEN) {
+					DocumentService.Document d = service.open(text);
+					handles.add(d);
+					out.writeByte(OK);
+					out.writeInt(handles.size() - 1);
+					out.writeInt(d.length());
+				} else {
+					if (handle < 0 || handle >= handles.size())
+						throw new IllegalArgumentException("no handle " + handle);
+					DocumentService.Document d = handles.get(handle);
+					switch (op) {
+					case INSERT:
+						int after = d.edit(Edit.insert(pos, text));
+						out.writeByte(OK);
+						out.writeInt(after);
+						break;
+					case DELETE:
+						after = d.edit(Edit.delete(pos, length));
+						out.writeByte(OK);
+						out.writeInt(after);
+						break;
+					case GET:
+						String s = d.get(pos, length);
+						out.writeByte(OK);
+						writeString(out, s);
+						break;
+					case LENGTH:
+						out.writeByte(OK);
+						out.writeInt(d.length());
+						break;
+					case FIND:
+						int found = d.find(text, pos);
+						out.writeByte(OK);
+						out.writeInt(found);
+						break;
+					}
+				}
+			} catch (IndexOutOfBoundsException e) {
+				out.writeByte(OUT_OF_BOUNDS);
+				writeString(out, String.valueOf(e.getMessage()));
+			} catch (RuntimeException e) {
+				// whatever went wrong, it was this request only
+				out.writeByte(BAD_REQUEST);
+				writeString(out, String.valueOf(e.getMessage()));
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * 
+	 * @param in
+	 * @param max
+	 *            most bytes the string may take
+	 * @return the string
+	 * @throws IOException
+	 *             also if the string is longer than max
+	 */
+	static String readString(DataInputStream in, int max) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > max)
+			throw new IOException("bad string length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Usage: DocumentServer [port, default 7070]
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+		DocumentServer server = new DocumentServer(new DocumentService(), port);
+		server.start();
+		System.out.println("serving documents on port " + server.getPort());
+	}
+}
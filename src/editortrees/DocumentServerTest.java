@@ -0,0 +1,286 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DocumentService}, {@link DocumentServer} and
+ * {@link DocumentClient}
+ *
+ */
+public class DocumentServerTest {
+
+	@Test
+	public void testQueuedEditsAreCoalesced() throws Exception {
+		Random r = new Random(48);
+		DocumentService service = new DocumentService();
+		final DocumentService.Document d = service.add("doc", new EditTree("0123456789abcdefghij"));
+		StringBuilder model = new StringBuilder(d.get(0, d.length()));
+		final int[] lengths = new int[40];
+		List<Thread> threads = new ArrayList<Thread>();
+		d.lock.lock();
+		try {
+			for (int i = 0; i < lengths.length; i++) {
+				int pos = r.nextInt(model.length() + 1);
+				int delete = r.nextInt(Math.min(3, model.length() - pos) + 1);
+				String text = r.nextInt(3) == 0 ? "" : "<" + i + ">";
+				final Edit e = new Edit(pos, delete, text);
+				final int index = i;
+				model.replace(pos, pos + delete, text);
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						lengths[index] = d.edit(e);
+					}
+				};
+				t.start();
+				threads.add(t);
+				// one at a time, so the queue is in the order of the model
+				while (d.queue.size() <= i)
+					Thread.yield();
+				// nothing is applied while the lock is held
+				assertEquals(0, lengths[index]);
+			}
+		} finally {
+			d.lock.unlock();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(model.toString(), d.get(0, d.length()));
+		assertEquals(model.length(), lengths[lengths.length - 1]);
+		assertEquals(lengths.length, service.getEdits());
+		assertTrue(service.getBatches() < lengths.length / 2);
+	}
+
+	/**
+	 * queue the edits while the lock of d is held, so they are applied
+	 * together
+	 * 
+	 * @return the length after each edit, or the exception it threw
+	 */
+	private static Object[] editQueued(final DocumentService.Document d, final Edit... edits) throws Exception {
+		final Object[] results = new Object[edits.length];
+		List<Thread> threads = new ArrayList<Thread>();
+		d.lock.lock();
+		try {
+			for (int i = 0; i < edits.length; i++) {
+				final int index = i;
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						try {
+							results[index] = d.edit(edits[index]);
+						} catch (IndexOutOfBoundsException e) {
+							results[index] = e;
+						}
+					}
+				};
+				t.start();
+				threads.add(t);
+				while (d.queue.size() <= i)
+					Thread.yield();
+			}
+		} finally {
+			d.lock.unlock();
+		}
+		for (Thread t : threads)
+			t.join();
+		return results;
+	}
+
+	@Test
+	public void testBadEditDoesNotStopTheBatch() throws Exception {
+		DocumentService service = new DocumentService();
+		DocumentService.Document d = service.open("doc");
+		Object[] results = editQueued(d, Edit.insert(0, "abc"), Edit.delete(2, 5), Edit.insert(3, "d"));
+		assertEquals(3, results[0]);
+		assertTrue(results[1] instanceof IndexOutOfBoundsException);
+		assertEquals(4, results[2]);
+		assertEquals("abcd", d.get(0, 4));
+
+		// pos + delete length does not fit in an int
+		results = editQueued(d, Edit.insert(4, "e"), Edit.delete(3, Integer.MAX_VALUE), Edit.insert(0, ">"));
+		assertEquals(5, results[0]);
+		assertTrue(results[1] instanceof IndexOutOfBoundsException);
+		assertEquals(6, results[2]);
+		assertEquals(">abcde", d.get(0, 6));
+	}
+
+	@Test
+	public void testLockHolderHandsOn() throws Exception {
+		DocumentService service = new DocumentService();
+		EditTree tree = new EditTree();
+		final List<String> appliers = new ArrayList<String>();
+		tree.addEditListener(new EditListener() {
+			public void inserted(EditTree tree, int pos, int length) {
+			}
+
+			public void deleted(EditTree tree, int pos, int length) {
+			}
+
+			public void done(EditTree tree) {
+				appliers.add(Thread.currentThread().getName());
+			}
+		});
+		final DocumentService.Document d = service.add("doc", tree);
+		List<Thread> threads = new ArrayList<Thread>();
+		d.lock.lock();
+		try {
+			for (int i = 0; i < 10; i++) {
+				// each insert touches the one before, so each is a batch
+				Thread t = new Thread("editor " + i) {
+					@Override
+					public void run() {
+						d.edit(Edit.insert(0, "x"));
+					}
+				};
+				t.start();
+				threads.add(t);
+				// waiting for the lock in this order, which is the order the
+				// lock is handed on in
+				while (!d.lock.hasQueuedThread(t))
+					Thread.yield();
+			}
+		} finally {
+			d.lock.unlock();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(10, d.length());
+		assertEquals(10, appliers.size());
+		// the first thread applies its own edit and one more, then lets go
+		assertEquals("editor 0", appliers.get(0));
+		assertEquals("editor 0", appliers.get(1));
+		assertTrue(appliers.toString(), !appliers.subList(2, 10).contains("editor 0"));
+		for (String name : appliers)
+			assertTrue(appliers.toString(), appliers.indexOf(name) + 2 > appliers.lastIndexOf(name));
+	}
+
+	@Test
+	public void testProtocol() throws Exception {
+		DocumentServer server = new DocumentServer(new DocumentService(), 0);
+		server.start();
+		try {
+			DocumentClient a = new DocumentClient("localhost", server.getPort());
+			DocumentClient b = new DocumentClient("localhost", server.getPort());
+			int ha = a.open("notes");
+			assertEquals(0, a.length(ha));
+			assertEquals(11, a.insert(ha, 0, "hello world"));
+			assertEquals(16, a.insert(ha, 5, ", big"));
+			assertEquals(18, a.insert(ha, 16, "\u00e9\u4e16"));
+			int hb = b.open("notes");
+			assertEquals("hello, big world", b.get(hb, 0, 16));
+			assertEquals("\u00e9\u4e16", b.get(hb, 16, 2));
+			assertEquals(7, b.find(hb, "big", 0));
+			assertEquals(-1, b.find(hb, "small", 0));
+			assertEquals(13, b.delete(hb, 5, 5));
+			assertEquals("hello world\u00e9\u4e16", a.get(ha, 0, a.length(ha)));
+			try {
+				a.delete(ha, 10, 10);
+				fail();
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+			try {
+				a.get(ha + 1, 0, 1);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			// the session goes on after a failed request
+			assertEquals(13, a.length(ha));
+			try {
+				a.delete(ha, 3, Integer.MAX_VALUE);
+				fail();
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+			try {
+				a.get(ha, 3, Integer.MAX_VALUE);
+				fail();
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+			try {
+				a.find(ha, "world", -1);
+				fail();
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+			assertEquals(6, a.find(ha, "world", 0));
+			assertEquals("hello world\u00e9\u4e16", b.get(hb, 0, 13));
+
+			// a string longer than the server takes ends that session only
+			Socket raw = new Socket("localhost", server.getPort());
+			DataOutputStream out = new DataOutputStream(raw.getOutputStream());
+			out.writeByte(DocumentServer.OPEN);
+			out.writeInt(Integer.MAX_VALUE);
+			out.flush();
+			assertEquals(-1, raw.getInputStream().read());
+			raw.close();
+			assertEquals(13, b.length(hb));
+			a.close();
+			b.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentSessions() throws Exception {
+		final DocumentServer server = new DocumentServer(new DocumentService(), 0);
+		server.start();
+		try {
+			final int sessions = 32;
+			final int edits = 100;
+			final List<Throwable> failures = new ArrayList<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < sessions; i++) {
+				final int session = i;
+				Thread t = new Thread() {
+					@Override
+					public void run() {
+						try {
+							DocumentClient c = new DocumentClient("localhost", server.getPort());
+							int shared = c.open("shared");
+							int own = c.open("own" + session);
+							for (int k = 0; k < edits; k++) {
+								c.insert(shared, 0, "x");
+								c.insert(own, c.length(own), String.valueOf(k % 10));
+							}
+							c.delete(shared, 0, edits / 2);
+							c.close();
+						} catch (Throwable e) {
+							synchronized (failures) {
+								failures.add(e);
+							}
+						}
+					}
+				};
+				t.start();
+				threads.add(t);
+			}
+			for (Thread t : threads)
+				t.join();
+			assertEquals(new ArrayList<Throwable>(), failures);
+			DocumentService service = server.getService();
+			assertEquals(sessions + 1, service.size());
+			assertEquals(sessions * edits / 2, service.open("shared").length());
+			StringBuilder expected = new StringBuilder();
+			for (int k = 0; k < edits; k++)
+				expected.append(k % 10);
+			assertEquals(expected.toString(), service.open("own7").get(0, edits));
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package editortrees;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Many open documents, each an EditTree with a lock of its own, for a server
+ * that edits them on behalf of remote clients; see {@link DocumentServer}.
+ *
+ * Edits are coalesced: a thread that wants to edit a document queues its
+ * edit and takes the lock of the document. Whoever holds the lock applies
+ * every edit queued so far in one applyEdits() call, so edits that arrive
+ * together while the document is busy cost one split and join pass and one
+ * round of listener events instead of one each. Once its own edit is in, the
+ * lock holder finishes the batch it is building and hands the lock on, so
+ * under steady load no thread keeps applying the edits of others for ever.
+ * Each edit is in the
+ * coordinates left by the edits queued before it, as if it had been applied
+ * alone; an edit that touches the text of an earlier edit in the batch
+ * starts a new batch.
+ *
+ * @author zhang
+ *
+ */
+public class DocumentService {
+	/**
+	 * most edits applied in one batch
+	 */
+	static final int MAX_BATCH = 1024;
+
+	/**
+	 * an edit waiting to be applied
+	 */
+	private static final class Pending {
+		final Edit edit;
+		/**
+		 * length of the document right after this edit
+		 */
+		int length;
+		RuntimeException failure;
+		boolean done;
+
+		Pending(Edit edit) {
+			this.edit = edit;
+		}
+	}
+
+	/**
+	 * one open document
+	 */
+	public static final class Document {
+		private final String name;
+		private final EditTree tree;
+		final ReentrantLock lock = new ReentrantLock();
+		final Queue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+		private final DocumentService service;
+
+		Document(DocumentService service, String name, EditTree tree) {
+			this.service = service;
+			this.name = name;
+			this.tree = tree;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Apply edit, together with the edits of other threads queued at the
+		 * same time
+		 *
+		 * @param edit
+		 * @return the length of the document right after edit
+		 * @throws IndexOutOfBoundsException
+		 *             if edit does not fit the document
+		 */
+		public int edit(Edit edit) throws IndexOutOfBoundsException {
+			Pending p = new Pending(edit);
+			queue.add(p);
+			lock.lock();
+			try {
+				if (!p.done)
+					applyQueued(p);
+			} finally {
+				lock.unlock();
+			}
+			if (p.failure != null)
+				throw p.failure;
+			return p.length;
+		}
+
+		/**
+		 * apply queued edits in as few batches as possible, until own has been
+		 * applied and the batch after it is done
+		 * 
+		 * @param own
+		 *            the edit of the calling thread
+		 */
+		private void applyQueued(Pending own) {
+			List<Edit> batch = new ArrayList<Edit>();
+			List<Pending> applied = new ArrayList<Pending>();
+			// where the edits of the batch are in the current coordinates
+			List<int[]> regions = new ArrayList<int[]>();
+			int length = tree.length();
+			Pending p;
+			// only the lock holder takes edits off the queue, so it can look
+			// at the next one before it decides to take it
+			while ((p = queue.peek()) != null) {
+				Edit e = p.edit;
+				int pos = e.getPosition();
+				// pos + delete length may not fit in an int
+				if (pos < 0 || pos > length || e.getDeleteLength() > length - pos) {
+					queue.poll();
+					p.failure = new IndexOutOfBoundsException(e + " in a document of length " + length);
+					p.done = true;
+					continue;
+				}
+				int end = e.getEnd();
+				int shift = 0;
+				boolean touches = false;
+				for (int[] region : regions) {
+					if (region[1] < pos)
+						shift += region[2];
+					else if (region[0] <= end)
+						touches = true;
+				}
+				if (touches || batch.size() == MAX_BATCH) {
+					// the batch after the one with own is full, leave the rest
+					// to the next thread
+					if (own.done)
+						break;
+					apply(batch, applied);
+					regions.clear();
+					shift = 0;
+				}
+				queue.poll();
+				int delta = e.getText().length() - e.getDeleteLength();
+				for (int[] region : regions) {
+					if (region[0] > end) {
+						region[0] += delta;
+						region[1] += delta;
+					}
+				}
+				regions.add(new int[] { pos, pos + e.getText().length(), delta });
+				batch.add(new Edit(pos - shift, e.getDeleteLength(), e.getText()));
+				length += delta;
+				p.length = length;
+				applied.add(p);
+			}
+			apply(batch, applied);
+		}
+
+		private void apply(List<Edit> batch, List<Pending> applied) {
+			if (batch.isEmpty())
+				return;
+			try {
+				tree.applyEdits(batch);
+			} catch (RuntimeException e) {
+				for (Pending p : applied)
+					p.failure = e;
+			}
+			service.batches.incrementAndGet();
+			service.edits.addAndGet(batch.size());
+			for (Pending p : applied)
+				p.done = true;
+			batch.clear();
+			applied.clear();
+		}
+
+		public int length() {
+			lock.lock();
+			try {
+				return tree.length();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 *
+		 * @param pos
+		 * @param length
+		 * @return the text from pos of that length
+		 * @throws IndexOutOfBoundsException
+		 */
+		public String get(int pos, int length) throws IndexOutOfBoundsException {
+			if (length < 0)
+				throw new IndexOutOfBoundsException("negative length " + length);
+			lock.lock();
+			try {
+				if (pos < 0 || length > tree.length() - pos)
+					throw new IndexOutOfBoundsException(pos + " + " + length + " in a document of length " + tree.length());
+				return tree.get(pos, length);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 *
+		 * @param s
+		 * @param pos
+		 * @return position of the first occurrence of s from pos, -1 if there
+		 *         is none
+		 * @throws IndexOutOfBoundsException
+		 *             if pos is outside of the document
+		 */
+		public int find(String s, int pos) throws IndexOutOfBoundsException {
+			lock.lock();
+			try {
+				if (pos < 0 || pos > tree.length())
+					throw new IndexOutOfBoundsException(pos + " in a document of length " + tree.length());
+				return tree.find(s, pos);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 *
+		 * @return the document as it is now, to be read without the lock
+		 */
+		public TreeVersion snapshot() {
+			lock.lock();
+			try {
+				return tree.snapshot();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private final ConcurrentMap<String, Document> documents = new ConcurrentHashMap<String, Document>();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong edits = new AtomicLong();
+
+	/**
+	 *
+	 * @param name
+	 * @return the document with that name, created empty if there was none
+	 */
+	public Document open(String name) {
+		Document d = documents.get(name);
+		if (d == null) {
+			Document created = new Document(this, name, new EditTree());
+			d = documents.putIfAbsent(name, created);
+			if (d == null)
+				d = created;
+		}
+		return d;
+	}
+
+	/**
+	 * Serve tree as the document name
+	 *
+	 * @param name
+	 * @param tree
+	 *            must not be used other than through the document afterwards
+	 * @return the document
+	 * @throws IllegalArgumentException
+	 *             if a document with that name is open already
+	 */
+	public Document add(String name, EditTree tree) throws IllegalArgumentException {
+		Document d = new Document(this, name, tree);
+		if (documents.putIfAbsent(name, d) != null)
+			throw new IllegalArgumentException(name + " is open already");
+		return d;
+	}
+
+	/**
+	 * stop serving a document; threads that hold it may still use it
+	 *
+	 * @param name
+	 * @return the document, null if none had that name
+	 */
+	public Document remove(String name) {
+		return documents.remove(name);
+	}
+
+	/**
+	 *
+	 * @return the number of open documents
+	 */
+	public int size() {
+		return documents.size();
+	}
+
+	/**
+	 *
+	 * @return the number of applyEdits() calls made so far
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 *
+	 * @return the number of edits applied so far
+	 */
+	public long getEdits() {
+		return edits.get();
+	}
+}
@@ -0,0 +1,109 @@
+package editortrees;
+
+/**
+ * A single replacement in an editor tree: remove deleteLength characters
+ * starting at position, and put text in their place. Positions always refer to
+ * the tree before any edit of the same batch is applied.
+ *
+ * @author zhang
+ *
+ */
+public class Edit implements Comparable<Edit> {
+	private final int position;
+	private final int deleteLength;
+	private final String text;
+
+	/**
+	 *
+	 * @param position
+	 *            first position affected by this edit
+	 * @param deleteLength
+	 *            number of characters to remove
+	 * @param text
+	 *            text to insert at position, may be empty
+	 */
+	public Edit(int position, int deleteLength, String text) {
+		if (deleteLength < 0)
+			throw new IllegalArgumentException("negative delete length");
+		if (text == null)
+			throw new NullPointerException();
+		this.position = position;
+		this.deleteLength = deleteLength;
+		this.text = text;
+	}
+
+	/**
+	 * an edit that only inserts text
+	 *
+	 * @param position
+	 * @param text
+	 * @return the edit
+	 */
+	public static Edit insert(int position, String text) {
+		return new Edit(position, 0, text);
+	}
+
+	/**
+	 * an edit that only deletes text
+	 *
+	 * @param position
+	 * @param length
+	 * @return the edit
+	 */
+	public static Edit delete(int position, int length) {
+		return new Edit(position, length, "");
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public int getDeleteLength() {
+		return deleteLength;
+	}
+
+	/**
+	 *
+	 * @return the first position after the deleted range
+	 */
+	public int getEnd() {
+		return position + deleteLength;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Edits are ordered by position, and at the same position insertions come
+	 * before edits that delete, so an insertion never overlaps a deletion that
+	 * starts where it is. A stable sort keeps insertions at the same position
+	 * in the order they were given.
+	 */
+	@Override
+	public int compareTo(Edit o) {
+		if (position != o.position)
+			return position < o.position ? -1 : 1;
+		if ((deleteLength == 0) != (o.deleteLength == 0))
+			return deleteLength == 0 ? -1 : 1;
+		return 0;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Edit))
+			return false;
+		Edit e = (Edit) obj;
+		return position == e.position && deleteLength == e.deleteLength && text.equals(e.text);
+	}
+
+	@Override
+	public int hashCode() {
+		return (position * 31 + deleteLength) * 31 + text.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "[" + position + "," + getEnd() + ")->\"" + text + "\"";
+	}
+}
@@ -0,0 +1,57 @@
+package editortrees;
+
+/**
+ * Gets told about every change to the text of an EditTree it was added to,
+ * right after the change is made. Positions are those of the tree after the
+ * change. Batch operations report their parts from left to right, so each
+ * event is in the coordinates left by the ones before it, and every operation
+ * ends with done().
+ * 
+ * @author zhang
+ *
+ */
+public interface EditListener {
+
+	/**
+	 * length characters were inserted at pos; they are now at positions pos to
+	 * pos + length - 1 of tree. Called by add, insert, concatenate and
+	 * applyEdits.
+	 * 
+	 * @param tree
+	 * @param pos
+	 * @param length
+	 */
+	void inserted(EditTree tree, int pos, int length);
+
+	/**
+	 * length characters that were at pos were removed from tree. Called by
+	 * delete, split and applyEdits.
+	 * 
+	 * @param tree
+	 * @param pos
+	 * @param length
+	 */
+	void deleted(EditTree tree, int pos, int length);
+
+	/**
+	 * the length characters at pos were rewritten in place by transform();
+	 * the positions of all text stayed the same. By default this is told as
+	 * a delete of the old characters and an insert of the new ones.
+	 * 
+	 * @param tree
+	 * @param pos
+	 * @param length
+	 */
+	default void replaced(EditTree tree, int pos, int length) {
+		deleted(tree, pos, length);
+		inserted(tree, pos, length);
+	}
+
+	/**
+	 * The events of one operation are over; tree is consistent with everything
+	 * reported so far. Only here is it safe to look at the whole of tree.
+	 * 
+	 * @param tree
+	 */
+	void done(EditTree tree);
+}
@@ -0,0 +1,523 @@
+package editortrees;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the edits made to one EditTree, so that unsaved work
+ * survives a crash of the editor.
+ *
+ * Every insert and delete the tree reports (add, delete, insert, split,
+ * concatenate and applyEdits all do, see {@link EditListener}) becomes a
+ * record that is only copied into a memory buffer, which costs about a
+ * microsecond. A background thread writes the buffer out and forces it to
+ * disk every commit interval, so many edits share one fsync (group commit).
+ * sync() commits right away, for callers that need an edit to be durable
+ * before going on.
+ *
+ * The log starts from a snapshot of the whole text. When the log grows past
+ * the compaction limit, a new snapshot is written (to a temporary file that
+ * replaces the old one) and the log starts over. Both files carry a
+ * generation number: a log older than its snapshot is ignored, so a crash in
+ * the middle of a compaction loses nothing. open() loads the snapshot lazily,
+ * replays the log onto it and drops a record torn by a crash.
+ *
+ * Record: type byte, int position, int length, the inserted chars (UTF-16)
+ * for an insert, CRC32 of all of it.
+ *
+ * @author zhang
+ *
+ */
+public class EditLog implements EditListener, Closeable {
+	/**
+	 * milliseconds between two group commits
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL = 10;
+
+	/**
+	 * log size in bytes above which the log is compacted into a new snapshot
+	 */
+	public static final long DEFAULT_COMPACTION_LIMIT = 64 << 20;
+
+	private static final long LOG_MAGIC = 0x4544495454524C47L; // "EDITTRLG"
+	private static final long SNAPSHOT_MAGIC = 0x4544495454525353L; // "EDITTRSS"
+	private static final int FILE_HEADER = 16;
+	private static final Charset SNAPSHOT_CHARSET = Charset.forName("UTF-16BE");
+
+	private static final byte INSERT = 1;
+	private static final byte DELETE = 2;
+	private static final int RECORD_HEADER = 9;
+	private static final int RECORD_TRAILER = 4;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path snapshot;
+	private final Path log;
+	private final FileChannel channel;
+	private final EditTree tree;
+	private final long commitInterval;
+	private long compactionLimit = DEFAULT_COMPACTION_LIMIT;
+	private long generation;
+
+	/**
+	 * records not written yet; guarded by this
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * size of the log once everything pending is written; guarded by this
+	 */
+	private long logSize;
+
+	/**
+	 * number of bytes that are on disk for sure; guarded by this
+	 */
+	private long durableSize;
+	private IOException failure;
+	private boolean closed;
+
+	/**
+	 * only one thread writes to the channel at a time
+	 */
+	private final Object writeLock = new Object();
+	private final Thread committer;
+
+	private long records;
+	private long commits;
+	private long compactions;
+
+	private EditLog(Path snapshot, Path log, FileChannel channel, EditTree tree, long generation, long logSize,
+			long commitInterval) {
+		this.snapshot = snapshot;
+		this.log = log;
+		this.channel = channel;
+		this.tree = tree;
+		this.generation = generation;
+		this.logSize = this.durableSize = logSize;
+		this.commitInterval = commitInterval;
+		this.committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		}, "EditLog committer " + log.getFileName());
+		this.committer.setDaemon(true);
+		this.committer.start();
+		tree.addEditListener(this);
+	}
+
+	/**
+	 * Recover the tree from snapshot and log, with the default commit interval,
+	 * and log every further change to it. Missing files start an empty tree.
+	 *
+	 * @param snapshot
+	 * @param log
+	 * @return the log; its tree is getTree()
+	 * @throws IOException
+	 */
+	public static EditLog open(Path snapshot, Path log) throws IOException {
+		return open(snapshot, log, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 *
+	 * @param snapshot
+	 * @param log
+	 * @param commitInterval
+	 *            milliseconds between two group commits
+	 * @return the log; its tree is getTree()
+	 * @throws IOException
+	 */
+	public static EditLog open(Path snapshot, Path log, long commitInterval) throws IOException {
+		EditTree tree;
+		long generation;
+		FileChannel snapshotChannel = null;
+		if (Files.exists(snapshot)) {
+			snapshotChannel = FileChannel.open(snapshot, StandardOpenOption.READ);
+			generation = readHeader(snapshotChannel, SNAPSHOT_MAGIC, snapshot);
+			tree = EditTree.open(snapshotChannel, SNAPSHOT_CHARSET, FILE_HEADER);
+		} else {
+			tree = new EditTree();
+			generation = 0;
+		}
+		// the mapping, if any, stays valid after the channel is closed
+		if (snapshotChannel != null)
+			snapshotChannel.close();
+
+		FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long logSize;
+			if (channel.size() >= FILE_HEADER && readHeader(channel, LOG_MAGIC, log) == generation) {
+				logSize = replay(channel, tree);
+				channel.truncate(logSize);
+			} else {
+				if (channel.size() >= FILE_HEADER && readHeader(channel, LOG_MAGIC, log) > generation)
+					throw new IOException(log + " is newer than " + snapshot);
+				// no log yet, or left over from before the last compaction
+				logSize = startLog(channel, generation);
+			}
+			channel.force(false);
+			tree.checkpoint();
+			return new EditLog(snapshot, log, channel, tree, generation, logSize, commitInterval);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * @param magic
+	 * @param path
+	 * @return the generation in the header
+	 * @throws IOException
+	 *             if the file is not of the expected kind
+	 */
+	private static long readHeader(FileChannel channel, long magic, Path path) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0)
+			;
+		header.flip();
+		if (header.remaining() < FILE_HEADER || header.getLong() != magic)
+			throw new IOException(path + " is not an edit log file");
+		return header.getLong();
+	}
+
+	private static ByteBuffer header(long magic, long generation) {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+		header.putLong(magic).putLong(generation).flip();
+		return header;
+	}
+
+	private static long startLog(FileChannel channel, long generation) throws IOException {
+		channel.truncate(0);
+		ByteBuffer header = header(LOG_MAGIC, generation);
+		long position = 0;
+		while (header.hasRemaining())
+			position += channel.write(header, position);
+		return FILE_HEADER;
+	}
+
+	/**
+	 * apply every complete record of the log to tree
+	 *
+	 * @param channel
+	 * @param tree
+	 * @return the end of the last complete record
+	 * @throws IOException
+	 */
+	private static long replay(FileChannel channel, EditTree tree) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("edit log too large: " + size + " bytes");
+		ByteBuffer in = ByteBuffer.allocate((int) size);
+		while (in.hasRemaining() && channel.read(in, in.position()) >= 0)
+			;
+		in.flip();
+		in.position(FILE_HEADER);
+		CRC32 crc = new CRC32();
+		int good = FILE_HEADER;
+		while (in.remaining() >= RECORD_HEADER + RECORD_TRAILER) {
+			int start = in.position();
+			byte type = in.get();
+			int position = in.getInt();
+			int length = in.getInt();
+			if (position < 0 || length < 0 || (type != INSERT && type != DELETE)
+					|| (type == INSERT && in.remaining() < 2 * (long) length + RECORD_TRAILER))
+				break;
+			Edit e;
+			if (type == INSERT) {
+				char[] text = new char[length];
+				for (int i = 0; i < length; i++)
+					text[i] = in.getChar();
+				e = Edit.insert(position, new String(text));
+			} else {
+				e = Edit.delete(position, length);
+			}
+			crc.reset();
+			crc.update(in.array(), start, in.position() - start);
+			if (in.getInt() != (int) crc.getValue())
+				break;
+			tree.applyEdits(Collections.singletonList(e));
+			good = in.position();
+		}
+		return good;
+	}
+
+	/**
+	 *
+	 * @return the tree this log keeps
+	 */
+	public EditTree getTree() {
+		return tree;
+	}
+
+	/**
+	 *
+	 * @param limit
+	 *            log size in bytes above which the next edit compacts the log
+	 */
+	public void setCompactionLimit(long limit) {
+		this.compactionLimit = limit;
+	}
+
+	@Override
+	public void inserted(EditTree tree, int pos, int length) {
+		if (tree != this.tree)
+			return;
+		synchronized (this) {
+			ByteBuffer record = reserve(RECORD_HEADER + 2 * (long) length + RECORD_TRAILER);
+			int start = record.position();
+			record.put(INSERT).putInt(pos).putInt(length);
+			if (length == 1) {
+				record.putChar(tree.charAt(pos));
+			} else {
+				String text = tree.get(pos, length);
+				for (int i = 0; i < length; i++)
+					record.putChar(text.charAt(i));
+			}
+			finish(record, start);
+		}
+	}
+
+	@Override
+	public void deleted(EditTree tree, int pos, int length) {
+		if (tree != this.tree)
+			return;
+		synchronized (this) {
+			ByteBuffer record = reserve(RECORD_HEADER + RECORD_TRAILER);
+			int start = record.position();
+			record.put(DELETE).putInt(pos).putInt(length);
+			finish(record, start);
+		}
+	}
+
+	/**
+	 * make room for a record in the pending buffer; called holding this
+	 *
+	 * @param size
+	 * @return the buffer to put the record in
+	 */
+	private ByteBuffer reserve(long size) {
+		if (failure != null)
+			throw new IllegalStateException("edit log failed", failure);
+		if (closed)
+			throw new IllegalStateException("edit log closed");
+		if (pending.position() + size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("edit too large to be logged");
+		if (pending.remaining() < size) {
+			ByteBuffer larger = ByteBuffer.allocate((int) Math.max(2L * pending.capacity(), pending.position() + size));
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		return pending;
+	}
+
+	/**
+	 * close a record with its CRC; called holding this
+	 */
+	private void finish(ByteBuffer record, int start) {
+		crc.reset();
+		crc.update(record.array(), start, record.position() - start);
+		record.putInt((int) crc.getValue());
+		logSize += record.position() - start;
+		records++;
+	}
+
+	/**
+	 * Compact once an operation is over: the new snapshot would already hold
+	 * the parts of a batch that are not logged yet.
+	 */
+	@Override
+	public void done(EditTree tree) {
+		if (tree != this.tree || getLogSize() <= compactionLimit)
+			return;
+		try {
+			compact();
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+			}
+			throw new IllegalStateException("edit log compaction failed", e);
+		}
+	}
+
+	private void commitLoop() {
+		while (true) {
+			synchronized (this) {
+				if (closed)
+					return;
+				try {
+					wait(commitInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed)
+					return;
+			}
+			try {
+				commit();
+			} catch (IOException e) {
+				synchronized (this) {
+					if (failure == null)
+						failure = e;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * write everything pending and force it to disk
+	 *
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		synchronized (writeLock) {
+			ByteBuffer out;
+			long end;
+			synchronized (this) {
+				if (pending.position() == 0)
+					return;
+				out = pending;
+				pending = writing;
+				writing = out;
+				end = logSize;
+			}
+			out.flip();
+			long position = end - out.remaining();
+			while (out.hasRemaining())
+				position += channel.write(out, position);
+			channel.force(false);
+			out.clear();
+			synchronized (this) {
+				durableSize = end;
+				commits++;
+			}
+		}
+	}
+
+	/**
+	 * Make every edit so far durable before returning.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+		}
+		commit();
+	}
+
+	/**
+	 * Write the whole tree to a new snapshot and start an empty log. Called
+	 * from the thread that edits the tree, as the tree is not thread safe.
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		long next = generation + 1;
+		Path temp = Files.createTempFile(snapshot.toAbsolutePath().getParent(), snapshot.getFileName().toString(),
+				".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer header = header(SNAPSHOT_MAGIC, next);
+				while (header.hasRemaining())
+					out.write(header);
+				tree.writeTo(out, SNAPSHOT_CHARSET);
+				out.force(false);
+			}
+			Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		// from here on the old log is ignored, as its generation is older
+		synchronized (writeLock) {
+			synchronized (this) {
+				pending.clear();
+				generation = next;
+				logSize = durableSize = startLog(channel, next);
+			}
+			channel.force(false);
+		}
+		compactions++;
+	}
+
+	/**
+	 *
+	 * @return number of records logged since open
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 *
+	 * @return number of group commits since open
+	 */
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	/**
+	 *
+	 * @return number of compactions since open
+	 */
+	public long getCompactions() {
+		return compactions;
+	}
+
+	/**
+	 *
+	 * @return size of the log in bytes, including what is not committed yet
+	 */
+	public synchronized long getLogSize() {
+		return logSize;
+	}
+
+	/**
+	 *
+	 * @return number of bytes of the log known to be on disk
+	 */
+	public synchronized long getDurableSize() {
+		return durableSize;
+	}
+
+	/**
+	 * Commit what is pending, stop logging and close the log file. The tree
+	 * stays usable.
+	 */
+	@Override
+	public void close() throws IOException {
+		tree.removeEditListener(this);
+		try {
+			sync();
+		} finally {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			try {
+				committer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			channel.close();
+		}
+	}
+}
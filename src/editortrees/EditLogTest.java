@@ -0,0 +1,190 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.EditLog} and {@link editortrees.EditListener}
+ *
+ */
+public class EditLogTest {
+
+	/**
+	 * apply one random edit to both t and sb, through every operation that is
+	 * logged
+	 */
+	private static void randomEdit(Random r, EditTree t, StringBuilder sb) {
+		int pos = r.nextInt(sb.length() + 1);
+		int len = Math.min(r.nextInt(5), sb.length() - pos);
+		switch (r.nextInt(6)) {
+		case 0:
+			t.add((char) ('a' + r.nextInt(26)), pos);
+			sb.insert(pos, t.charAt(pos));
+			break;
+		case 1:
+			if (pos < sb.length()) {
+				t.delete(pos);
+				sb.deleteCharAt(pos);
+			}
+			break;
+		case 2:
+			t.insert(pos, "XYZ");
+			sb.insert(pos, "XYZ");
+			break;
+		case 3:
+			if (pos + len < sb.length()) {
+				t.delete(pos, len);
+				sb.delete(pos, pos + len);
+			}
+			break;
+		case 4:
+			t.applyEdits(Arrays.asList(new Edit(pos, len, "Q"), Edit.insert(sb.length(), "!")));
+			sb.append('!');
+			sb.replace(pos, pos + len, "Q");
+			break;
+		default:
+			t.split(pos);
+			t.concatenate(new EditTree("tail"));
+			sb.setLength(pos);
+			sb.append("tail");
+		}
+	}
+
+	private static Path copy(Path from, Path dir) throws IOException {
+		Path to = dir.resolve(from.getFileName());
+		if (Files.exists(from))
+			Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+		return to;
+	}
+
+	@Test
+	public void testRecoverAfterCrash() throws IOException {
+		Path dir = Files.createTempDirectory("editlog");
+		Path crash = Files.createTempDirectory("crash");
+		Random r = new Random(32);
+		EditLog log = EditLog.open(dir.resolve("text.snapshot"), dir.resolve("text.log"), 1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			randomEdit(r, log.getTree(), sb);
+			if (i % 50 == 0) {
+				log.sync();
+				// what is on disk now is what a crash would leave behind
+				EditLog recovered = EditLog.open(copy(dir.resolve("text.snapshot"), crash),
+						copy(dir.resolve("text.log"), crash));
+				assertEquals(sb.toString(), recovered.getTree().toString());
+				recovered.close();
+			}
+		}
+		log.close();
+		EditLog reopened = EditLog.open(dir.resolve("text.snapshot"), dir.resolve("text.log"));
+		assertEquals(sb.toString(), reopened.getTree().toString());
+		reopened.close();
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		Path dir = Files.createTempDirectory("editlog");
+		EditLog log = EditLog.open(dir.resolve("s"), dir.resolve("l"), 20);
+		for (int i = 0; i < 1000; i++)
+			log.getTree().add('x');
+		long deadline = System.currentTimeMillis() + 5000;
+		while (log.getDurableSize() < log.getLogSize() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(log.getLogSize(), log.getDurableSize());
+		assertEquals(1000, log.getRecords());
+		assertTrue(log.getCommits() < 100);
+		log.close();
+	}
+
+	@Test
+	public void testTornRecordIsDropped() throws IOException {
+		Path dir = Files.createTempDirectory("editlog");
+		EditLog log = EditLog.open(dir.resolve("s"), dir.resolve("l"));
+		log.getTree().insert(0, "hello");
+		log.getTree().insert(5, " world");
+		log.close();
+		try (FileChannel channel = FileChannel.open(dir.resolve("l"), StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+		log = EditLog.open(dir.resolve("s"), dir.resolve("l"));
+		assertEquals("hello", log.getTree().toString());
+		log.getTree().add('!');
+		log.close();
+		log = EditLog.open(dir.resolve("s"), dir.resolve("l"));
+		assertEquals("hello!", log.getTree().toString());
+		log.close();
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		Path dir = Files.createTempDirectory("editlog");
+		Path stale = Files.createTempDirectory("stale");
+		Random r = new Random(33);
+		EditLog log = EditLog.open(dir.resolve("s"), dir.resolve("l"));
+		log.setCompactionLimit(2000);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			randomEdit(r, log.getTree(), sb);
+			if (i == 1000) {
+				log.sync();
+				copy(dir.resolve("l"), stale);
+			}
+		}
+		assertTrue(log.getCompactions() > 0);
+		assertTrue(log.getLogSize() <= 2000 + 100);
+		log.close();
+		EditLog reopened = EditLog.open(dir.resolve("s"), dir.resolve("l"));
+		assertEquals(sb.toString(), reopened.getTree().toString());
+
+		// a crash after a new snapshot was moved in but before the log was
+		// started over leaves an older log behind, which must be ignored
+		reopened.compact();
+		copy(dir.resolve("s"), stale);
+		reopened.close();
+		EditLog recovered = EditLog.open(stale.resolve("s"), stale.resolve("l"));
+		assertEquals(sb.toString(), recovered.getTree().toString());
+		recovered.close();
+	}
+
+	@Test
+	public void testListenerEvents() {
+		final StringBuilder events = new StringBuilder();
+		EditTree t = new EditTree("abcdef");
+		t.addEditListener(new EditListener() {
+			@Override
+			public void inserted(EditTree tree, int pos, int length) {
+				events.append("+" + pos + ":" + length + " ");
+			}
+
+			@Override
+			public void deleted(EditTree tree, int pos, int length) {
+				events.append("-" + pos + ":" + length + " ");
+			}
+
+			@Override
+			public void done(EditTree tree) {
+				events.append("| ");
+			}
+		});
+		t.add('x', 1);
+		t.delete(0);
+		t.insert(2, "yz");
+		t.delete(1, 2);
+		t.split(4);
+		t.concatenate(new EditTree("gh"));
+		t.applyEdits(Arrays.asList(Edit.insert(0, "12"), new Edit(2, 1, ""), Edit.insert(6, "3")));
+		assertEquals("+1:1 | -0:1 | +2:2 | -1:2 | -4:2 | +4:2 | +0:2 -4:1 +7:1 | ", events.toString());
+		assertEquals("12xzdgh3", t.toString());
+	}
+}
@@ -1,12 +1,29 @@
 package editortrees;
 
-import java.util.ConcurrentModificationException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.NoSuchElementException;
-import java.util.Stack;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
 
-import debughelp.DisplayableBinaryTree;
 import editortrees.Node.Code;
 import editortrees.Node.H;
 import editortrees.Node.SH;
@@ -17,10 +34,52 @@ import editortrees.Node.SH;
  *
  */
 public class EditTree implements CharSequence {
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
 	private Node root;
 	private int totalRotationCount;
 	private int height;
-	private int treeVersion;
+	private Pager pager;
+	private Compressor compressor;
+
+	/**
+	 * what changed since the last checkpoint, null if there never was one
+	 */
+	private ChangeList changes;
+
+	private List<EditListener> listeners;
+	private AnchorTree anchors;
+
+	/**
+	 * largest subtree that a new tree keeps as one lazy leaf over compact
+	 * text; a node of its own costs about 32 bytes per character
+	 */
+	static final int CHUNK_SIZE = 64;
+
+	/**
+	 * largest subtree that a parallel construction builds in one task
+	 */
+	static final int PARALLEL_CUTOFF = 1 << 16;
+
+	/**
+	 * longest text typed, or deleted, at every cursor with applyShortEdits
+	 * rather than applyEdits
+	 */
+	private static final int SHORT_EDIT = 8;
+
+	/**
+	 * least number of edits between two checks of the whole tree at
+	 * CheckLevel.SAMPLED
+	 */
+	static final int SAMPLE_INTERVAL = 64;
+
+	private static final CheckLevel DEFAULT_CHECK_LEVEL = CheckLevel.fromProperty();
+	private CheckLevel checkLevel = DEFAULT_CHECK_LEVEL;
+	/**
+	 * edits left until the next check of the whole tree at
+	 * CheckLevel.SAMPLED
+	 */
+	private int editsUntilFullCheck;
 
 	/**
 	 * Construct an empty tree
@@ -48,13 +107,84 @@ public class EditTree implements CharSequence {
 	 * @param s
 	 */
 	public EditTree(String s) {
-		root = constructFromString(s, 0, s.length());
+		this(s, s.length() > PARALLEL_CUTOFF ? ForkJoinPool.commonPool() : null);
+	}
+
+	/**
+	 * Create an EditTree whose toString is s, building independent subtrees
+	 * of s on pool. The tree has exactly the shape EditTree(String) builds on
+	 * one thread.
+	 * 
+	 * @param s
+	 * @param pool
+	 *            to build on, or null to build on this thread
+	 */
+	public EditTree(String s, ForkJoinPool pool) {
+		root = construct(s, null, s.length(), pool);
 		height = balancedHeightFromSize(s.length());
-		check();
+		verify(0);
+	}
+
+	/**
+	 * build the balanced tree over string or text
+	 * 
+	 * @param string
+	 *            the characters, or null if they are in text
+	 * @param text
+	 * @param length
+	 * @param pool
+	 *            to build on, or null to build on this thread
+	 * @return the root
+	 */
+	static Node construct(String string, TextSource text, int length, ForkJoinPool pool) {
+		ConstructTask task = new ConstructTask(string, text, 0, length);
+		if (pool == null || length <= PARALLEL_CUTOFF)
+			return task.compute();
+		return pool.invoke(task);
+	}
+
+	/**
+	 * Builds a subtree the way constructFromString and constructFromSource
+	 * do, splitting at the same middle characters, but builds the left half
+	 * in another task while this one builds the right half. Subtrees of at
+	 * most PARALLEL_CUTOFF characters are built sequentially.
+	 */
+	private static final class ConstructTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+		private final String string;
+		private final TextSource text;
+		private final int start;
+		private final int end;
+
+		ConstructTask(String string, TextSource text, int start, int end) {
+			this.string = string;
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Node compute() {
+			if (end - start <= PARALLEL_CUTOFF) {
+				if (string != null)
+					return constructFromString(string, start, end);
+				return constructFromSource(text, start, end);
+			}
+			int mid = (start + end) / 2;
+			int hl = balancedHeightFromSize(mid - start);
+			int hr = balancedHeightFromSize(end - mid - 1);
+			ConstructTask left = new ConstructTask(string, text, start, mid);
+			left.fork();
+			Node right = new ConstructTask(string, text, mid + 1, end).compute();
+			char element = string != null ? string.charAt(mid) : text.charAt(mid);
+			return new Node(element, left.join(), right, Code.getCode(hr - hl));
+		}
 	}
 
 	/**
-	 * construct a tree from a string recursively
+	 * construct a tree from a string recursively. Subtrees of at most
+	 * CHUNK_SIZE characters are left lazy over a compact copy of their text,
+	 * and only unfold into nodes when they are edited.
 	 * 
 	 * @param string
 	 *            original string
@@ -65,9 +195,11 @@ public class EditTree implements CharSequence {
 	 *            after the included sequence
 	 * @return root node of the constructed subtree
 	 */
-	private Node constructFromString(String string, int start, int end) {
+	private static Node constructFromString(String string, int start, int end) {
 		if (start == end)
 			return Node.NULL_NODE;
+		if (end - start <= CHUNK_SIZE)
+			return SourceNode.create(CompactText.of(string, start, end), 0, end - start);
 		int mid = (start + end) / 2;
 		int hl = balancedHeightFromSize(mid - start);
 		int hr = balancedHeightFromSize(end - mid - 1);
@@ -75,12 +207,98 @@ public class EditTree implements CharSequence {
 				constructFromString(string, mid + 1, end), Code.getCode(hr - hl));
 	}
 
-	private int balancedHeightFromSize(int length) {
+	/**
+	 * same as constructFromString, over text that is already compact
+	 * 
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return root node of the constructed subtree
+	 */
+	static Node constructFromSource(TextSource text, int start, int end) {
+		if (end - start <= CHUNK_SIZE)
+			return SourceNode.create(text, start, end - start);
+		int mid = (start + end) / 2;
+		int hl = balancedHeightFromSize(mid - start);
+		int hr = balancedHeightFromSize(end - mid - 1);
+		return new Node(text.charAt(mid), constructFromSource(text, start, mid),
+				constructFromSource(text, mid + 1, end), Code.getCode(hr - hl));
+	}
+
+	/**
+	 * the height of a perfectly balanced tree with the given number of nodes,
+	 * which is floor(log2(length))
+	 * 
+	 * @param length
+	 * @return height of the tree, -1 for an empty one
+	 */
+	static int balancedHeightFromSize(int length) {
 		if (length == 0)
 			return -1;
-		return (int) (Math.log(length) / Math.log(2));
+		return 31 - Integer.numberOfLeadingZeros(length);
 	}
 
+	/**
+	 * Wrap an already built subtree
+	 * 
+	 * @param root
+	 * @param height
+	 *            height of the subtree
+	 */
+	EditTree(Node root, int height) {
+		this.root = root;
+		this.height = height;
+		verify(0);
+	}
+
+	/**
+	 * Open a file as an EditTree without reading it. The file is memory mapped
+	 * and the tree starts out as lazy nodes over regions of the mapping; a
+	 * region is decoded and turned into nodes only where the tree is first
+	 * touched, so opening takes the same time for any file size.
+	 * 
+	 * This works for charsets that use a fixed number of bytes per character
+	 * (single byte charsets, UTF-16BE, UTF-16LE). Other charsets, such as
+	 * UTF-8, have to be decoded from the start to find character positions, so
+	 * for them the file is streamed through an {@link EditTreeBuilder}
+	 * instead.
+	 * 
+	 * @param path
+	 * @param charset
+	 * @return the tree whose toString is the content of the file
+	 * @throws IOException
+	 */
+	public static EditTree open(Path path, Charset charset) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return open(channel, charset, 0);
+		}
+	}
+
+	/**
+	 * open the part of a file after offset, see open(Path, Charset)
+	 * 
+	 * @param channel
+	 * @param charset
+	 * @param offset
+	 *            number of bytes to skip at the start of the file
+	 * @return the tree, at a checkpoint
+	 * @throws IOException
+	 */
+	static EditTree open(FileChannel channel, Charset charset, long offset) throws IOException {
+		MappedText text = MappedText.map(channel, charset, offset);
+		EditTree tree;
+		if (text == null) {
+			channel.position(offset);
+			tree = new EditTreeBuilder().readFrom(Channels.newReader(channel, charset.name())).build();
+		} else {
+			int length = text.length();
+			tree = new EditTree(SourceNode.create(text, 0, length), balancedHeightFromSize(length));
+		}
+		tree.checkpoint();
+		return tree;
+	}
+
+
 	/**
 	 * Make this tree be a copy of e, with all new nodes, but the same shape and
 	 * contents.
@@ -90,7 +308,281 @@ public class EditTree implements CharSequence {
 	public EditTree(EditTree e) {
 		root = e.root.constructFromTree();
 		height = e.height;
-		check();
+		checkLevel = e.checkLevel;
+		verify(0);
+	}
+
+	/**
+	 * Keep this tree under the resident budget of pager from now on, by
+	 * spilling cold subtrees to its file. Pages are read back transparently.
+	 * 
+	 * @param pager
+	 *            the pager to use, or null to stop spilling. Pages spilled
+	 *            already stay in the file until they are accessed.
+	 */
+	public void setPager(Pager pager) {
+		this.pager = pager;
+		if (pager != null)
+			pager.attach(this);
+	}
+
+	/**
+	 * 
+	 * @return the pager of this tree, null if it is not paged
+	 */
+	public Pager getPager() {
+		return pager;
+	}
+
+	/**
+	 * Compress subtrees of this tree in memory once they have not been used
+	 * for the idle time of compressor. They are decompressed transparently.
+	 * 
+	 * @param compressor
+	 *            the compressor to use, or null to stop compressing. Subtrees
+	 *            compressed already stay so until they are accessed.
+	 */
+	public void setCompressor(Compressor compressor) {
+		this.compressor = compressor;
+		if (compressor != null)
+			compressor.attach(this);
+	}
+
+	/**
+	 * 
+	 * @return the compressor of this tree, null if it is not compressed
+	 */
+	public Compressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Create an anchor that keeps pointing at the same place in the text as
+	 * it is edited, see {@link Anchor}.
+	 * 
+	 * @param pos
+	 *            position of the anchor, from 0 to length()
+	 * @param bias
+	 *            whether text inserted at pos goes after the anchor (LEFT) or
+	 *            before it (RIGHT)
+	 * @return the anchor
+	 * @throws IndexOutOfBoundsException
+	 */
+	public Anchor createAnchor(int pos, Anchor.Bias bias) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > length())
+			throw new IndexOutOfBoundsException();
+		if (anchors == null)
+			anchors = new AnchorTree();
+		return anchors.create(pos, bias);
+	}
+
+	/**
+	 * have listener told about every change to this tree from now on
+	 * 
+	 * @param listener
+	 */
+	public void addEditListener(EditListener listener) {
+		if (listeners == null)
+			listeners = new ArrayList<EditListener>();
+		listeners.add(listener);
+	}
+
+	/**
+	 * 
+	 * @param listener
+	 */
+	public void removeEditListener(EditListener listener) {
+		if (listeners != null) {
+			listeners.remove(listener);
+			if (listeners.isEmpty())
+				listeners = null;
+		}
+	}
+
+	private void fireInserted(int pos, int length) {
+		if (anchors != null && length > 0)
+			anchors.inserted(pos, length);
+		if (listeners != null && length > 0)
+			for (EditListener listener : new ArrayList<EditListener>(listeners))
+				listener.inserted(this, pos, length);
+	}
+
+	private void fireDeleted(int pos, int length) {
+		if (anchors != null && length > 0)
+			anchors.deleted(pos, length);
+		if (listeners != null && length > 0)
+			for (EditListener listener : new ArrayList<EditListener>(listeners))
+				listener.deleted(this, pos, length);
+	}
+
+	private void fireReplaced(int pos, int length) {
+		if (listeners != null && length > 0)
+			for (EditListener listener : new ArrayList<EditListener>(listeners))
+				listener.replaced(this, pos, length);
+	}
+
+	private void fireDone() {
+		if (listeners != null)
+			for (EditListener listener : new ArrayList<EditListener>(listeners))
+				listener.done(this);
+	}
+
+	/**
+	 * Forget all changes made so far; changesSinceCheckpoint() compares with
+	 * the tree as it is now. A tree returned by open() starts out at a
+	 * checkpoint.
+	 */
+	public void checkpoint() {
+		changes = new ChangeList();
+	}
+
+	/**
+	 * 
+	 * @return true if checkpoint() was called on this tree or it was opened
+	 *         from a file
+	 */
+	public boolean hasCheckpoint() {
+		return changes != null;
+	}
+
+	/**
+	 * Every edit records the range it replaced (see changedRuns()), so the
+	 * first and the last changed position are known. Everything before the
+	 * first one and after the last one is the same as at the checkpoint,
+	 * which gives a single replacement that turns the text at the checkpoint
+	 * into the current text.
+	 * 
+	 * @return an edit in checkpoint coordinates that replaces the changed
+	 *         range by its current text, null if nothing changed
+	 * @throws IllegalStateException
+	 *             if this tree has no checkpoint
+	 */
+	public Edit changesSinceCheckpoint() throws IllegalStateException {
+		int[] range = changedRange();
+		if (range == null)
+			return null;
+		return new Edit(range[0], range[2], get(range[0], range[1] - range[0]));
+	}
+
+	/**
+	 * the range of changesSinceCheckpoint(), without reading its text
+	 * 
+	 * @return the first changed position, the end of the changed range and
+	 *         the length the range had at the checkpoint, null if nothing
+	 *         changed
+	 * @throws IllegalStateException
+	 *             if this tree has no checkpoint
+	 */
+	int[] changedRange() throws IllegalStateException {
+		ChangeList runs = changedRuns();
+		int count = runs.count();
+		if (count == 0)
+			return null;
+		int delta = 0;
+		for (int i = 0; i < count; i++)
+			delta += runs.end(i) - runs.start(i) - runs.oldLength(i);
+		int start = runs.start(0);
+		int end = runs.end(count - 1);
+		return new int[] { start, end, end - start - delta };
+	}
+
+	/**
+	 * 
+	 * @return the runs of text that changed since the checkpoint, only good
+	 *         until the next edit
+	 * @throws IllegalStateException
+	 *             if this tree has no checkpoint
+	 */
+	ChangeList changedRuns() throws IllegalStateException {
+		if (changes == null)
+			throw new IllegalStateException("no checkpoint");
+		return changes;
+	}
+
+	/**
+	 * 
+	 * @param start
+	 * @param end
+	 * @param filePosition
+	 *            where the text from start is in the memory mapped file
+	 * @return true if every lazy node over a memory mapped file that has
+	 *         characters from start to end reads them from the matching
+	 *         positions of the file, so the file can be overwritten there with
+	 *         the current text
+	 */
+	boolean readsInPlace(int start, int end, int filePosition) {
+		return root.readsInPlace(start, end, 0, start - filePosition);
+	}
+
+	/**
+	 * Keep the current version of the tree: its root becomes shared, so edits
+	 * from now on copy the paths they change and leave this version as it is.
+	 * 
+	 * @return the root of the current version
+	 */
+	Node share() {
+		root.markShared();
+		return root;
+	}
+
+	/**
+	 * Take the current version of the text in O(1). It stays as it is
+	 * whatever is done to this tree afterwards, and can be read from other
+	 * threads without locking. The first edit after a snapshot copies the
+	 * O(log n) nodes on its path instead of changing them.
+	 * 
+	 * @return the current version
+	 */
+	public TreeVersion snapshot() {
+		return new TreeVersion(share());
+	}
+
+	/**
+	 * Go to a version kept by share(). The two versions only differ in one
+	 * range, which listeners and changesSinceCheckpoint() see as a
+	 * replacement.
+	 * 
+	 * @param version
+	 *            root of the version
+	 * @param versionHeight
+	 *            its height
+	 * @param start
+	 *            first position where the two versions differ
+	 * @param removed
+	 *            length of the range from start in the current version
+	 * @param inserted
+	 *            length of the range from start in the version restored
+	 */
+	void restore(Node version, int versionHeight, int start, int removed, int inserted) {
+		root = version;
+		height = versionHeight;
+		changed(start, removed, inserted);
+		verify(start);
+		fireDeleted(start, removed);
+		fireInserted(start, inserted);
+		fireDone();
+		accessed(start);
+	}
+
+	/**
+	 * record that removed characters from pos were replaced by inserted ones,
+	 * only needed for changesSinceCheckpoint()
+	 */
+	private void changed(int pos, int removed, int inserted) {
+		if (changes != null)
+			changes.replaced(pos, removed, inserted);
+	}
+
+	/**
+	 * let the pager and the compressor know where this tree was just used
+	 * 
+	 * @param pos
+	 */
+	private void accessed(int pos) {
+		if (pager != null)
+			pager.accessed(this, pos);
+		if (compressor != null)
+			compressor.accessed(this, pos);
 	}
 
 	/**
@@ -111,19 +603,151 @@ public class EditTree implements CharSequence {
 		return root;
 	}
 
+	/**
+	 * Swap a page of this tree for a spilled or compressed node of the same
+	 * shape, copying the shared nodes above it so that snapshots read by other
+	 * threads are not changed.
+	 * 
+	 * @param page
+	 *            a subtree below the root
+	 * @param pos
+	 *            position of its first node
+	 * @param replacement
+	 */
+	void replacePage(Node page, int pos, Node replacement) {
+		root = root.replacePage(page, pos, replacement);
+	}
+
 	/**
 	 * return the string produced by an inorder traversal of this tree
 	 */
 	@Override
 	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		Iterator<Character> itr = iterator();
-		while (itr.hasNext()) {
-			sb.append(itr.next());
-		}
+		StringBuilder sb = new StringBuilder(length());
+		root.get(0, length(), sb);
 		return sb.toString();
 	}
 
+	/**
+	 * Write the text of this tree to out without building a String first. The
+	 * characters go through one fixed size buffer, so the extra memory does
+	 * not depend on the length of the tree. out is not closed.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(final Writer out) throws IOException {
+		drain(new char[WRITE_BUFFER_SIZE], new CharSink() {
+			@Override
+			public int write(char[] chars, int length, boolean last) throws IOException {
+				out.write(chars, 0, length);
+				return 0;
+			}
+		});
+	}
+
+	/**
+	 * Encode the text of this tree straight into a channel. Characters are
+	 * collected in one fixed size buffer and encoded through a single
+	 * CharsetEncoder into one direct ByteBuffer, so the extra memory does not
+	 * depend on the length of the tree. Characters that cannot be encoded are
+	 * replaced, as String.getBytes would do. out is not closed.
+	 * 
+	 * @param out
+	 * @param charset
+	 * @throws IOException
+	 */
+	public void writeTo(final WritableByteChannel out, Charset charset) throws IOException {
+		final CharsetEncoder encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		final ByteBuffer bytes = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		drain(new char[WRITE_BUFFER_SIZE], new CharSink() {
+			@Override
+			public int write(char[] chars, int length, boolean last) throws IOException {
+				CharBuffer in = CharBuffer.wrap(chars, 0, length);
+				while (encoder.encode(in, bytes, last) == CoderResult.OVERFLOW)
+					flush();
+				if (last) {
+					while (encoder.flush(bytes) == CoderResult.OVERFLOW)
+						flush();
+					flush();
+				}
+				// a high surrogate whose low half is still in the tree
+				int left = in.remaining();
+				in.get(chars, 0, left);
+				return left;
+			}
+
+			private void flush() throws IOException {
+				bytes.flip();
+				while (bytes.hasRemaining())
+					out.write(bytes);
+				bytes.clear();
+			}
+		});
+	}
+
+	/**
+	 * receives the text of a tree one buffer at a time
+	 */
+	interface CharSink {
+		/**
+		 * 
+		 * @param chars
+		 * @param length
+		 *            number of characters at the start of chars to write
+		 * @param last
+		 *            true if this is the end of the text
+		 * @return number of characters that could not be written yet. They
+		 *         have been moved to the start of chars and are passed again
+		 *         with the next call.
+		 * @throws IOException
+		 */
+		int write(char[] chars, int length, boolean last) throws IOException;
+	}
+
+	/**
+	 * Walk this tree in order and pass its text to sink in buffer sized
+	 * pieces. Ranges of lazy source nodes are copied directly, without
+	 * materializing them. The text passed is that of a snapshot taken at the
+	 * start, even if the tree is edited meanwhile.
+	 * 
+	 * @param buffer
+	 * @param sink
+	 * @throws IOException
+	 */
+	void drain(char[] buffer, CharSink sink) throws IOException {
+		int filled = 0;
+		Deque<Node> stack = new ArrayDeque<Node>();
+		Node current = share();
+		while (current != Node.NULL_NODE || !stack.isEmpty()) {
+			if (current != Node.NULL_NODE) {
+				if (current instanceof SourceNode && LazyNode.isLazy(current)) {
+					SourceNode source = (SourceNode) current;
+					for (int done = 0; done < source.size();) {
+						if (filled == buffer.length)
+							filled = sink.write(buffer, filled, false);
+						int n = Math.min(source.size() - done, buffer.length - filled);
+						source.getChars(done, done + n, buffer, filled);
+						filled += n;
+						done += n;
+					}
+					current = Node.NULL_NODE;
+				} else {
+					stack.push(current);
+					current = current.getLeft();
+				}
+			} else {
+				current = stack.pop();
+				if (filled == buffer.length)
+					filled = sink.write(buffer, filled, false);
+				buffer[filled++] = current.getElement();
+				current = current.getRight();
+			}
+		}
+		sink.write(buffer, filled, true);
+	}
+
 	/**
 	 * This one asks for more info from each node. You can write it like the
 	 * arraylist-based toString() method from the BST assignment. However, the
@@ -173,7 +797,9 @@ public class EditTree implements CharSequence {
 	public char charAt(int pos) throws IndexOutOfBoundsException {
 		if (pos < 0 || pos >= length())
 			throw new IndexOutOfBoundsException();
-		return root.get(pos);
+		char c = root.get(pos);
+		accessed(pos);
+		return c;
 	}
 
 	/**
@@ -190,10 +816,11 @@ public class EditTree implements CharSequence {
 	 *             within this tree.
 	 */
 	public String get(int pos, int length) throws IndexOutOfBoundsException {
-		if (pos < 0 || pos + length > length())
+		if (pos < 0 || length < 0 || length > length() - pos)
 			throw new IndexOutOfBoundsException();
 		StringBuilder sb = new StringBuilder();
 		root.get(pos, pos + length, sb);
+		accessed(pos);
 		return sb.toString();
 	}
 
@@ -229,6 +856,7 @@ public class EditTree implements CharSequence {
 		if (s.length() == 0)
 			return pos;
 		int l = root.find(s, pos, new LinkedList<Integer>());
+		accessed(l == -1 ? pos : l);
 		if (l == -1)
 			return -1;
 		return l - s.length() + 1;
@@ -257,13 +885,20 @@ public class EditTree implements CharSequence {
 	public void add(char c, int pos) throws IndexOutOfBoundsException {
 		if (pos < 0 || pos > length())
 			throw new IndexOutOfBoundsException();
+		addElement(c, pos);
+		changed(pos, 0, 1);
+		verify(pos);
+		fireInserted(pos, 1);
+		fireDone();
+		accessed(pos);
+	}
+
+	private void addElement(char c, int pos) {
 		H a = new H();
 		root = root.add(c, pos, a);
 		totalRotationCount += a.rotate;
 		if (!a.treeBalanced)
 			height++;
-		treeVersion++;
-		check();
 	}
 
 	/**
@@ -277,13 +912,21 @@ public class EditTree implements CharSequence {
 	public char delete(int pos) throws IndexOutOfBoundsException {
 		if (pos < 0 || pos >= length())
 			throw new IndexOutOfBoundsException();
+		char deleted = deleteElement(pos);
+		changed(pos, 1, 0);
+		verify(pos);
+		fireDeleted(pos, 1);
+		fireDone();
+		accessed(pos);
+		return deleted;
+	}
+
+	private char deleteElement(int pos) {
 		H a = new H();
 		root = root.delete(pos, a);
 		totalRotationCount += a.rotate;
 		if (!a.treeBalanced)
 			height--;
-		treeVersion++;
-		check();
 		return a.deleted;
 	}
 
@@ -306,18 +949,29 @@ public class EditTree implements CharSequence {
 		if (start < 0 || start + length >= this.length())
 			throw new IndexOutOfBoundsException(
 					(start < 0) ? "negative first argument to delete" : "delete range extends past end of string");
-		EditTree t2 = this.split(start);
-		EditTree t3 = t2.split(length);
-		this.concatenate(t3);
+		EditTree t2 = this.splitTree(start);
+		EditTree t3 = t2.splitTree(length);
+		this.concatenateTree(t3);
+		changed(start, length, 0);
+		verify(start);
+		t2.verify(0);
+		fireDeleted(start, length);
+		fireDone();
+		accessed(start);
 		return t2;
 	}
 
 	public void insert(int pos, String str) throws IndexOutOfBoundsException {
 		if (pos < 0 || pos > length())
 			throw new IndexOutOfBoundsException();
-		EditTree t2 = this.split(pos);
-		this.concatenate(new EditTree(str));
-		this.concatenate(t2);
+		EditTree t2 = this.splitTree(pos);
+		this.concatenateTree(new EditTree(str));
+		this.concatenateTree(t2);
+		changed(pos, 0, str.length());
+		verify(pos);
+		fireInserted(pos, str.length());
+		fireDone();
+		accessed(pos);
 	}
 
 	/**
@@ -332,6 +986,23 @@ public class EditTree implements CharSequence {
 	public void concatenate(EditTree other) throws IllegalArgumentException {
 		if (this == other)
 			throw new IllegalArgumentException();
+		int pos = length();
+		if (other.anchors != null)
+			other.anchors.deleted(0, other.length());
+		concatenateTree(other);
+		changed(pos, 0, length() - pos);
+		verify(pos);
+		fireInserted(pos, length() - pos);
+		fireDone();
+		accessed(pos);
+	}
+
+	/**
+	 * concatenate without checking the tree afterwards
+	 * 
+	 * @param other
+	 */
+	private void concatenateTree(EditTree other) {
 		int heightThis = height();
 		int heightOther = other.height();
 		H a = new H();
@@ -340,7 +1011,7 @@ public class EditTree implements CharSequence {
 			if (heightOther == -1) {
 				// other is empty, do nothing
 			} else if (heightOther == 0) {
-				this.add(other.root.getElement());
+				this.addElement(other.root.getElement(), length());
 			} else {
 				other.root = other.root.delete(0, a);
 				if (!a.isBalancedAndRest())
@@ -355,7 +1026,7 @@ public class EditTree implements CharSequence {
 				this.root = other.root;
 				this.height = other.height;
 			} else if (heightThis == 0) {
-				other.add(this.root.getElement(), 0);
+				other.addElement(this.root.getElement(), 0);
 				this.root = other.root;
 				this.height = other.height;
 			} else {
@@ -371,8 +1042,6 @@ public class EditTree implements CharSequence {
 		totalRotationCount += a.rotate + other.totalRotationCount;
 		other.root = Node.NULL_NODE;
 		other.height = -1;
-		treeVersion++;
-		check();
 	}
 
 	/**
@@ -389,88 +1058,407 @@ public class EditTree implements CharSequence {
 	public EditTree split(int pos) throws IndexOutOfBoundsException {
 		if (pos < 0 || pos > length())
 			throw new IndexOutOfBoundsException();
+		EditTree editTree = splitTree(pos);
+		changed(pos, editTree.length(), 0);
+		editTree.checkLevel = checkLevel;
+		verify(pos);
+		editTree.verify(0);
+		fireDeleted(pos, editTree.length());
+		fireDone();
+		accessed(pos);
+		return editTree;
+	}
+
+	/**
+	 * split without checking either tree afterwards
+	 * 
+	 * @param pos
+	 * @return the tree containing the elements at positions >= pos
+	 */
+	private EditTree splitTree(int pos) {
+		if (root == Node.NULL_NODE)
+			return new EditTree();
 		SH result = new SH();
 		root.split(pos, height, result);
 		// left tree
 		this.root = result.leftRoot;
 		this.height = result.leftHeight;
-		treeVersion++;
-		check();
 		// right tree
 		EditTree editTree = new EditTree();
 		editTree.root = result.rightRoot;
 		editTree.height = result.rightHeight;
-		editTree.check();
 
 		totalRotationCount += result.rotate;
 		return editTree;
 	}
 
+	/**
+	 * Find what changed between this tree and other. Subtrees the two trees
+	 * share (versions kept by an UndoManager, lines shared through an
+	 * Interner) are skipped by reference, so for a few edits between two
+	 * versions of a large document this costs about O(edits log n) instead of
+	 * O(n); only the regions that really differ are compared character by
+	 * character, with Myers' algorithm.
+	 * 
+	 * @param other
+	 * @return edits sorted by position that turn this tree into other when
+	 *         given to applyEdits()
+	 */
+	public List<Edit> diff(EditTree other) {
+		return TreeDiff.diff(this, other);
+	}
 
 	/**
-	 * I add this method to all methods in editor tree that will modify the
-	 * structure of tree, so if there is no exception throw, I can be 100% sure
-	 * that all fields have been updated and there is no quiet bugs. Maybe this
-	 * would be a good approach for later courses, to speed up the debugging
-	 * process and catch all bugs where they are born.
+	 * Apply a batch of edits at once. All positions refer to this tree as it
+	 * is before the call, so callers do not have to shift later edits by hand.
+	 * The edits are sorted and the tree is cut around the middle one, then
+	 * each half around the middle one of its own edits, and so on; the pieces
+	 * are joined back with the inserted texts on the way up. Halving the edits
+	 * halves the trees they are cut from, so k edits on a tree of n
+	 * characters cost O(k log(n/k)) plus the length of the inserted texts,
+	 * instead of the O(k log n) of k single edits, and the tree is checked
+	 * once per batch.
 	 * 
-	 * Also, since it is O(n), it is not very wise to check huge tree and
-	 * consume way to many time. I only check small trees.
+	 * @param edits
+	 *            edits in any order. Edits must not overlap, but several
+	 *            insertions may share a position; they are applied in the order
+	 *            given. An insertion at the position where an edit that deletes
+	 *            starts does not overlap it: it goes in front of the deleted
+	 *            text, whichever of the two comes first in the list.
+	 * @throws IndexOutOfBoundsException
+	 *             if an edit touches a position outside of this tree
+	 * @throws IllegalArgumentException
+	 *             if two edits overlap
+	 */
+	public void applyEdits(List<Edit> edits) throws IndexOutOfBoundsException, IllegalArgumentException {
+		if (edits.isEmpty())
+			return;
+		List<Edit> sorted = new ArrayList<Edit>(edits);
+		Collections.sort(sorted);
+		int previousEnd = 0;
+		for (Edit e : sorted) {
+			// getEnd() may not fit in an int
+			if (e.getPosition() < 0 || e.getDeleteLength() > length() - e.getPosition())
+				throw new IndexOutOfBoundsException(e.toString());
+			if (e.getPosition() < previousEnd)
+				throw new IllegalArgumentException("overlapping edits at " + e.getPosition());
+			previousEnd = e.getEnd();
+		}
+		applySorted(sorted, 0, sorted.size(), 0);
+		editsApplied(sorted);
+	}
+
+	/**
+	 * apply sorted edits from to to - 1, which fall inside this tree
 	 * 
+	 * @param sorted
+	 * @param from
+	 * @param to
+	 * @param offset
+	 *            position of this tree in the tree the edits refer to
 	 */
-	public void check() {
-		if (Node.NULL_NODE.getLeft() != null || Node.NULL_NODE.getRight() != null || Node.NULL_NODE.size() != 0
-				|| Node.NULL_NODE.getBalance() != null || Node.NULL_NODE.getElement() != 0)
-			throw new RuntimeException("NULL_NODE changed!");
-		if (length() < 10000) {
-			try {
-				root.check(height);
-			} catch (RuntimeException e) {
-				DisplayableBinaryTree t = new DisplayableBinaryTree(this);
-				t.show(true);
-				while (true)
-					;
+	private void applySorted(List<Edit> sorted, int from, int to, int offset) {
+		if (from == to)
+			return;
+		int middle = (from + to) >>> 1;
+		Edit e = sorted.get(middle);
+		EditTree right = splitTree(e.getEnd() - offset);
+		if (e.getDeleteLength() > 0)
+			splitTree(e.getPosition() - offset);
+		applySorted(sorted, from, middle, offset);
+		right.applySorted(sorted, middle + 1, to, e.getEnd());
+		if (e.getText().length() > 0)
+			concatenateTree(new EditTree(e.getText()));
+		concatenateTree(right);
+	}
+
+	/**
+	 * record, check and report sorted edits that were just applied
+	 * 
+	 * @param sorted
+	 */
+	private void editsApplied(List<Edit> sorted) {
+		int shift = 0;
+		for (Edit e : sorted) {
+			changed(e.getPosition() + shift, e.getDeleteLength(), e.getText().length());
+			shift += e.getText().length() - e.getDeleteLength();
+		}
+		verify(sorted.get(0).getPosition());
+		if (listeners != null || anchors != null) {
+			shift = 0;
+			for (Edit e : sorted) {
+				fireDeleted(e.getPosition() + shift, e.getDeleteLength());
+				fireInserted(e.getPosition() + shift, e.getText().length());
+				shift += e.getText().length() - e.getDeleteLength();
 			}
+			fireDone();
 		}
+		accessed(sorted.get(0).getPosition());
 	}
 
-	public Iterator<Character> iterator() {
-		return new InOrderIterator();
+	/**
+	 * Apply sorted edits that do not overlap, each a few characters long,
+	 * from the last one to the first, one character at a time. For short
+	 * edits one descent per character is cheaper than cutting the tree
+	 * around each edit and joining it back.
+	 * 
+	 * @param sorted
+	 */
+	private void applyShortEdits(List<Edit> sorted) {
+		if (sorted.isEmpty())
+			return;
+		for (int i = sorted.size() - 1; i >= 0; i--) {
+			Edit e = sorted.get(i);
+			for (int k = 0; k < e.getDeleteLength(); k++)
+				deleteElement(e.getPosition());
+			String text = e.getText();
+			for (int k = text.length() - 1; k >= 0; k--)
+				addElement(text.charAt(k), e.getPosition());
+		}
+		editsApplied(sorted);
 	}
 
-	private class InOrderIterator implements Iterator<Character> {
-		private Stack<Node> stack;
-		private int version;
 
-		public InOrderIterator() {
-			stack = new Stack<Node>();
-			version = treeVersion;
-			advance(root);
+	/**
+	 * Rewrite every character from start to end with op, e.g. to change case
+	 * or mask a secret, without changing the shape of the tree: the elements
+	 * are replaced where they are, and lazy parts of the tree inside the range
+	 * get new compact text without turning into nodes. Ranges longer than
+	 * PARALLEL_CUTOFF are rewritten on the common ForkJoinPool, so op may be
+	 * called from several threads at once. Anchors keep their positions.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param op
+	 * @throws IndexOutOfBoundsException
+	 *             unless 0 &lt;= start &lt;= end &lt;= length()
+	 */
+	public void transform(int start, int end, CharUnaryOperator op) throws IndexOutOfBoundsException {
+		if (start < 0 || end < start || end > length())
+			throw new IndexOutOfBoundsException();
+		if (start == end)
+			return;
+		if (end - start > PARALLEL_CUTOFF)
+			root = ForkJoinPool.commonPool().invoke(new Node.TransformTask(root, start, end, op));
+		else
+			root = root.transform(start, end, op);
+		changed(start, end - start, end - start);
+		verify(start);
+		fireReplaced(start, end - start);
+		fireDone();
+		accessed(start);
+	}
+
+	/**
+	 * Type the same text at many cursors at once, e.g. in multi-cursor
+	 * editing, with one check and one batch of events for all of them. A
+	 * short text is added character by character from the last cursor to the
+	 * first, a long one with a single split and join pass like applyEdits.
+	 * 
+	 * @param sortedPositions
+	 *            the cursors, in ascending order, in this tree as it is before
+	 *            the call
+	 * @param text
+	 * @return where the cursors are afterwards, right after the text each of
+	 *         them inserted
+	 * @throws IndexOutOfBoundsException
+	 *             if a position is outside of this tree
+	 * @throws IllegalArgumentException
+	 *             if the positions are not sorted
+	 */
+	public int[] insertAtAll(int[] sortedPositions, CharSequence text)
+			throws IndexOutOfBoundsException, IllegalArgumentException {
+		checkSorted(sortedPositions);
+		String s = text.toString();
+		List<Edit> edits = new ArrayList<Edit>(sortedPositions.length);
+		int[] moved = new int[sortedPositions.length];
+		for (int i = 0; i < sortedPositions.length; i++) {
+			if (sortedPositions[i] < 0 || sortedPositions[i] > length())
+				throw new IndexOutOfBoundsException("" + sortedPositions[i]);
+			edits.add(Edit.insert(sortedPositions[i], s));
+			moved[i] = sortedPositions[i] + (i + 1) * s.length();
 		}
+		if (s.length() > SHORT_EDIT)
+			applyEdits(edits);
+		else if (s.length() > 0)
+			applyShortEdits(edits);
+		return moved;
+	}
 
-		private void advance(Node current) {
-			while (current != Node.NULL_NODE) {
-				stack.push(current);
-				current = current.getLeft();
+	/**
+	 * Delete length characters from each of many cursors at once (for a
+	 * backspace, pass the cursors minus length). Ranges that overlap are
+	 * deleted once, and a range that would go past the end stops there.
+	 * 
+	 * @param sortedPositions
+	 *            the cursors, in ascending order, in this tree as it is before
+	 *            the call
+	 * @param length
+	 * @return where the cursors are afterwards
+	 * @throws IndexOutOfBoundsException
+	 *             if a position is outside of this tree
+	 * @throws IllegalArgumentException
+	 *             if the positions are not sorted or length is negative
+	 */
+	public int[] deleteAtAll(int[] sortedPositions, int length)
+			throws IndexOutOfBoundsException, IllegalArgumentException {
+		checkSorted(sortedPositions);
+		if (length < 0)
+			throw new IllegalArgumentException("negative length");
+		List<Edit> edits = new ArrayList<Edit>();
+		int[] moved = new int[sortedPositions.length];
+		int deleted = 0;
+		int rangeStart = -1;
+		int rangeEnd = -1;
+		for (int i = 0; i < sortedPositions.length; i++) {
+			int pos = sortedPositions[i];
+			if (pos < 0 || pos > length())
+				throw new IndexOutOfBoundsException("" + pos);
+			int end = length < length() - pos ? pos + length : length();
+			if (pos > rangeEnd) {
+				if (rangeEnd > rangeStart)
+					edits.add(Edit.delete(rangeStart, rangeEnd - rangeStart));
+				deleted += Math.max(0, rangeEnd - rangeStart);
+				rangeStart = pos;
+				rangeEnd = end;
+				moved[i] = pos - deleted;
+			} else {
+				// inside the range of an earlier cursor
+				moved[i] = rangeStart - deleted;
+				rangeEnd = Math.max(rangeEnd, end);
 			}
 		}
+		if (rangeEnd > rangeStart)
+			edits.add(Edit.delete(rangeStart, rangeEnd - rangeStart));
+		if (length > SHORT_EDIT)
+			applyEdits(edits);
+		else
+			applyShortEdits(edits);
+		return moved;
+	}
 
-		@Override
-		public boolean hasNext() {
-			return !stack.isEmpty();
+	private static void checkSorted(int[] positions) throws IllegalArgumentException {
+		for (int i = 1; i < positions.length; i++)
+			if (positions[i] < positions[i - 1])
+				throw new IllegalArgumentException("positions not sorted at " + i);
+	}
+
+	/**
+	 * I add this method to all methods in editor tree that will modify the
+	 * structure of tree, so if there is no exception throw, I can be 100% sure
+	 * that all fields have been updated and there is no quiet bugs. Maybe this
+	 * would be a good approach for later courses, to speed up the debugging
+	 * process and catch all bugs where they are born.
+	 * 
+	 * Edits now go through verify(), which checks as much as the check level
+	 * of the tree asks for; this checks the whole tree, whatever the level.
+	 * Lazy, paged and compressed parts are checked without being loaded.
+	 * 
+	 * @throws TreeCheckException
+	 *             naming the first node found that breaks an invariant
+	 */
+	public void check() throws TreeCheckException {
+		checkNullNode();
+		try {
+			root.check(height);
+		} catch (TreeCheckException e) {
+			throw e.in(describe());
 		}
+	}
 
-		@Override
-		public Character next() {
-			if (!hasNext())
-				throw new NoSuchElementException();
-			if (treeVersion != version)
-				throw new ConcurrentModificationException();
-			Node current = stack.pop();
-			advance(current.getRight());
-			return current.getElement();
+	/**
+	 * check the tree after an edit at pos, as much as the check level asks
+	 * for
+	 */
+	private void verify(int pos) throws TreeCheckException {
+		switch (checkLevel) {
+		case OFF:
+			return;
+		case SAMPLED:
+			if (--editsUntilFullCheck > 0) {
+				checkPath(pos);
+				return;
+			}
+			check();
+			editsUntilFullCheck = Math.max(SAMPLE_INTERVAL, length());
+			return;
+		case PATH_ONLY:
+			checkPath(pos);
+			return;
+		case FULL:
+			check();
+			return;
 		}
+	}
+
+	/**
+	 * check the path from the root to pos
+	 */
+	private void checkPath(int pos) throws TreeCheckException {
+		checkNullNode();
+		try {
+			root.checkPath(Math.min(pos, length()), height);
+		} catch (TreeCheckException e) {
+			throw e.in(describe());
+		}
+	}
+
+	private static void checkNullNode() throws TreeCheckException {
+		if (Node.NULL_NODE.getLeft() != null || Node.NULL_NODE.getRight() != null || Node.NULL_NODE.size() != 0
+				|| Node.NULL_NODE.getBalance() != null || Node.NULL_NODE.getElement() != 0)
+			throw new TreeCheckException("NULL_NODE changed");
+	}
+
+	/**
+	 * 
+	 * @return what a TreeCheckException says about this tree
+	 */
+	private String describe() {
+		return ", in a tree of length " + length() + " and height " + height + " checked at " + checkLevel;
+	}
+
+	public CheckLevel getCheckLevel() {
+		return checkLevel;
+	}
 
+	/**
+	 * Choose how much of this tree is checked after each edit. Trees split
+	 * from this one and copies of it get the same level.
+	 * 
+	 * @param level
+	 */
+	public void setCheckLevel(CheckLevel level) {
+		if (level == null)
+			throw new NullPointerException();
+		checkLevel = level;
+		editsUntilFullCheck = 0;
+	}
+
+	/**
+	 * The characters of this tree as it is now, see
+	 * {@link TreeVersion#chars()}. tree.chars().parallel() splits the work
+	 * along subtrees.
+	 */
+	@Override
+	public IntStream chars() {
+		return snapshot().chars();
+	}
+
+	/**
+	 * The code points of this tree as it is now, see
+	 * {@link TreeVersion#codePoints()}
+	 */
+	@Override
+	public IntStream codePoints() {
+		return snapshot().codePoints();
+	}
+
+	/**
+	 * iterate over the text of this tree as it is now; edits made while
+	 * iterating do not affect the iterator
+	 */
+	public Iterator<Character> iterator() {
+		return snapshot().iterator();
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,210 @@
+package editortrees;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import editortrees.Node.H;
+
+/**
+ * Builds an EditTree from characters that arrive one piece at a time, so a
+ * large document never has to exist as a single String.
+ *
+ * The appended characters are kept in one growing array of bytes (Latin-1),
+ * which is widened to chars the first time a character of 256 or above is
+ * appended. build() hands that array to the tree, whose leaves read from it
+ * until they are edited (see {@link CompactText}), so the tree has the same
+ * shape and balance codes as EditTree(String) and costs little more than the
+ * text itself.
+ *
+ * With an {@link Interner}, every line becomes a leaf of its own that is
+ * shared with the equal lines seen by the interner before, and the newlines
+ * join the lines into a balanced tree.
+ *
+ * @author zhang
+ *
+ */
+public class EditTreeBuilder implements Appendable {
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private byte[] latin1 = new byte[INITIAL_CAPACITY];
+	private char[] utf16;
+	private int size;
+	private Interner interner;
+
+	/**
+	 *
+	 * @return number of characters appended so far
+	 */
+	public int length() {
+		return size;
+	}
+
+	@Override
+	public EditTreeBuilder append(char c) {
+		if (utf16 == null && c >= 256)
+			widen();
+		if (size == capacity())
+			grow(size + 1);
+		if (utf16 == null)
+			latin1[size++] = (byte) c;
+		else
+			utf16[size++] = c;
+		return this;
+	}
+
+	private int capacity() {
+		return utf16 == null ? latin1.length : utf16.length;
+	}
+
+	private void grow(int needed) {
+		int capacity = Math.max(needed, capacity() + (capacity() >> 1));
+		if (capacity < 0)
+			throw new OutOfMemoryError("text too large for an EditTree");
+		if (utf16 == null)
+			latin1 = Arrays.copyOf(latin1, capacity);
+		else
+			utf16 = Arrays.copyOf(utf16, capacity);
+	}
+
+	private void widen() {
+		utf16 = new char[latin1.length];
+		for (int i = 0; i < size; i++)
+			utf16[i] = (char) (latin1[i] & 0xff);
+		latin1 = null;
+	}
+
+	/**
+	 * Share equal lines through interner from the next build() on.
+	 *
+	 * @param interner
+	 *            the table to share lines through, null to stop sharing
+	 * @return this builder
+	 */
+	public EditTreeBuilder setInterner(Interner interner) {
+		this.interner = interner;
+		return this;
+	}
+
+	/**
+	 * append len characters of chars starting at off
+	 *
+	 * @param chars
+	 * @param off
+	 * @param len
+	 * @return this builder
+	 */
+	public EditTreeBuilder append(char[] chars, int off, int len) {
+		if (off < 0 || len < 0 || off + len > chars.length)
+			throw new IndexOutOfBoundsException();
+		if (capacity() - size < len)
+			grow(size + len);
+		for (int i = off; i < off + len; i++)
+			append(chars[i]);
+		return this;
+	}
+
+	@Override
+	public EditTreeBuilder append(CharSequence csq) {
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public EditTreeBuilder append(CharSequence csq, int start, int end) {
+		if (start < 0 || start > end || end > csq.length())
+			throw new IndexOutOfBoundsException();
+		if (capacity() - size < end - start)
+			grow(size + end - start);
+		for (int i = start; i < end; i++)
+			append(csq.charAt(i));
+		return this;
+	}
+
+	/**
+	 * append everything that is left in the reader. The reader is not closed.
+	 *
+	 * @param reader
+	 * @return this builder
+	 * @throws IOException
+	 */
+	public EditTreeBuilder readFrom(Reader reader) throws IOException {
+		char[] buffer = new char[READ_BUFFER_SIZE];
+		int read;
+		while ((read = reader.read(buffer)) != -1)
+			append(buffer, 0, read);
+		return this;
+	}
+
+	/**
+	 * Build a balanced tree of all appended characters. The builder is empty
+	 * afterwards and can be reused.
+	 *
+	 * @return the tree whose toString is everything appended
+	 */
+	public EditTree build() {
+		// give back what growing left unused, if that is worth a copy
+		if (capacity() - size > size >> 3) {
+			if (utf16 == null)
+				latin1 = Arrays.copyOf(latin1, size);
+			else
+				utf16 = Arrays.copyOf(utf16, size);
+		}
+		CompactText text = new CompactText(latin1, utf16);
+		EditTree tree;
+		if (interner != null && size > 0) {
+			if (text.length() != size)
+				text = CompactText.of(text, 0, size);
+			tree = buildLines(text);
+		} else {
+			tree = new EditTree(EditTree.construct(null, text, size, ForkJoinPool.commonPool()),
+					EditTree.balancedHeightFromSize(size));
+		}
+		latin1 = new byte[INITIAL_CAPACITY];
+		utf16 = null;
+		size = 0;
+		return tree;
+	}
+
+	/**
+	 * join the interned lines of text with the newlines between them, the
+	 * same way EditTree.concatenate joins two trees
+	 *
+	 * @param text
+	 * @return the tree
+	 */
+	private EditTree buildLines(CompactText text) {
+		Node root = Node.NULL_NODE;
+		int height = -1;
+		int start = 0;
+		for (int end = 0; end <= size; end++) {
+			if (end < size && text.charAt(end) != '\n')
+				continue;
+			Node line = interner.leaf(text, start, end);
+			int lineHeight = EditTree.balancedHeightFromSize(end - start);
+			if (start == 0) {
+				root = line;
+				height = lineHeight;
+			} else {
+				H a = new H();
+				a.deleted = '\n';
+				if (line == Node.NULL_NODE) {
+					root = root.add('\n', start - 1, a);
+				} else if (root == Node.NULL_NODE) {
+					root = line.add('\n', 0, a);
+					height = lineHeight;
+				} else if (height >= lineHeight) {
+					root = root.concatRight(a, line, height - lineHeight);
+				} else {
+					root = line.concatLeft(a, root, lineHeight - height);
+					height = lineHeight;
+				}
+				if (!a.treeBalanced)
+					height++;
+			}
+			start = end + 1;
+		}
+		return new EditTree(root, height);
+	}
+}
@@ -1,6 +1,14 @@
 package editortrees;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -41,4 +49,125 @@ public class EditTreeExtraTest {
 		assertEquals("de", t2.toString());
 		t2.check();
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testApplyEdits() {
+		EditTree t1 = new EditTree("abcdefghij");
+
+		t1.applyEdits(Arrays.asList(new Edit(8, 1, "XY"), Edit.insert(0, ">"), Edit.delete(2, 3),
+				Edit.insert(10, "<"), Edit.insert(0, ">")));
+
+		assertEquals(">>abfghXYj<", t1.toString());
+		t1.check();
+	}
+
+	@Test
+	public void testApplyEditsOverlapping() {
+		EditTree t1 = new EditTree("abcdef");
+		try {
+			t1.applyEdits(Arrays.asList(Edit.delete(1, 3), Edit.delete(3, 1)));
+			fail("overlapping edits should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals("abcdef", t1.toString());
+	}
+
+	@Test
+	public void testApplyEditsInsertAndDeleteAtSamePosition() {
+		List<Edit> deleteFirst = Arrays.asList(Edit.delete(2, 3), Edit.insert(2, "XY"), new Edit(2, 0, "Z"));
+		List<Edit> insertFirst = Arrays.asList(Edit.insert(2, "XY"), new Edit(2, 0, "Z"), Edit.delete(2, 3));
+		for (List<Edit> edits : Arrays.asList(deleteFirst, insertFirst)) {
+			EditTree t = new EditTree("abcdefg");
+			t.applyEdits(edits);
+			assertEquals("abXYZfg", t.toString());
+			t.check();
+		}
+		List<Edit> replaceFirst = Arrays.asList(new Edit(2, 3, "R"), Edit.insert(2, "I"));
+		List<Edit> replaceLast = Arrays.asList(Edit.insert(2, "I"), new Edit(2, 3, "R"));
+		for (List<Edit> edits : Arrays.asList(replaceFirst, replaceLast)) {
+			EditTree t = new EditTree("abcdefg");
+			t.applyEdits(edits);
+			assertEquals("abIRfg", t.toString());
+		}
+		// two edits that delete from the same position still overlap
+		EditTree t = new EditTree("abcdefg");
+		try {
+			t.applyEdits(Arrays.asList(Edit.delete(2, 1), new Edit(2, 2, "R")));
+			fail("overlapping edits should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testApplyEditsOutOfBounds() {
+		Edit[] bad = { Edit.delete(3, Integer.MAX_VALUE), Edit.insert(-1, "x"), Edit.insert(11, "x"),
+				Edit.delete(Integer.MAX_VALUE, 1), new Edit(8, 3, "x") };
+		for (Edit e : bad) {
+			EditTree t = new EditTree("abcdefghij");
+			try {
+				t.applyEdits(Arrays.asList(Edit.insert(0, ">"), e));
+				fail(e.toString());
+			} catch (IndexOutOfBoundsException ex) {
+				// expected
+			}
+			assertEquals("abcdefghij", t.toString());
+		}
+	}
+
+	@Test
+	public void testApplyEditsRandom() {
+		Random r = new Random(26);
+		for (int round = 0; round < 50; round++) {
+			StringBuilder sb = new StringBuilder();
+			int n = r.nextInt(300);
+			for (int i = 0; i < n; i++)
+				sb.append((char) ('a' + r.nextInt(26)));
+			EditTree t = new EditTree(sb.toString());
+			List<Edit> edits = new ArrayList<Edit>();
+			int pos = 0;
+			while (pos < n) {
+				pos += r.nextInt(20);
+				int del = Math.min(r.nextInt(4), Math.max(0, n - pos));
+				if (pos > n)
+					break;
+				edits.add(new Edit(pos, del, r.nextBoolean() ? "" : "" + (char) ('A' + r.nextInt(26))));
+				pos += del;
+			}
+			for (int i = edits.size() - 1; i >= 0; i--) {
+				Edit e = edits.get(i);
+				sb.replace(e.getPosition(), e.getEnd(), e.getText());
+			}
+			t.applyEdits(edits);
+			assertEquals(sb.toString(), t.toString());
+			t.check();
+		}
+	}
+
+	@Test
+	public void testBuilderSameShapeAsString() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int n = 0; n < 200; n++) {
+			EditTree expected = new EditTree(sb.toString());
+			EditTreeBuilder builder = new EditTreeBuilder();
+			builder.readFrom(new StringReader(sb.toString()));
+			EditTree built = builder.build();
+			assertEquals(expected.toDebugString(), built.toDebugString());
+			assertEquals(expected.height(), built.height());
+			built.check();
+			sb.append((char) ('a' + n % 26));
+		}
+	}
+
+	@Test
+	public void testBuilderAppend() {
+		EditTreeBuilder builder = new EditTreeBuilder();
+		builder.append('a').append("bcd").append(new char[] { 'x', 'e', 'f' }, 1, 2).append("zgz", 1, 2);
+		EditTree t = builder.build();
+		assertEquals("abcdefg", t.toString());
+		assertEquals(0, builder.length());
+		t.add('h');
+		assertEquals("abcdefgh", t.toString());
+	}
+}
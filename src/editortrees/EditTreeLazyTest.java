@@ -0,0 +1,177 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for trees that start out as lazy nodes, see
+ * {@link editortrees.EditTree#open(Path, Charset)}
+ * 
+ */
+public class EditTreeLazyTest {
+
+	private static String randomText(Random r, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	private static EditTree open(String content, String charset) throws IOException {
+		Path file = Files.createTempFile("editTree", ".txt");
+		try {
+			Files.write(file, content.getBytes(charset));
+			return EditTree.open(file, Charset.forName(charset));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testOpenSameShape() throws IOException {
+		Random r = new Random(28);
+		for (int n = 0; n < 100; n++) {
+			String s = randomText(r, n);
+			for (String charset : new String[] { "ISO-8859-1", "UTF-16LE", "UTF-16BE", "UTF-8" }) {
+				EditTree t = open(s, charset);
+				assertEquals(s, t.toString());
+				assertEquals(new EditTree(s).toDebugString(), t.toDebugString());
+				assertEquals(new EditTree(s).height(), t.height());
+			}
+		}
+	}
+
+	@Test
+	public void testReadsDoNotMaterialize() throws IOException {
+		String s = randomText(new Random(1), 20000) + "needle" + randomText(new Random(2), 100);
+		EditTree t = open(s, "ISO-8859-1");
+		assertEquals(s.charAt(12345), t.charAt(12345));
+		assertEquals(s.substring(19990, 20010), t.get(19990, 20));
+		assertEquals(s.indexOf("needle"), t.find("needle"));
+		assertEquals(s, t.toString());
+		assertTrue(t.getRoot() instanceof LazyNode);
+		assertFalse(((LazyNode) t.getRoot()).isMaterialized());
+	}
+
+	@Test
+	public void testEditsOnLazyTree() throws IOException {
+		Random r = new Random(280);
+		String s = randomText(r, 3000);
+		EditTree t = open(s, "ISO-8859-1");
+		EditTree eager = new EditTree(s);
+		StringBuilder sb = new StringBuilder(s);
+		for (int i = 0; i < 500; i++) {
+			int pos = r.nextInt(sb.length());
+			switch (r.nextInt(4)) {
+			case 0:
+				t.add('#', pos);
+				eager.add('#', pos);
+				sb.insert(pos, '#');
+				break;
+			case 1:
+				assertEquals(sb.charAt(pos), t.delete(pos));
+				eager.delete(pos);
+				sb.deleteCharAt(pos);
+				break;
+			case 2:
+				t.concatenate(t.split(pos));
+				eager.concatenate(eager.split(pos));
+				break;
+			default:
+				assertEquals(sb.indexOf("ab", pos), t.find("ab", pos));
+			}
+		}
+		assertEquals(sb.toString(), t.toString());
+		assertEquals(eager.toDebugString(), t.toDebugString());
+		assertEquals(eager.totalRotationCount(), t.totalRotationCount());
+		t.check();
+	}
+
+	@Test
+	public void testWriteTo() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		Random r = new Random(30);
+		while (sb.length() < 200000) {
+			if (r.nextInt(10) == 0)
+				sb.append("\uD83D\uDE00");
+			else
+				sb.append((char) ('a' + r.nextInt(26)));
+		}
+		String s = sb.toString();
+		for (EditTree t : new EditTree[] { new EditTree(s), open(s, "UTF-16LE") }) {
+			t.add('\u00e9', 1000);
+			String expected = t.toString();
+			StringWriter writer = new StringWriter();
+			t.writeTo(writer);
+			assertEquals(expected, writer.toString());
+			for (String charset : new String[] { "UTF-8", "ISO-8859-1", "UTF-16BE" }) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				t.writeTo(Channels.newChannel(bytes), Charset.forName(charset));
+				assertEquals(new String(expected.getBytes(charset), charset),
+						new String(bytes.toByteArray(), charset));
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return number of lazy leaves not materialized yet, without
+	 *         materializing any
+	 */
+	private static int lazyLeaves(Node n) {
+		if (n == Node.NULL_NODE)
+			return 0;
+		if (LazyNode.isLazy(n))
+			return 1;
+		return lazyLeaves(n.getLeft()) + lazyLeaves(n.getRight());
+	}
+
+	/**
+	 * 
+	 * @return number of nodes that are materialized
+	 */
+	private static int realNodes(Node n) {
+		if (n == Node.NULL_NODE || LazyNode.isLazy(n))
+			return 0;
+		return 1 + realNodes(n.getLeft()) + realNodes(n.getRight());
+	}
+
+	@Test
+	public void testCompactLeaves() {
+		StringBuilder sb = new StringBuilder(randomText(new Random(34), 50000));
+		sb.setCharAt(777, '\u4e2d');
+		String s = sb.toString();
+		EditTree t = new EditTree(s);
+		EditTree built = new EditTreeBuilder().append(s).build();
+		int leaves = lazyLeaves(t.getRoot());
+		assertTrue(leaves >= 50000 / EditTree.CHUNK_SIZE);
+		assertEquals(leaves, lazyLeaves(built.getRoot()));
+
+		assertEquals(s.charAt(777), t.charAt(777));
+		assertEquals(s.substring(700, 900), t.get(700, 200));
+		assertEquals(s.indexOf("xyz"), t.find("xyz"));
+		assertEquals(s, t.toString());
+		assertEquals(leaves, lazyLeaves(t.getRoot()));
+		int nodes = realNodes(t.getRoot());
+
+		t.add('\u00e9', 30000);
+		built.add('\u00e9', 30000);
+		sb.insert(30000, '\u00e9');
+		// only the path into one leaf is unfolded
+		assertTrue(realNodes(t.getRoot()) - nodes <= 2 * 7);
+		assertEquals(sb.toString(), t.toString());
+		assertEquals(t.toDebugString(), built.toDebugString());
+	}
+}
@@ -0,0 +1,103 @@
+package editortrees;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A hash-cons table of leaves, so that text that occurs many times, like the
+ * repeated lines of generated code, CSV files and logs, is stored once.
+ *
+ * An EditTreeBuilder given an interner (see
+ * {@link EditTreeBuilder#setInterner(Interner)}) makes every line a lazy leaf
+ * over {@link CompactText} and looks it up here. Equal lines get the very
+ * same leaf, which is marked shared, so an edit inside one of them copies
+ * the path it changes instead of changing the other occurrences (see
+ * Node.unshared()). The table holds its leaves weakly: a line that no tree
+ * uses any more drops out by itself. One interner can serve many documents,
+ * which then share their common lines too.
+ *
+ * An interner is not thread safe.
+ *
+ * @author zhang
+ *
+ */
+public class Interner {
+	private final Map<CompactText, WeakReference<Node>> table = new WeakHashMap<CompactText, WeakReference<Node>>();
+
+	private long lookups;
+	private long hits;
+	private long lookupNanos;
+	private long charsLookedUp;
+	private long charsStored;
+
+	/**
+	 *
+	 * @param s
+	 * @param start
+	 * @param end
+	 * @return a shared leaf holding the characters of s from start to end,
+	 *         NULL_NODE if there are none
+	 */
+	Node leaf(CharSequence s, int start, int end) {
+		if (start == end)
+			return Node.NULL_NODE;
+		long begin = System.nanoTime();
+		CompactText text = CompactText.of(s, start, end);
+		WeakReference<Node> ref = table.get(text);
+		Node leaf = ref == null ? null : ref.get();
+		if (leaf != null) {
+			hits++;
+		} else {
+			leaf = SourceNode.create(text, 0, end - start);
+			leaf.markShared();
+			table.put(text, new WeakReference<Node>(leaf));
+			charsStored += end - start;
+		}
+		lookups++;
+		charsLookedUp += end - start;
+		lookupNanos += System.nanoTime() - begin;
+		return leaf;
+	}
+
+	/**
+	 *
+	 * @return number of distinct leaves in the table that are still in use
+	 */
+	public int size() {
+		return table.size();
+	}
+
+	/**
+	 *
+	 * @return number of leaves looked up so far
+	 */
+	public long getLookups() {
+		return lookups;
+	}
+
+	/**
+	 *
+	 * @return number of lookups that found an equal leaf
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 *
+	 * @return characters looked up divided by characters stored, so 1 means
+	 *         nothing was shared
+	 */
+	public double getDedupRatio() {
+		return charsStored == 0 ? 1.0 : (double) charsLookedUp / charsStored;
+	}
+
+	/**
+	 *
+	 * @return average time of one lookup, in nanoseconds
+	 */
+	public long getAverageLookupNanos() {
+		return lookups == 0 ? 0 : lookupNanos / lookups;
+	}
+}
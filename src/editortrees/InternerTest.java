@@ -0,0 +1,128 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for trees whose equal lines share leaves, see {@link Interner}
+ * 
+ */
+public class InternerTest {
+
+	private static String lines(Random r, int n) {
+		String[] common = { "at editortrees.Node.add(Node.java:120)", "INFO request done", "", "}",
+				"\u4e2d\u6587 line" };
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (r.nextInt(4) == 0)
+				sb.append("unique ").append(r.nextInt());
+			else
+				sb.append(common[r.nextInt(common.length)]);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static boolean contains(Node n, Node target) {
+		if (n == target)
+			return true;
+		if (n == Node.NULL_NODE || LazyNode.isLazy(n))
+			return false;
+		return contains(n.getLeft(), target) || contains(n.getRight(), target);
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Random r = new Random(36);
+		for (int n = 0; n < 60; n++) {
+			Interner interner = new Interner();
+			String s = lines(r, n);
+			for (String text : new String[] { s, s + "tail", "\n" + s, "\n\n\n", "no newline", "" }) {
+				EditTree t = new EditTreeBuilder().setInterner(interner).append(text).build();
+				assertEquals(text, t.toString());
+				assertEquals(text.length(), t.length());
+				t.check();
+			}
+		}
+	}
+
+	@Test
+	public void testEqualLinesShareLeaves() {
+		Interner interner = new Interner();
+		String line = "the same line, again and again";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			sb.append(line).append('\n');
+		EditTree t = new EditTreeBuilder().setInterner(interner).append(sb).build();
+		EditTree other = new EditTreeBuilder().setInterner(interner).append(line).build();
+		assertEquals(sb.toString(), t.toString());
+		assertEquals(1, interner.size());
+		assertEquals(1001, interner.getLookups());
+		assertEquals(1000, interner.getHits());
+		assertTrue(interner.getDedupRatio() > 1000);
+		assertTrue(contains(t.getRoot(), other.getRoot()));
+	}
+
+	@Test
+	public void testEditsDoNotLeak() {
+		Random r = new Random(360);
+		Interner interner = new Interner();
+		String s = lines(r, 300);
+		EditTree t = new EditTreeBuilder().setInterner(interner).append(s).build();
+		EditTree other = new EditTreeBuilder().setInterner(interner).append(s).build();
+		StringBuilder model = new StringBuilder(s);
+		for (int i = 0; i < 2000; i++) {
+			int pos = r.nextInt(model.length() + 1);
+			switch (r.nextInt(4)) {
+			case 0:
+				t.add('#', pos);
+				model.insert(pos, '#');
+				break;
+			case 1:
+				if (pos < model.length()) {
+					t.delete(pos);
+					model.deleteCharAt(pos);
+				}
+				break;
+			case 2:
+				t.insert(pos, "xy\nz");
+				model.insert(pos, "xy\nz");
+				break;
+			default:
+				if (pos == model.length())
+					break;
+				int length = Math.min(r.nextInt(50), model.length() - pos - 1);
+				t.delete(pos, length);
+				model.delete(pos, pos + length);
+			}
+		}
+		assertEquals(model.toString(), t.toString());
+		t.check();
+		assertEquals(s, other.toString());
+		other.check();
+		assertEquals(s, new EditTreeBuilder().setInterner(interner).append(s).build().toString());
+	}
+
+	@Test
+	public void testSplitAndConcatenate() {
+		Random r = new Random(3600);
+		Interner interner = new Interner();
+		String s = lines(r, 200);
+		EditTree other = new EditTreeBuilder().setInterner(interner).append(s).build();
+		for (int i = 0; i < 50; i++) {
+			EditTree t = new EditTreeBuilder().setInterner(interner).append(s).build();
+			int pos = r.nextInt(s.length() + 1);
+			EditTree tail = t.split(pos);
+			assertEquals(s.substring(0, pos), t.toString());
+			assertEquals(s.substring(pos), tail.toString());
+			tail.concatenate(t);
+			assertEquals(s.substring(pos) + s.substring(0, pos), tail.toString());
+			tail.check();
+		}
+		assertEquals(s, other.toString());
+	}
+}
@@ -0,0 +1,97 @@
+package editortrees;
+
+import editortrees.Node.Code;
+
+/**
+ * A node whose element and children are only created when they are first
+ * needed. Its size and balance code are known from the start, so the rest of
+ * the tree can be balanced around it without touching its contents.
+ * 
+ * Materializing happens in place: the node fills in its own element and
+ * children, so parents never have to be updated. It is done at most once,
+ * even if several threads read the tree at the same time.
+ * 
+ * @author zhang
+ *
+ */
+abstract class LazyNode extends Node {
+	private volatile boolean materialized;
+
+	LazyNode(int size, Code balance) {
+		super(size, balance);
+	}
+
+	/**
+	 * 
+	 * @return true once element and children have been filled in
+	 */
+	final boolean isMaterialized() {
+		return materialized;
+	}
+
+	/**
+	 * 
+	 * @param n
+	 * @return true if n is a lazy node that has not been materialized yet
+	 */
+	static boolean isLazy(Node n) {
+		return n instanceof LazyNode && !((LazyNode) n).materialized;
+	}
+
+	final void ensureMaterialized() {
+		if (materialized)
+			return;
+		synchronized (this) {
+			if (!materialized) {
+				materialize();
+				materialized = true;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the height of this subtree, known without materializing it, -2
+	 *         if it is not
+	 */
+	int knownHeight() {
+		return -2;
+	}
+
+	/**
+	 * Check, without materializing, that this subtree can have the height
+	 * the balance codes above expect: its known height if it has one,
+	 * otherwise a height that an AVL tree of its size can have.
+	 * 
+	 * @param height
+	 * @throws TreeCheckException
+	 */
+	void checkLazy(int height) throws TreeCheckException {
+		if (getBalance() == null)
+			throw new TreeCheckException("no balance code on a lazy subtree of size " + size());
+		int known = knownHeight();
+		if (known != -2) {
+			if (known != height)
+				throw new TreeCheckException("lazy subtree of size " + size() + " has height " + known
+						+ " where the balance codes above expect " + height);
+			return;
+		}
+		// fewest and most nodes a tree of that height has
+		long fewest = 1;
+		long fewer = 0;
+		for (int h = 0; h < height && fewest <= size(); h++) {
+			long next = fewest + fewer + 1;
+			fewer = fewest;
+			fewest = next;
+		}
+		if (height < 0 || size() < fewest || height < EditTree.balancedHeightFromSize(size()))
+			throw new TreeCheckException("lazy subtree of size " + size() + " cannot have the height " + height
+					+ " the balance codes above expect");
+	}
+
+	/**
+	 * fill in the element and the children of this node through
+	 * {@link Node#install(char, Node, Node)}. The children may be lazy again.
+	 */
+	protected abstract void materialize();
+}
@@ -0,0 +1,154 @@
+package editortrees;
+
+import java.util.Arrays;
+
+/**
+ * A small LZ77 codec in the style of LZ4, fast rather than tight. The output
+ * is a series of sequences, each a token byte followed by literals and a
+ * match:
+ *
+ * <pre>
+ * token    high 4 bits number of literals, low 4 bits match length - 4;
+ *          15 means more length bytes follow (255 each, then the rest)
+ * literals copied as they are
+ * offset   2 bytes, little endian, distance back to the start of the match
+ * </pre>
+ *
+ * The last sequence has literals only and ends the input. Matches are found
+ * through a hash table of 4 byte prefixes, keeping only the latest position
+ * for each hash.
+ *
+ * @author zhang
+ *
+ */
+final class Lz77 {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xffff;
+	private static final int HASH_BITS = 12;
+
+	private Lz77() {
+	}
+
+	/**
+	 *
+	 * @param in
+	 * @param length
+	 *            number of bytes of in to compress
+	 * @return the compressed bytes
+	 */
+	static byte[] compress(byte[] in, int length) {
+		byte[] out = new byte[length + length / 255 + 16];
+		int[] table = new int[1 << HASH_BITS];
+		Arrays.fill(table, -1);
+		int op = 0;
+		int anchor = 0;
+		int ip = 0;
+		while (ip + MIN_MATCH <= length) {
+			int h = hash(in, ip);
+			int ref = table[h];
+			table[h] = ip;
+			if (ref < 0 || ip - ref > MAX_OFFSET || !sameFour(in, ref, ip)) {
+				ip++;
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (ip + matchLength < length && in[ref + matchLength] == in[ip + matchLength])
+				matchLength++;
+			op = sequence(in, anchor, ip - anchor, out, op, matchLength);
+			out[op++] = (byte) (ip - ref);
+			out[op++] = (byte) ((ip - ref) >>> 8);
+			op = extraLength(out, op, matchLength - MIN_MATCH);
+			ip += matchLength;
+			anchor = ip;
+		}
+		op = sequence(in, anchor, length - anchor, out, op, 0);
+		return Arrays.copyOf(out, op);
+	}
+
+	private static int hash(byte[] in, int i) {
+		int v = (in[i] & 0xff) | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff) << 16 | (in[i + 3] & 0xff) << 24;
+		return (v * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	private static boolean sameFour(byte[] in, int a, int b) {
+		return in[a] == in[b] && in[a + 1] == in[b + 1] && in[a + 2] == in[b + 2] && in[a + 3] == in[b + 3];
+	}
+
+	/**
+	 * write a token and literals; matchLength is 0 for the last sequence
+	 *
+	 * @return the new output position
+	 */
+	private static int sequence(byte[] in, int from, int literals, byte[] out, int op, int matchLength) {
+		int matchCode = matchLength == 0 ? 0 : Math.min(matchLength - MIN_MATCH, 15);
+		out[op++] = (byte) (Math.min(literals, 15) << 4 | matchCode);
+		op = extraLength(out, op, literals);
+		System.arraycopy(in, from, out, op, literals);
+		return op + literals;
+	}
+
+	/**
+	 * write what is left of a length after the 15 that fit in its token
+	 *
+	 * @param length
+	 *            the full length that was coded in the token
+	 */
+	private static int extraLength(byte[] out, int op, int length) {
+		if (length < 15)
+			return op;
+		length -= 15;
+		while (length >= 255) {
+			out[op++] = (byte) 255;
+			length -= 255;
+		}
+		out[op++] = (byte) length;
+		return op;
+	}
+
+	/**
+	 *
+	 * @param in
+	 *            bytes written by compress()
+	 * @param length
+	 *            number of bytes that were compressed
+	 * @return the original bytes
+	 */
+	static byte[] decompress(byte[] in, int length) {
+		byte[] out = new byte[length];
+		int ip = 0;
+		int op = 0;
+		while (true) {
+			int token = in[ip++] & 0xff;
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xff;
+					literals += b;
+				} while (b == 255);
+			}
+			System.arraycopy(in, ip, out, op, literals);
+			ip += literals;
+			op += literals;
+			if (ip == in.length)
+				break;
+			int offset = (in[ip] & 0xff) | (in[ip + 1] & 0xff) << 8;
+			ip += 2;
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int b;
+				do {
+					b = in[ip++] & 0xff;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			// byte by byte, as the match may overlap what it copies
+			for (int i = 0; i < matchLength; i++, op++)
+				out[op] = out[op - offset];
+		}
+		if (op != length)
+			throw new IllegalStateException("corrupt compressed data");
+		return out;
+	}
+}
@@ -0,0 +1,120 @@
+package editortrees;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Characters of a memory mapped file in an encoding where every character
+ * takes the same number of bytes, so the n-th character can be decoded
+ * without looking at the ones before it. Single byte charsets are decoded
+ * through a table of all 256 byte values; UTF-16BE and UTF-16LE use two
+ * bytes per char.
+ * 
+ * @author zhang
+ *
+ */
+final class MappedText implements TextSource {
+	private final ByteBuffer buffer;
+	private final int width;
+	private final char[] table;
+	private final boolean bigEndian;
+
+	private MappedText(ByteBuffer buffer, int width, char[] table, boolean bigEndian) {
+		this.buffer = buffer;
+		this.width = width;
+		this.table = table;
+		this.bigEndian = bigEndian;
+	}
+
+	/**
+	 * map the file from offset to its end, if charset allows random access to
+	 * characters
+	 * 
+	 * @param channel
+	 * @param charset
+	 * @param offset
+	 *            number of bytes to skip at the start of the file
+	 * @return the mapped text, or null if charset does not use a fixed number
+	 *         of bytes per character
+	 * @throws IOException
+	 */
+	static MappedText map(FileChannel channel, Charset charset, long offset) throws IOException {
+		String name = charset.name();
+		int width = width(charset);
+		char[] table = null;
+		if (width == 0)
+			return null;
+		if (width == 1)
+			table = singleByteTable(charset);
+		long bytes = channel.size() - offset;
+		if (bytes > Integer.MAX_VALUE)
+			throw new IOException("file too large to be mapped: " + bytes + " bytes");
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+		return new MappedText(buffer, width, table, name.equals("UTF-16BE"));
+	}
+
+	/**
+	 * 
+	 * @param charset
+	 * @return the number of bytes every character takes in charset, 0 if it
+	 *         is not the same for all characters
+	 */
+	static int width(Charset charset) {
+		String name = charset.name();
+		if (name.equals("UTF-16BE") || name.equals("UTF-16LE"))
+			return 2;
+		return singleByteTable(charset) == null ? 0 : 1;
+	}
+
+	/**
+	 * 
+	 * @param charset
+	 * @return the character of every byte value, or null if charset is not a
+	 *         single byte charset
+	 */
+	private static char[] singleByteTable(Charset charset) {
+		try {
+			if (charset.newEncoder().maxBytesPerChar() != 1.0f)
+				return null;
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		char[] table = new char[256];
+		for (int b = 0; b < 256; b++) {
+			try {
+				CharBuffer decoded = decoder.reset().decode(ByteBuffer.wrap(new byte[] { (byte) b }));
+				if (decoded.remaining() != 1)
+					return null;
+				table[b] = decoded.get();
+			} catch (CharacterCodingException e) {
+				return null;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * 
+	 * @return number of characters in the mapping
+	 */
+	int length() {
+		return buffer.capacity() / width;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (width == 1)
+			return table[buffer.get(index) & 0xff];
+		int b0 = buffer.get(2 * index) & 0xff;
+		int b1 = buffer.get(2 * index + 1) & 0xff;
+		return (char) (bigEndian ? b0 << 8 | b1 : b1 << 8 | b0);
+	}
+}
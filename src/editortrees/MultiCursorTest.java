@@ -0,0 +1,142 @@
+package editortrees;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EditTree#insertAtAll(int[], CharSequence)} and
+ * {@link EditTree#deleteAtAll(int[], int)}
+ * 
+ */
+public class MultiCursorTest {
+
+	private static int[] randomCursors(Random r, int count, int length) {
+		int[] cursors = new int[count];
+		for (int i = 0; i < count; i++)
+			cursors[i] = r.nextInt(length + 1);
+		Arrays.sort(cursors);
+		return cursors;
+	}
+
+	@Test
+	public void testInsertAtAll() {
+		EditTree t = new EditTree("a\nbb\nccc\n");
+		int[] cursors = t.insertAtAll(new int[] { 0, 2, 5 }, "// ");
+		assertEquals("// a\n// bb\n// ccc\n", t.toString());
+		assertArrayEquals(new int[] { 3, 8, 14 }, cursors);
+	}
+
+	@Test
+	public void testDeleteAtAll() {
+		EditTree t = new EditTree("// a\n// bb\n// ccc\n");
+		int[] cursors = t.deleteAtAll(new int[] { 0, 5, 11 }, 3);
+		assertEquals("a\nbb\nccc\n", t.toString());
+		assertArrayEquals(new int[] { 0, 2, 5 }, cursors);
+		// overlapping ranges and a range past the end
+		cursors = t.deleteAtAll(new int[] { 1, 2, 8, 9 }, 2);
+		assertEquals("a\nccc", t.toString());
+		assertArrayEquals(new int[] { 1, 1, 5, 5 }, cursors);
+	}
+
+	@Test
+	public void testRandomAgainstModel() {
+		Random r = new Random(41);
+		EditTree t = new EditTree();
+		StringBuilder model = new StringBuilder();
+		t.insert(0, "start");
+		model.append("start");
+		for (int round = 0; round < 300; round++) {
+			int[] cursors = randomCursors(r, 1 + r.nextInt(20), t.length());
+			int[] moved;
+			if (r.nextBoolean()) {
+				String text = "xy".substring(0, 1 + r.nextInt(2));
+				moved = t.insertAtAll(cursors, text);
+				for (int i = cursors.length - 1; i >= 0; i--)
+					model.insert(cursors[i], text);
+				for (int i = 0; i < cursors.length; i++)
+					assertEquals(text.charAt(text.length() - 1), model.charAt(moved[i] - 1));
+			} else {
+				int length = r.nextInt(3);
+				boolean[] gone = new boolean[model.length()];
+				for (int c : cursors)
+					for (int k = c; k < Math.min(c + length, model.length()); k++)
+						gone[k] = true;
+				int[] expected = new int[cursors.length];
+				for (int i = 0; i < cursors.length; i++)
+					for (int k = 0; k < cursors[i]; k++)
+						if (!gone[k])
+							expected[i]++;
+				moved = t.deleteAtAll(cursors, length);
+				StringBuilder kept = new StringBuilder();
+				for (int k = 0; k < model.length(); k++)
+					if (!gone[k])
+						kept.append(model.charAt(k));
+				model = kept;
+				assertArrayEquals(expected, moved);
+			}
+			assertEquals(model.toString(), t.toString());
+		}
+	}
+
+	@Test
+	public void testOneBatchOfEvents() {
+		EditTree t = new EditTree("0123456789");
+		final StringBuilder events = new StringBuilder();
+		t.addEditListener(new EditListener() {
+			public void inserted(EditTree tree, int pos, int length) {
+				events.append("+" + pos + ":" + length + " ");
+			}
+
+			public void deleted(EditTree tree, int pos, int length) {
+				events.append("-" + pos + ":" + length + " ");
+			}
+
+			public void done(EditTree tree) {
+				events.append("| ");
+			}
+		});
+		t.insertAtAll(new int[] { 1, 5 }, "ab");
+		t.deleteAtAll(new int[] { 0, 4 }, 1);
+		assertEquals("+1:2 +7:2 | -0:1 -3:1 | ", events.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsorted() {
+		new EditTree("abc").insertAtAll(new int[] { 2, 1 }, "x");
+	}
+
+	@Test
+	public void testCursorsOutsideOfTree() {
+		int[][] bad = { { -3 }, { 2, 50 }, { 10, 11 } };
+		for (int[] cursors : bad) {
+			for (String text : new String[] { "x", "a text longer than a short edit, inserted with one split pass" }) {
+				EditTree t = new EditTree("abcdefghij");
+				try {
+					t.insertAtAll(cursors, text);
+					fail(Arrays.toString(cursors));
+				} catch (IndexOutOfBoundsException e) {
+					// expected
+				}
+				assertEquals("abcdefghij", t.toString());
+				t.check();
+			}
+			EditTree t = new EditTree("abcdefghij");
+			try {
+				t.deleteAtAll(cursors, 1);
+				fail(Arrays.toString(cursors));
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+			assertEquals("abcdefghij", t.toString());
+		}
+		EditTree t = new EditTree("abcdefghij");
+		t.deleteAtAll(new int[] { 3 }, Integer.MAX_VALUE);
+		assertEquals("abc", t.toString());
+	}
+}
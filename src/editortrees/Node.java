@@ -2,6 +2,7 @@ package editortrees;
 
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * A node in AVL tree
@@ -68,14 +69,36 @@ public class Node {
 	private Node right;
 	private int size;
 	private Code balance;
+	private byte flags;
+
+	/**
+	 * flag: this node may be reachable from more than one parent or root, so
+	 * it must not be changed in place. Mutations copy it first (see
+	 * unshared()), which makes its children shared in turn. The flag is never
+	 * cleared, as nothing counts the references.
+	 */
+	static final byte SHARED = 1;
 
 	public int getRank() {
+		expand();
 		return left.size;
 	}
 
 	public Node() {
 	}
 
+	/**
+	 * construct a node whose children and element are not known yet, see
+	 * {@link LazyNode}
+	 * 
+	 * @param size
+	 * @param balance
+	 */
+	Node(int size, Code balance) {
+		this.size = size;
+		this.balance = balance;
+	}
+
 	/**
 	 * 
 	 * construct a node given all of its data
@@ -103,6 +126,179 @@ public class Node {
 		this(c, NULL_NODE, NULL_NODE, Code.SAME);
 	}
 
+	/**
+	 * Make sure element, left and right of this node are available. Size and
+	 * balance code are always known, even for a lazy node, so code that only
+	 * needs those does not have to call this. Every method that reads the
+	 * element or the children calls it first.
+	 */
+	final void expand() {
+		if (this instanceof LazyNode)
+			((LazyNode) this).ensureMaterialized();
+	}
+
+	/**
+	 * fill in the element and children of a lazy node. The size and balance
+	 * code stay the same.
+	 * 
+	 * @param element
+	 * @param left
+	 * @param right
+	 */
+	void install(char element, Node left, Node right) {
+		this.element = element;
+		this.right = right;
+		this.left = left;
+	}
+
+	/**
+	 * 
+	 * @return true if this node must be copied before it is changed
+	 */
+	boolean isShared() {
+		return (flags & SHARED) != 0;
+	}
+
+	/**
+	 * let this node be reachable from another parent or root
+	 */
+	void markShared() {
+		if (this != NULL_NODE)
+			flags |= SHARED;
+	}
+
+	/**
+	 * 
+	 * @return this node if it can be changed in place, otherwise a copy of it
+	 *         whose children are now shared between the two
+	 */
+	Node unshared() {
+		if (!isShared())
+			return this;
+		expand();
+		Node n = new Node();
+		n.element = element;
+		n.left = left;
+		n.right = right;
+		n.size = size;
+		n.balance = balance;
+		left.markShared();
+		right.markShared();
+		return n;
+	}
+
+	/**
+	 * 
+	 * @param start
+	 * @param end
+	 * @param base
+	 *            position of this subtree in the tree
+	 * @param shift
+	 *            how far the text from start moved from where it is in the
+	 *            file
+	 * @return true if every lazy node over a memory mapped file in this
+	 *         subtree that has characters from start to end reads them from
+	 *         the positions of the file they are written to
+	 */
+	boolean readsInPlace(int start, int end, int base, int shift) {
+		if (this == NULL_NODE || end <= base || start >= base + size)
+			return true;
+		if (LazyNode.isLazy(this))
+			return !(this instanceof SourceNode) || ((SourceNode) this).readsFrom(base - shift);
+		return left.readsInPlace(start, end, base, shift)
+				&& right.readsInPlace(start, end, base + left.size + 1, shift);
+	}
+
+	/**
+	 * Rewrite the elements at positions start to end - 1 of this subtree with
+	 * op, keeping its shape. Shared nodes are copied first, and a lazy source
+	 * subtree inside the range is replaced by one over the rewritten text
+	 * without being materialized.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param op
+	 * @return this subtree, or the copy that takes its place
+	 */
+	Node transform(int start, int end, CharUnaryOperator op) {
+		if (start >= end)
+			return this;
+		if (start == 0 && end == size && this instanceof SourceNode && LazyNode.isLazy(this))
+			return ((SourceNode) this).transformed(op);
+		Node n = unshared();
+		n.expand();
+		int rank = n.left.size;
+		if (start < rank)
+			n.left = n.left.transform(start, Math.min(end, rank), op);
+		if (start <= rank && rank < end)
+			n.element = op.apply(n.element);
+		if (end > rank + 1)
+			n.right = n.right.transform(Math.max(0, start - rank - 1), end - rank - 1, op);
+		return n;
+	}
+
+	/**
+	 * transform() with the two children of large subtrees done in parallel.
+	 * Large lazy subtrees are materialized one level at a time, so their
+	 * halves can be split further.
+	 */
+	static final class TransformTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+		private final Node node;
+		private final int start;
+		private final int end;
+		private final CharUnaryOperator op;
+
+		TransformTask(Node node, int start, int end, CharUnaryOperator op) {
+			this.node = node;
+			this.start = start;
+			this.end = end;
+			this.op = op;
+		}
+
+		@Override
+		protected Node compute() {
+			if (end - start <= EditTree.PARALLEL_CUTOFF)
+				return node.transform(start, end, op);
+			Node n = node.unshared();
+			n.expand();
+			int rank = n.left.size;
+			TransformTask left = null;
+			if (start < rank) {
+				left = new TransformTask(n.left, start, Math.min(end, rank), op);
+				left.fork();
+			}
+			if (start <= rank && rank < end)
+				n.element = op.apply(n.element);
+			if (end > rank + 1)
+				n.right = new TransformTask(n.right, Math.max(0, start - rank - 1), end - rank - 1, op).compute();
+			if (left != null)
+				n.left = left.join();
+			return n;
+		}
+	}
+
+	/**
+	 * Replace a subtree below this node by one of the same size and height.
+	 * Shared nodes on the path to it are copied instead of changed, so
+	 * versions of the tree that reach them keep reading the old subtree.
+	 * 
+	 * @param page
+	 *            a proper subtree of this one
+	 * @param pos
+	 *            position of the first node of page in this subtree
+	 * @param replacement
+	 * @return this node, or the copy of it that replaces it
+	 */
+	Node replacePage(Node page, int pos, Node replacement) {
+		Node n = unshared();
+		if (pos < n.left.size)
+			n.left = n.left == page ? replacement : n.left.replacePage(page, pos, replacement);
+		else
+			n.right = n.right == page ? replacement : n.right.replacePage(page, pos - n.left.size - 1, replacement);
+		return n;
+	}
+
 	/**
 	 * 
 	 * construct a copy of this subtree
@@ -112,6 +308,7 @@ public class Node {
 	public Node constructFromTree() {
 		if (this == NULL_NODE)
 			return NULL_NODE;
+		expand();
 		return new Node(getElement(), left.constructFromTree(), right.constructFromTree(), getBalance());
 	}
 
@@ -119,12 +316,14 @@ public class Node {
 	public String toString() {
 		if (this == NULL_NODE)
 			return "";
+		expand();
 		return left.toString() + getElement() + right.toString();
 	}
 
 	public String toDebugString() {
 		if (this == NULL_NODE)
 			return "";
+		expand();
 		return "" + getElement() + getRank() + getBalance() + ", " + left.toDebugString() + right.toDebugString();
 	}
 
@@ -133,23 +332,30 @@ public class Node {
 	}
 
 	private Node updateBalanceCode(Code leftCode, Code thisCode, Code rightCode) {
-		if (leftCode != null)
+		if (leftCode != null && left.balance != leftCode) {
+			left = left.unshared();
 			left.balance = leftCode;
+		}
 		this.balance = thisCode;
-		if (rightCode != null)
+		if (rightCode != null && right.balance != rightCode) {
+			right = right.unshared();
 			right.balance = rightCode;
+		}
 		return this;
 	}
 
 	public char getElement() {
+		expand();
 		return element;
 	}
 
 	public Node getLeft() {
+		expand();
 		return left;
 	}
 
 	public Node getRight() {
+		expand();
 		return right;
 	}
 
@@ -165,6 +371,7 @@ public class Node {
 	 * @return
 	 */
 	public char get(int pos) {
+		expand();
 		if (pos == getRank()) {
 			return getElement();
 		} else if (pos <= getRank()) {
@@ -182,6 +389,7 @@ public class Node {
 	 *            string builder to collect all of its data
 	 */
 	public void get(int start, int end, StringBuilder sb) {
+		expand();
 		if (start == end) {
 			return;
 		}
@@ -223,33 +431,51 @@ public class Node {
 				return l;
 		}
 		if (pos <= getRank()) {
-			// updating the matching indexes in the array list, return the index
-			// of the last character.
-			ListIterator<Integer> itr = found.listIterator();
-			while (itr.hasNext()) {
-				int index = itr.next();
-				if (s.charAt(index) == getElement()) {
-					if (index + 1 == s.length())
-						return getRank();
-					itr.set(index + 1);
-				} else {
-					itr.remove();
-				}
-			}
-			// see if this can be the start of a match.
-			if (getElement() == s.charAt(0)) {
-				if (s.length() == 1) {
-					return getRank();
-				}
-				found.add(1);
-			}
-
+			if (matchNext(s, getElement(), found))
+				return getRank();
 			int r = right.find(s, 0, found);
 			if (r == -1)
 				return -1;
 			return getRank() + 1 + r;
 		}
-		return getRank() + 1 + right.find(s, pos - getRank() - 1, found);
+		int r = right.find(s, pos - getRank() - 1, found);
+		if (r == -1)
+			return -1;
+		return getRank() + 1 + r;
+	}
+
+	/**
+	 * Feed the next character of the text to a running search.
+	 * 
+	 * @param s
+	 *            string to search for
+	 * @param c
+	 *            next character of the text
+	 * @param found
+	 *            the number of characters of s matched by each partial match
+	 *            so far; updated for c
+	 * @return true if c completes a match of s
+	 */
+	static boolean matchNext(String s, char c, List<Integer> found) {
+		// updating the matching indexes in the array list
+		ListIterator<Integer> itr = found.listIterator();
+		while (itr.hasNext()) {
+			int index = itr.next();
+			if (s.charAt(index) == c) {
+				if (index + 1 == s.length())
+					return true;
+				itr.set(index + 1);
+			} else {
+				itr.remove();
+			}
+		}
+		// see if this can be the start of a match.
+		if (c == s.charAt(0)) {
+			if (s.length() == 1)
+				return true;
+			found.add(1);
+		}
+		return false;
 	}
 
 	/**
@@ -269,6 +495,9 @@ public class Node {
 				throw new RuntimeException();
 			return new Node(c);
 		}
+		if (isShared())
+			return unshared().add(c, pos, a);
+		expand();
 		size++;
 		if (pos <= getRank()) {
 			left = left.add(c, pos, a);
@@ -340,12 +569,12 @@ public class Node {
 	}
 
 	private Node doubleRightRotate(H a) {
-		left = left.singleLeftRotate(a);
+		left = left.unshared().singleLeftRotate(a);
 		return singleRightRotate(a).updateDoubleRotationCode();
 	}
 
 	private Node doubleLeftRotate(H a) {
-		right = right.singleRightRotate(a);
+		right = right.unshared().singleRightRotate(a);
 		return singleLeftRotate(a).updateDoubleRotationCode();
 	}
 
@@ -378,6 +607,9 @@ public class Node {
 	 * @return
 	 */
 	private Node singleLeftRotate(H a) {
+		expand();
+		right = right.unshared();
+		right.expand();
 		a.rotate++;
 		right.size = this.size;
 		this.size = right.left.size + left.size + 1;
@@ -402,6 +634,9 @@ public class Node {
 	 * @return
 	 */
 	private Node singleRightRotate(H a) {
+		expand();
+		left = left.unshared();
+		left.expand();
 		a.rotate++;
 		left.size = this.size;
 		this.size = left.right.size + right.size + 1;
@@ -426,6 +661,9 @@ public class Node {
 	public Node delete(int pos, H a) throws IndexOutOfBoundsException {
 		if (this == NULL_NODE)
 			throw new RuntimeException();
+		if (isShared())
+			return unshared().delete(pos, a);
+		expand();
 		size--;
 		if (pos < getRank()) {
 			left = left.delete(pos, a);
@@ -523,6 +761,9 @@ public class Node {
 	public Node concatRight(H a, Node inserted, int heightDiff) {
 		if (this == NULL_NODE)
 			throw new RuntimeException();
+		if (isShared() && heightDiff > 1)
+			return unshared().concatRight(a, inserted, heightDiff);
+		expand();
 		if (heightDiff == 0) {
 			return new Node(a.deleted, this, inserted, Code.SAME);
 		} else if (heightDiff == 1) {
@@ -555,9 +796,12 @@ public class Node {
 	public Node concatLeft(H a, Node inserted, int heightDiff) {
 		if (this == NULL_NODE)
 			throw new RuntimeException();
+		expand();
 		if (heightDiff < 0) {
 			throw new RuntimeException("" + heightDiff);
 		}
+		if (isShared() && heightDiff > 1)
+			return unshared().concatLeft(a, inserted, heightDiff);
 		if (heightDiff == 0) {
 			return new Node(a.deleted, inserted, this, Code.SAME);
 		} else if (heightDiff == 1) {
@@ -583,6 +827,12 @@ public class Node {
 	public void split(int pos, int height, SH sh) {
 		if (this == NULL_NODE)
 			throw new RuntimeException();
+		expand();
+		if (isShared()) {
+			// this node stays where it is, while its children move to the parts
+			left.markShared();
+			right.markShared();
+		}
 		int leftHeight = getBalance() == Code.RIGHT ? height - 2 : height - 1;
 		int rightHeight = getBalance() == Code.LEFT ? height - 2 : height - 1;
 		if (pos == getRank() || pos == getRank() + 1) {
@@ -626,37 +876,110 @@ public class Node {
 	}
 
 	/**
-	 * check whether this node has correct rank, balance code, whether NULL_NODE
-	 * stays the same.
+	 * Check the whole subtree: every size adds up and every balance code
+	 * matches the heights of the subtrees. Lazy nodes are checked without
+	 * turning them into nodes, against the height their size implies.
 	 * 
 	 * @param height
+	 *            the height this subtree should have
+	 * @throws TreeCheckException
 	 */
-	public void check(int height) {
+	public void check(int height) throws TreeCheckException {
 		if (this == NULL_NODE) {
 			if (height != -1)
-				throw new RuntimeException("Balanced code is not correct");
+				throw new TreeCheckException("empty subtree where the balance codes above expect height " + height);
+			return;
+		}
+		if (LazyNode.isLazy(this)) {
+			((LazyNode) this).checkLazy(height);
 			return;
 		}
-		if (this.size() != left.size() + right.size() + 1)
-			throw new RuntimeException("Size is not consistent");
-		switch (getBalance()) {
-		case LEFT:
-			left.check(height-1);
-			right.check(height-2);
-			break;
-		case RIGHT:
-			left.check(height-2);
-			right.check(height-1);
-			break;
-		case SAME:
-			left.check(height-1);
-			right.check(height-1);
-			break;
-		default:
-			break;
-		}
-	}
-	
+		checkNode();
+		try {
+			left.check(height - (balance == Code.RIGHT ? 2 : 1));
+		} catch (TreeCheckException e) {
+			throw e.under('L');
+		}
+		try {
+			right.check(height - (balance == Code.LEFT ? 2 : 1));
+		} catch (TreeCheckException e) {
+			throw e.under('R');
+		}
+	}
+
+	/**
+	 * Check the nodes on the path from this node to pos, O(log^2 n): their
+	 * sizes add up, and the height of each, found by going down its taller
+	 * side, is the one the balance codes above it expect. A lazy node on the
+	 * path is checked as check() does.
+	 * 
+	 * @param pos
+	 *            from 0 to size()
+	 * @param height
+	 *            the height this subtree should have
+	 * @throws TreeCheckException
+	 */
+	void checkPath(int pos, int height) throws TreeCheckException {
+		StringBuilder path = new StringBuilder();
+		Node n = this;
+		try {
+			while (n != NULL_NODE && !LazyNode.isLazy(n)) {
+				n.checkNode();
+				int taller = n.tallerSideHeight();
+				if (taller != -2 && taller != height)
+					throw new TreeCheckException("height " + taller + " where the balance codes above expect " + height);
+				if (pos == n.left.size)
+					return;
+				if (pos < n.left.size) {
+					height -= n.balance == Code.RIGHT ? 2 : 1;
+					n = n.left;
+					path.append('L');
+				} else {
+					pos -= n.left.size + 1;
+					height -= n.balance == Code.LEFT ? 2 : 1;
+					n = n.right;
+					path.append('R');
+				}
+			}
+			if (n != NULL_NODE)
+				((LazyNode) n).checkLazy(height);
+			else if (height != -1)
+				throw new TreeCheckException("empty subtree where the balance codes above expect height " + height);
+		} catch (TreeCheckException e) {
+			for (int i = path.length() - 1; i >= 0; i--)
+				e.under(path.charAt(i));
+			throw e;
+		}
+	}
+
+	/**
+	 * check the size and balance code of this node against its children
+	 */
+	private void checkNode() throws TreeCheckException {
+		if (balance == null)
+			throw new TreeCheckException("no balance code on '" + element + "'");
+		if (size != left.size + right.size + 1)
+			throw new TreeCheckException(
+					"size " + size + " of '" + element + "' is not " + left.size + " + " + right.size + " + 1");
+	}
+
+	/**
+	 * 
+	 * @return the height of this subtree, found by going down its taller side,
+	 *         -2 if that reaches a lazy node whose height is not known
+	 */
+	private int tallerSideHeight() {
+		int height = -1;
+		for (Node n = this; n != NULL_NODE; n = n.balance == Code.RIGHT ? n.right : n.left) {
+			if (LazyNode.isLazy(n)) {
+				int lazyHeight = ((LazyNode) n).knownHeight();
+				return lazyHeight == -2 ? -2 : height + 1 + lazyHeight;
+			}
+			height++;
+		}
+		return height;
+	}
+
 	/**
 	 * Another helper class for split, it stores the left and right tree splited
 	 * and their height, so we can easily concanete it with another node
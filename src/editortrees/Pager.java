@@ -0,0 +1,344 @@
+package editortrees;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the number of nodes in memory of the trees using it under a budget,
+ * by writing cold subtrees to a spill file and reading them back on demand.
+ * 
+ * A tree is cut into pages: the subtrees of height at most pageHeight whose
+ * parent is higher. Every access to a tree stamps the page it went through.
+ * When the resident estimate goes over the budget, the least recently used
+ * pages are written out until the tree is back under 90% of the budget, and
+ * each of them is replaced by a {@link SpilledNode}. charAt, get, find, split,
+ * concatenate and all edits fault spilled pages back in transparently.
+ * 
+ * A pager belongs to one tree. Trees split off from it can still read the
+ * pages they took along, but are not paged themselves. Nodes above a spilled
+ * page that a {@link TreeVersion} shares are copied rather than changed, so
+ * snapshots read on other threads keep their resident pages. The spill file is
+ * append only and is deleted when the pager is closed. A pager is not thread
+ * safe, just like EditTree.
+ * 
+ * @author zhang
+ *
+ */
+public class Pager implements Closeable {
+	/**
+	 * pages of height 12 hold between 2^12 and 2^13 nodes when balanced
+	 */
+	public static final int DEFAULT_PAGE_HEIGHT = 12;
+
+	private final FileChannel spill;
+	private final long budget;
+	private final int pageHeight;
+	private long spillEnd;
+
+	private Map<Node, Long> lastUse = new IdentityHashMap<Node, Long>();
+	private long clock;
+	private long residentEstimate;
+	private int lastLength;
+
+	private long hits;
+	private long misses;
+	private long faults;
+	private long faultNanos;
+	private long maxFaultNanos;
+	private long faultsSeen;
+	private long evictions;
+
+	/**
+	 * 
+	 * @param spillFile
+	 *            file to write pages to, it is overwritten
+	 * @param residentBudget
+	 *            number of nodes that may stay in memory
+	 * @throws IOException
+	 */
+	public Pager(Path spillFile, long residentBudget) throws IOException {
+		this(spillFile, residentBudget, DEFAULT_PAGE_HEIGHT);
+	}
+
+	/**
+	 * 
+	 * @param spillFile
+	 *            file to write pages to, it is overwritten
+	 * @param residentBudget
+	 *            number of nodes that may stay in memory
+	 * @param pageHeight
+	 *            height of the subtrees that are spilled as a unit
+	 * @throws IOException
+	 */
+	public Pager(Path spillFile, long residentBudget, int pageHeight) throws IOException {
+		if (residentBudget <= 0 || pageHeight < 0)
+			throw new IllegalArgumentException();
+		this.spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+		this.budget = residentBudget;
+		this.pageHeight = pageHeight;
+	}
+
+	/**
+	 * Record an access to the tree at pos and spill pages if the tree is over
+	 * budget. Called by the tree after every operation.
+	 * 
+	 * @param tree
+	 * @param pos
+	 *            position the operation worked at
+	 */
+	void accessed(EditTree tree, int pos) {
+		if (faults != faultsSeen)
+			misses++;
+		else
+			hits++;
+		faultsSeen = faults;
+		clock++;
+		int length = tree.length();
+		if (length == 0)
+			return;
+		pos = Math.max(0, Math.min(pos, length - 1));
+		// stamp the page on the path to pos
+		Node current = tree.getRoot();
+		int height = tree.height();
+		while (height > pageHeight && !LazyNode.isLazy(current)) {
+			int rank = current.getRank();
+			if (pos == rank)
+				break;
+			if (pos < rank) {
+				height -= current.getBalance() == Node.Code.RIGHT ? 2 : 1;
+				current = current.getLeft();
+			} else {
+				height -= current.getBalance() == Node.Code.LEFT ? 2 : 1;
+				pos -= rank + 1;
+				current = current.getRight();
+			}
+		}
+		lastUse.put(current, clock);
+		if (length > lastLength)
+			residentEstimate += length - lastLength;
+		lastLength = length;
+		if (residentEstimate > budget)
+			evict(tree);
+	}
+
+	/**
+	 * start paging a tree, spilling right away if it is over budget
+	 * 
+	 * @param tree
+	 */
+	void attach(EditTree tree) {
+		lastLength = tree.length();
+		evict(tree);
+	}
+
+	/**
+	 * one page of the tree, with the position of its first node
+	 */
+	private static class Page {
+		final int pos;
+		final Node root;
+		final long stamp;
+
+		Page(int pos, Node root, long stamp) {
+			this.pos = pos;
+			this.root = root;
+			this.stamp = stamp;
+		}
+	}
+
+	/**
+	 * find all resident pages and spill the least recently used ones
+	 * 
+	 * @param tree
+	 */
+	private void evict(EditTree tree) {
+		List<Page> pages = new ArrayList<Page>();
+		Map<Node, Long> stamps = new IdentityHashMap<Node, Long>();
+		long resident = collect(0, tree.getRoot(), tree.height(), pages, stamps);
+		lastUse = stamps;
+		Collections.sort(pages, new Comparator<Page>() {
+			@Override
+			public int compare(Page a, Page b) {
+				return Long.compare(a.stamp, b.stamp);
+			}
+		});
+		long target = budget - budget / 10;
+		for (Page page : pages) {
+			if (resident <= target)
+				break;
+			if (page.root == tree.getRoot())
+				continue;
+			tree.replacePage(page.root, page.pos, write(page.root));
+			lastUse.remove(page.root);
+			resident -= page.root.size();
+			evictions++;
+		}
+		residentEstimate = resident;
+	}
+
+	/**
+	 * walk the tree down to the pages
+	 * 
+	 * @return number of resident nodes below current
+	 */
+	private long collect(int pos, Node current, int height, List<Page> pages, Map<Node, Long> stamps) {
+		if (current == Node.NULL_NODE || LazyNode.isLazy(current))
+			return 0;
+		if (height <= pageHeight) {
+			Long stamp = lastUse.get(current);
+			if (stamp != null)
+				stamps.put(current, stamp);
+			pages.add(new Page(pos, current, stamp == null ? 0 : stamp));
+			return current.size();
+		}
+		int leftHeight = height - (current.getBalance() == Node.Code.RIGHT ? 2 : 1);
+		int rightHeight = height - (current.getBalance() == Node.Code.LEFT ? 2 : 1);
+		return 1 + collect(pos, current.getLeft(), leftHeight, pages, stamps)
+				+ collect(pos + current.getRank() + 1, current.getRight(), rightHeight, pages, stamps);
+	}
+
+	/**
+	 * append a page to the spill file
+	 * 
+	 * @param root
+	 * @return the node that replaces the page in the tree
+	 */
+	private SpilledNode write(Node root) {
+		ByteBuffer bytes = ByteBuffer.allocate(SubtreeCodec.encodedSize(root));
+		List<Node> lazy = new ArrayList<Node>();
+		SubtreeCodec.write(root, bytes, lazy);
+		bytes.flip();
+		long position = spillEnd;
+		try {
+			while (bytes.hasRemaining())
+				spillEnd += spill.write(bytes, spillEnd);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new SpilledNode(root, this, position, (int) (spillEnd - position), lazy.toArray(new Node[0]));
+	}
+
+	/**
+	 * read a page back from the spill file
+	 * 
+	 * @param position
+	 * @param length
+	 * @param size
+	 *            number of nodes in the page
+	 * @return the bytes of the page
+	 */
+	ByteBuffer fault(long position, int length, int size) {
+		long start = System.nanoTime();
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		try {
+			while (bytes.hasRemaining()) {
+				if (spill.read(bytes, position + bytes.position()) < 0)
+					throw new IOException("spill file truncated");
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		bytes.flip();
+		long elapsed = System.nanoTime() - start;
+		faults++;
+		faultNanos += elapsed;
+		maxFaultNanos = Math.max(maxFaultNanos, elapsed);
+		residentEstimate += size;
+		return bytes;
+	}
+
+	/**
+	 * 
+	 * @return the number of operations that did not have to read any page
+	 *         back
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * 
+	 * @return the number of operations that read at least one page back
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * 
+	 * @return hits / (hits + misses), 1 if nothing was accessed yet
+	 */
+	public double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 1.0 : (double) hits / total;
+	}
+
+	/**
+	 * 
+	 * @return the number of pages read back from the spill file
+	 */
+	public long getFaults() {
+		return faults;
+	}
+
+	/**
+	 * 
+	 * @return average time to read one page back, in nanoseconds
+	 */
+	public long getAverageFaultNanos() {
+		return faults == 0 ? 0 : faultNanos / faults;
+	}
+
+	/**
+	 * 
+	 * @return longest time to read one page back, in nanoseconds
+	 */
+	public long getMaxFaultNanos() {
+		return maxFaultNanos;
+	}
+
+	/**
+	 * 
+	 * @return the number of pages written to the spill file
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * 
+	 * @return size of the spill file in bytes
+	 */
+	public long getSpillFileSize() {
+		return spillEnd;
+	}
+
+	/**
+	 * 
+	 * @return estimated number of nodes in memory, as of the last access
+	 */
+	public long getResidentEstimate() {
+		return residentEstimate;
+	}
+
+	/**
+	 * Delete the spill file. Trees that still have spilled pages cannot be
+	 * read completely afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		spill.close();
+	}
+}
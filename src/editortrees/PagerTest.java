@@ -0,0 +1,98 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.Pager}
+ * 
+ */
+public class PagerTest {
+
+	private static String randomText(Random r, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	@Test
+	public void testSpillAndFaultBack() throws IOException {
+		Random r = new Random(29);
+		String s = randomText(r, 20000);
+		Path file = Files.createTempFile("spill", ".bin");
+		try (Pager pager = new Pager(file, 3000, 6)) {
+			EditTree t = new EditTree(s);
+			EditTree eager = new EditTree(s);
+			StringBuilder sb = new StringBuilder(s);
+			t.setPager(pager);
+			assertTrue(pager.getEvictions() > 0);
+			assertTrue(pager.getResidentEstimate() <= 3000);
+			for (int i = 0; i < 2000; i++) {
+				int pos = r.nextInt(sb.length());
+				switch (r.nextInt(5)) {
+				case 0:
+					t.add('#', pos);
+					eager.add('#', pos);
+					sb.insert(pos, '#');
+					break;
+				case 1:
+					assertEquals(eager.delete(pos), t.delete(pos));
+					sb.deleteCharAt(pos);
+					break;
+				case 2:
+					t.concatenate(t.split(pos));
+					eager.concatenate(eager.split(pos));
+					break;
+				case 3:
+					assertEquals(sb.indexOf("xy", pos), t.find("xy", pos));
+					break;
+				default:
+					assertEquals(sb.charAt(pos), t.charAt(pos));
+				}
+				assertEquals(eager.height(), t.height());
+			}
+			assertTrue(pager.getFaults() > 0);
+			assertTrue(pager.getHits() > 0);
+			assertTrue(pager.getHitRate() < 1);
+			assertEquals(sb.toString(), t.toString());
+			assertEquals(eager.toDebugString(), t.toDebugString());
+		}
+	}
+
+	/**
+	 * @return the number of nodes of class type reachable from n without
+	 *         materializing anything
+	 */
+	static int countLazy(Node n, Class<? extends Node> type) {
+		if (n == Node.NULL_NODE)
+			return 0;
+		if (LazyNode.isLazy(n))
+			return type.isInstance(n) ? 1 : 0;
+		return countLazy(n.getLeft(), type) + countLazy(n.getRight(), type);
+	}
+
+	@Test
+	public void testSnapshotsKeepTheirPages() throws IOException {
+		String s = randomText(new Random(291), 20000);
+		Path file = Files.createTempFile("spill", ".bin");
+		try (Pager pager = new Pager(file, 3000, 6)) {
+			EditTree t = new EditTree(s);
+			t.add('!', 10000);
+			TreeVersion version = t.snapshot();
+			t.setPager(pager);
+			assertTrue(pager.getEvictions() > 0);
+			assertTrue(countLazy(t.getRoot(), SpilledNode.class) > 0);
+			// the version read by other threads was not changed in place
+			assertEquals(0, countLazy(version.getRoot(), SpilledNode.class));
+			assertEquals(t.toString(), version.toString());
+		}
+	}
+}
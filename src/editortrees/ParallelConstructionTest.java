@@ -0,0 +1,62 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Trees built on a ForkJoinPool must have the shape of those built on one
+ * thread
+ *
+ */
+public class ParallelConstructionTest {
+
+	private static void assertSameShape(Node expected, Node actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.getBalance(), actual.getBalance());
+		assertEquals(LazyNode.isLazy(expected), LazyNode.isLazy(actual));
+		if (expected == Node.NULL_NODE || LazyNode.isLazy(expected))
+			return;
+		assertEquals(expected.getElement(), actual.getElement());
+		assertSameShape(expected.getLeft(), actual.getLeft());
+		assertSameShape(expected.getRight(), actual.getRight());
+	}
+
+	private static String randomText(int length, boolean wide) {
+		Random r = new Random(length);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			sb.append((char) (wide && r.nextInt(100) == 0 ? 0x4e00 + r.nextInt(100) : 'a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	@Test
+	public void testSameShapeAsSequential() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		int[] lengths = { 0, 1, EditTree.PARALLEL_CUTOFF, EditTree.PARALLEL_CUTOFF + 1,
+				3 * EditTree.PARALLEL_CUTOFF + 17, 8 * EditTree.PARALLEL_CUTOFF - 1 };
+		for (int length : lengths) {
+			String s = randomText(length, length % 2 == 1);
+			EditTree sequential = new EditTree(s, null);
+			EditTree parallel = new EditTree(s, pool);
+			assertEquals(sequential.height(), parallel.height());
+			assertSameShape(sequential.getRoot(), parallel.getRoot());
+			assertEquals(s, parallel.toString());
+			assertSameShape(sequential.getRoot(), new EditTree(s).getRoot());
+		}
+		pool.shutdown();
+	}
+
+	@Test
+	public void testBuilder() {
+		String s = randomText(5 * EditTree.PARALLEL_CUTOFF + 3, true);
+		EditTree built = new EditTreeBuilder().append(s).build();
+		assertEquals(s, built.toString());
+		assertEquals(new EditTree(s).height(), built.height());
+		built.add('x', s.length() / 2);
+		assertEquals(s.length() + 1, built.length());
+	}
+}
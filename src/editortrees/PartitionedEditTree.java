@@ -0,0 +1,529 @@
+package editortrees;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A document cut into segments, each with a lock of its own, so that threads
+ * writing to different regions of one huge document, such as the jobs of a
+ * bulk import, do not wait for each other.
+ *
+ * A writer that owns a region edits its {@link Segment} in the coordinates
+ * of the segment, holding only the lock of that segment and the read side of
+ * the lock on the list of segments. Edits and reads in document coordinates
+ * lock every segment, in order. snapshot() joins the shared roots of all
+ * trees with concatenate(), O(log n) each, into one version that can be read
+ * without any lock.
+ *
+ * A segment keeps its text in one or more EditTrees of at most the maximum
+ * length: a tree that grows past it is split in two, and neighbouring trees
+ * that together shrink to half of it are joined again, under the lock of the
+ * segment. rebalance() also merges neighbouring segments that have become
+ * small, under the write side of the lock on the list of segments. The
+ * handle of a segment merged into the one before it can not be used
+ * anymore; look its region up again with segmentAt().
+ *
+ * @author zhang
+ *
+ */
+public class PartitionedEditTree {
+	/**
+	 * default maximum length of a tree
+	 */
+	static final int MAX_SEGMENT = 1 << 20;
+
+	/**
+	 * an edit or read of one segment
+	 */
+	private abstract static class Access<T> {
+		abstract T access(Segment segment);
+	}
+
+	/**
+	 * one region of the document
+	 */
+	public static final class Segment {
+		private final PartitionedEditTree owner;
+		/**
+		 * the text of the segment, none of them empty unless there is only one
+		 */
+		private final List<EditTree> trees = new ArrayList<EditTree>();
+		private final ReentrantLock lock = new ReentrantLock();
+		/**
+		 * set when merged into the segment before it, under the write lock of
+		 * the owner
+		 */
+		private boolean merged;
+
+		Segment(PartitionedEditTree owner, EditTree tree) {
+			this.owner = owner;
+			this.trees.add(tree);
+			splitLongTrees(0);
+		}
+
+		/**
+		 * run a under the lock of this segment
+		 */
+		private <T> T access(Access<T> a) throws IllegalStateException {
+			owner.layout.readLock().lock();
+			try {
+				if (merged)
+					throw new IllegalStateException("segment was merged into the one before it");
+				lock.lock();
+				try {
+					return a.access(this);
+				} finally {
+					lock.unlock();
+				}
+			} finally {
+				owner.layout.readLock().unlock();
+			}
+		}
+
+		public int length() throws IllegalStateException {
+			return access(new Access<Integer>() {
+				@Override
+				Integer access(Segment segment) {
+					return segment.size();
+				}
+			});
+		}
+
+		/**
+		 * 
+		 * @param pos
+		 *            in the segment
+		 * @param length
+		 * @return the text of the segment from pos of that length
+		 * @throws IndexOutOfBoundsException
+		 * @throws IllegalStateException
+		 *             if the segment was merged
+		 */
+		public String get(final int pos, final int length) throws IndexOutOfBoundsException, IllegalStateException {
+			return access(new Access<String>() {
+				@Override
+				String access(Segment segment) {
+					if (pos < 0 || length < 0 || pos + length > segment.size())
+						throw new IndexOutOfBoundsException();
+					StringBuilder sb = new StringBuilder(length);
+					segment.get(pos, length, sb);
+					return sb.toString();
+				}
+			});
+		}
+
+		/**
+		 * 
+		 * @param pos
+		 *            in the segment, up to its length
+		 * @param text
+		 * @throws IndexOutOfBoundsException
+		 * @throws IllegalStateException
+		 *             if the segment was merged
+		 */
+		public void insert(final int pos, final String text) throws IndexOutOfBoundsException, IllegalStateException {
+			access(new Access<Void>() {
+				@Override
+				Void access(Segment segment) {
+					if (pos < 0 || pos > segment.size())
+						throw new IndexOutOfBoundsException();
+					segment.insertAt(pos, text);
+					return null;
+				}
+			});
+		}
+
+		/**
+		 * insert at the end of the segment
+		 * 
+		 * @param text
+		 * @throws IllegalStateException
+		 *             if the segment was merged
+		 */
+		public void append(final String text) throws IllegalStateException {
+			access(new Access<Void>() {
+				@Override
+				Void access(Segment segment) {
+					segment.insertAt(segment.size(), text);
+					return null;
+				}
+			});
+		}
+
+		/**
+		 * 
+		 * @param pos
+		 *            in the segment
+		 * @param length
+		 * @throws IndexOutOfBoundsException
+		 *             unless the range is in the segment
+		 * @throws IllegalStateException
+		 *             if the segment was merged
+		 */
+		public void delete(final int pos, final int length)
+				throws IndexOutOfBoundsException, IllegalStateException {
+			access(new Access<Void>() {
+				@Override
+				Void access(Segment segment) {
+					if (pos < 0 || length < 0 || pos + length > segment.size())
+						throw new IndexOutOfBoundsException();
+					segment.deleteAt(pos, length);
+					return null;
+				}
+			});
+		}
+
+		/*
+		 * The methods below expect the caller to hold the lock of the
+		 * segment, and positions to be in range.
+		 */
+
+		private int size() {
+			int size = 0;
+			for (EditTree tree : trees)
+				size += tree.length();
+			return size;
+		}
+
+		private void get(int pos, int length, StringBuilder sb) {
+			int offset = 0;
+			for (EditTree tree : trees) {
+				int start = Math.max(pos, offset);
+				int end = Math.min(pos + length, offset + tree.length());
+				if (start < end)
+					sb.append(tree.get(start - offset, end - start));
+				offset += tree.length();
+			}
+		}
+
+		/**
+		 * insert into the tree that has pos, the earlier one at a boundary
+		 */
+		private void insertAt(int pos, String text) {
+			int i = 0;
+			while (pos > trees.get(i).length()) {
+				pos -= trees.get(i).length();
+				i++;
+			}
+			trees.get(i).insert(pos, text);
+			splitLongTrees(i);
+		}
+
+		private void deleteAt(int pos, int length) {
+			int offset = 0;
+			for (EditTree tree : trees) {
+				int start = Math.max(pos, offset);
+				int end = Math.min(pos + length, offset + tree.length());
+				int before = tree.length();
+				if (start < end)
+					tree.applyEdits(Collections.singletonList(Edit.delete(start - offset, end - start)));
+				offset += before;
+			}
+			joinShortTrees();
+		}
+
+		/**
+		 * split the tree at i until its parts are short enough
+		 */
+		private void splitLongTrees(int i) {
+			for (int end = i + 1; i < end; i++) {
+				EditTree tree = trees.get(i);
+				while (tree.length() > owner.maxSegmentLength) {
+					trees.add(i + 1, tree.split(tree.length() / 2));
+					owner.splits.incrementAndGet();
+					end++;
+				}
+			}
+		}
+
+		/**
+		 * join neighbouring trees that together are at most half the maximum
+		 * length, and drop empty trees
+		 */
+		private void joinShortTrees() {
+			for (int i = trees.size() - 1; i >= 0 && trees.size() > 1; i--)
+				if (trees.get(i).length() == 0)
+					trees.remove(i);
+			int i = 0;
+			while (i + 1 < trees.size()) {
+				EditTree tree = trees.get(i);
+				EditTree next = trees.get(i + 1);
+				if (tree.length() + next.length() <= owner.maxSegmentLength / 2) {
+					tree.concatenate(next);
+					trees.remove(i + 1);
+					owner.merges.incrementAndGet();
+				} else {
+					i++;
+				}
+			}
+		}
+	}
+
+	private final ReentrantReadWriteLock layout = new ReentrantReadWriteLock();
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final int maxSegmentLength;
+	private final AtomicInteger splits = new AtomicInteger();
+	private final AtomicInteger merges = new AtomicInteger();
+
+	/**
+	 * an empty document
+	 */
+	public PartitionedEditTree() {
+		this("", 1, MAX_SEGMENT);
+	}
+
+	/**
+	 * 
+	 * @param s
+	 * @param segments
+	 *            number of segments to cut s into
+	 */
+	public PartitionedEditTree(String s, int segments) {
+		this(s, segments, MAX_SEGMENT);
+	}
+
+	/**
+	 * 
+	 * @param s
+	 * @param segments
+	 *            number of segments to cut s into, at least one
+	 * @param maxSegmentLength
+	 *            length past which a tree of a segment is split, at least two
+	 * @throws IllegalArgumentException
+	 */
+	public PartitionedEditTree(String s, int segments, int maxSegmentLength) throws IllegalArgumentException {
+		if (segments < 1 || maxSegmentLength < 2)
+			throw new IllegalArgumentException();
+		this.maxSegmentLength = maxSegmentLength;
+		for (int i = 0; i < segments; i++) {
+			String part = s.substring((int) ((long) s.length() * i / segments),
+					(int) ((long) s.length() * (i + 1) / segments));
+			this.segments.add(new Segment(this, new EditTree(part)));
+		}
+	}
+
+	/**
+	 * 
+	 * @return the segments, in document order, at the time of the call
+	 */
+	public List<Segment> getSegments() {
+		layout.readLock().lock();
+		try {
+			return new ArrayList<Segment>(segments);
+		} finally {
+			layout.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of trees split so far
+	 */
+	public int getSplits() {
+		return splits.get();
+	}
+
+	/**
+	 * 
+	 * @return the number of trees and segments joined so far
+	 */
+	public int getMerges() {
+		return merges.get();
+	}
+
+	/**
+	 * lock the list of segments for reading and every segment, in order
+	 */
+	private void lockAll() {
+		layout.readLock().lock();
+		for (Segment segment : segments)
+			segment.lock.lock();
+	}
+
+	private void unlockAll() {
+		for (Segment segment : segments)
+			segment.lock.unlock();
+		layout.readLock().unlock();
+	}
+
+	private int totalLength() {
+		int length = 0;
+		for (Segment segment : segments)
+			length += segment.size();
+		return length;
+	}
+
+	public int length() {
+		lockAll();
+		try {
+			return totalLength();
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * 
+	 * @param pos
+	 *            in the document
+	 * @return the segment that has the character at pos, the last segment for
+	 *         the end of the document
+	 * @throws IndexOutOfBoundsException
+	 */
+	public Segment segmentAt(int pos) throws IndexOutOfBoundsException {
+		lockAll();
+		try {
+			if (pos < 0 || pos > totalLength())
+				throw new IndexOutOfBoundsException();
+			for (Segment segment : segments) {
+				if (pos < segment.size())
+					return segment;
+				pos -= segment.size();
+			}
+			return segments.get(segments.size() - 1);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	public char charAt(int pos) throws IndexOutOfBoundsException {
+		return get(pos, 1).charAt(0);
+	}
+
+	/**
+	 * 
+	 * @param pos
+	 * @param length
+	 * @return the text of the document from pos of that length
+	 * @throws IndexOutOfBoundsException
+	 */
+	public String get(int pos, int length) throws IndexOutOfBoundsException {
+		lockAll();
+		try {
+			if (pos < 0 || length < 0 || pos + length > totalLength())
+				throw new IndexOutOfBoundsException();
+			StringBuilder sb = new StringBuilder(length);
+			int offset = 0;
+			for (Segment segment : segments) {
+				int size = segment.size();
+				int start = Math.max(pos, offset);
+				int end = Math.min(pos + length, offset + size);
+				if (start < end)
+					segment.get(start - offset, end - start, sb);
+				offset += size;
+			}
+			return sb.toString();
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Insert in document coordinates; at the boundary of two segments the text
+	 * goes to the end of the first
+	 * 
+	 * @param pos
+	 * @param text
+	 * @throws IndexOutOfBoundsException
+	 */
+	public void insert(int pos, String text) throws IndexOutOfBoundsException {
+		lockAll();
+		try {
+			if (pos < 0 || pos > totalLength())
+				throw new IndexOutOfBoundsException();
+			int i = 0;
+			while (pos > segments.get(i).size()) {
+				pos -= segments.get(i).size();
+				i++;
+			}
+			segments.get(i).insertAt(pos, text);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Delete in document coordinates, across segments if need be
+	 * 
+	 * @param pos
+	 * @param length
+	 * @throws IndexOutOfBoundsException
+	 */
+	public void delete(int pos, int length) throws IndexOutOfBoundsException {
+		lockAll();
+		try {
+			if (pos < 0 || length < 0 || pos + length > totalLength())
+				throw new IndexOutOfBoundsException();
+			int offset = 0;
+			for (Segment segment : segments) {
+				int size = segment.size();
+				int start = Math.max(pos, offset);
+				int end = Math.min(pos + length, offset + size);
+				if (start < end)
+					segment.deleteAt(start - offset, end - start);
+				offset += size;
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Take the current version of the whole document, joining the trees in
+	 * O(log n) each
+	 * 
+	 * @return the current version
+	 */
+	public TreeVersion snapshot() {
+		List<EditTree> versions = new ArrayList<EditTree>();
+		lockAll();
+		try {
+			for (Segment segment : segments)
+				for (EditTree tree : segment.trees)
+					versions.add(new EditTree(tree.share(), tree.height()));
+		} finally {
+			unlockAll();
+		}
+		// the shared roots are copied on write, so they are joined without
+		// holding up the writers
+		EditTree joined = new EditTree();
+		for (EditTree version : versions)
+			joined.concatenate(version);
+		return joined.snapshot();
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * Merge neighbouring segments that together are at most half the maximum
+	 * length. Handles of merged segments can not be used afterwards.
+	 */
+	public void rebalance() {
+		layout.writeLock().lock();
+		try {
+			int i = 0;
+			while (i + 1 < segments.size()) {
+				Segment segment = segments.get(i);
+				Segment next = segments.get(i + 1);
+				if (segment.size() + next.size() <= maxSegmentLength / 2) {
+					segment.trees.addAll(next.trees);
+					segment.joinShortTrees();
+					next.merged = true;
+					segments.remove(i + 1);
+					merges.incrementAndGet();
+				} else {
+					i++;
+				}
+			}
+		} finally {
+			layout.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PartitionedEditTree}
+ *
+ */
+public class PartitionedEditTreeTest {
+
+	private static String randomText(Random r, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	@Test
+	public void testAgainstModel() {
+		Random r = new Random(49);
+		String s = randomText(r, 500);
+		PartitionedEditTree t = new PartitionedEditTree(s, 4, 200);
+		StringBuilder model = new StringBuilder(s);
+		for (int i = 0; i < 2000; i++) {
+			int pos = r.nextInt(model.length() + 1);
+			if (r.nextInt(3) > 0 || model.length() < 10) {
+				String text = randomText(r, 1 + r.nextInt(20));
+				t.insert(pos, text);
+				model.insert(pos, text);
+			} else {
+				int length = r.nextInt(Math.min(300, model.length() - pos) + 1);
+				t.delete(pos, length);
+				model.delete(pos, pos + length);
+			}
+			if (i % 100 == 0)
+				t.rebalance();
+			if (model.length() > 0) {
+				int at = r.nextInt(model.length());
+				assertEquals(model.charAt(at), t.charAt(at));
+			}
+		}
+		assertEquals(model.toString(), t.toString());
+		assertEquals(model.length(), t.length());
+		assertTrue(t.getSplits() > 0);
+		assertTrue(t.getMerges() > 0);
+	}
+
+	@Test
+	public void testSnapshotStaysAsItWas() {
+		Random r = new Random(49);
+		String s = randomText(r, 5000);
+		PartitionedEditTree t = new PartitionedEditTree(s, 8, 1000);
+		TreeVersion version = t.snapshot();
+		for (PartitionedEditTree.Segment segment : t.getSegments()) {
+			segment.insert(0, "<");
+			segment.append(">");
+			segment.delete(1, 10);
+		}
+		assertEquals(s, version.toString());
+		assertEquals(s.length() - 8 * 8, t.length());
+	}
+
+	@Test
+	public void testConcurrentWritersOfSegments() throws Exception {
+		final int writers = 8;
+		final int appends = 2000;
+		PartitionedEditTree t = new PartitionedEditTree("", writers, 1500);
+		final List<PartitionedEditTree.Segment> segments = t.getSegments();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < writers; i++) {
+			final int writer = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						PartitionedEditTree.Segment segment = segments.get(writer);
+						for (int k = 0; k < appends; k++)
+							segment.append(String.valueOf((char) ('a' + writer)));
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		// readers go on while the writers work
+		for (int i = 0; i < 20; i++) {
+			String s = t.toString();
+			for (int k = 1; k < s.length(); k++)
+				assertTrue(s.charAt(k - 1) <= s.charAt(k));
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(new ArrayList<Throwable>(), failures);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < writers; i++)
+			for (int k = 0; k < appends; k++)
+				expected.append((char) ('a' + i));
+		assertEquals(expected.toString(), t.toString());
+		// each region of 2000 characters grew past 1500 once
+		assertEquals(writers, t.getSplits());
+	}
+
+	@Test
+	public void testMergedSegmentIsRetired() {
+		PartitionedEditTree t = new PartitionedEditTree("abcdef", 3, 100);
+		PartitionedEditTree.Segment first = t.segmentAt(0);
+		PartitionedEditTree.Segment last = t.segmentAt(5);
+		t.rebalance();
+		assertEquals(1, t.getSegments().size());
+		first.append("!");
+		assertEquals("abcdef!", t.toString());
+		try {
+			last.append("?");
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(first, t.segmentAt(6));
+	}
+}
@@ -0,0 +1,354 @@
+package editortrees;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One replica of a text edited by many users at once without a central lock,
+ * as a replicated growable array (RGA), a sequence CRDT. Every character gets
+ * an id made of a Lamport clock and the site that typed it, and is inserted
+ * right after the character it was typed after, its origin. Characters
+ * inserted concurrently after the same origin are ordered by id, newest
+ * first, so all replicas that applied the same ops hold the same text,
+ * whatever order the ops arrived in. Deleted characters stay as tombstones,
+ * since later ops may still refer to them.
+ *
+ * The visible text is an EditTree, and the position of every visible
+ * character is kept by an AnchorTree, so turning an id into a position and a
+ * position into an id are both O(log n). The full order, with the
+ * tombstones, is a linked list. A remote insert costs O(log n) plus the
+ * characters it has to skip: concurrent inserts at the same place, and the
+ * tombstones right before it if its origin was deleted.
+ *
+ * Ops from one site must arrive in the order they were made, but ops from
+ * different sites may arrive in any order and more than once; an op whose
+ * origin has not arrived yet waits for it.
+ *
+ * @author zhang
+ *
+ */
+public class ReplicatedText {
+	/**
+	 * identifies one character across all replicas
+	 */
+	public static final class Id implements Comparable<Id> {
+		private final long clock;
+		private final int site;
+
+		public Id(long clock, int site) {
+			this.clock = clock;
+			this.site = site;
+		}
+
+		public long getClock() {
+			return clock;
+		}
+
+		public int getSite() {
+			return site;
+		}
+
+		@Override
+		public int compareTo(Id o) {
+			if (clock != o.clock)
+				return clock < o.clock ? -1 : 1;
+			return site < o.site ? -1 : site == o.site ? 0 : 1;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Id && ((Id) o).clock == clock && ((Id) o).site == site;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (clock ^ (clock >>> 32)) * 31 + site;
+		}
+
+		@Override
+		public String toString() {
+			return clock + "@" + site;
+		}
+	}
+
+	/**
+	 * an insert or a delete of one character, to be sent to the other
+	 * replicas
+	 */
+	public static final class Op {
+		private final Id id;
+		private final Id origin;
+		private final char c;
+		private final boolean delete;
+
+		private Op(Id id, Id origin, char c, boolean delete) {
+			this.id = id;
+			this.origin = origin;
+			this.c = c;
+			this.delete = delete;
+		}
+
+		/**
+		 *
+		 * @param id
+		 *            of the new character
+		 * @param origin
+		 *            id of the character it was typed after, null at the start
+		 * @param c
+		 * @return an insert
+		 */
+		public static Op insert(Id id, Id origin, char c) {
+			return new Op(id, origin, c, false);
+		}
+
+		/**
+		 *
+		 * @param id
+		 *            of the character to delete
+		 * @return a delete
+		 */
+		public static Op delete(Id id) {
+			return new Op(id, null, '\0', true);
+		}
+
+		public Id getId() {
+			return id;
+		}
+
+		public Id getOrigin() {
+			return origin;
+		}
+
+		public char getChar() {
+			return c;
+		}
+
+		public boolean isDelete() {
+			return delete;
+		}
+
+		@Override
+		public String toString() {
+			return delete ? "delete " + id : "insert " + id + " '" + c + "' after " + origin;
+		}
+	}
+
+	/**
+	 * a character in the full order
+	 */
+	private static final class Element {
+		final Id id;
+		Element next;
+		Element prev;
+		/**
+		 * where the character is in the text, null once it was deleted
+		 */
+		Anchor anchor;
+
+		Element(Id id) {
+			this.id = id;
+		}
+	}
+
+	private final int site;
+	private long clock;
+	private final EditTree text = new EditTree();
+	private final AnchorTree positions = new AnchorTree();
+	/**
+	 * start of the full order, before the first character
+	 */
+	private final Element head = new Element(null);
+	private final Map<Id, Element> elements = new HashMap<Id, Element>();
+	private final Map<Anchor, Element> visible = new IdentityHashMap<Anchor, Element>();
+	/**
+	 * ops that arrived before the character they refer to
+	 */
+	private final Map<Id, List<Op>> waiting = new HashMap<Id, List<Op>>();
+	private int waitingCount;
+
+	/**
+	 * An empty replica
+	 *
+	 * @param site
+	 *            different for every replica
+	 */
+	public ReplicatedText(int site) {
+		this.site = site;
+	}
+
+	public int getSite() {
+		return site;
+	}
+
+	public int length() {
+		return text.length();
+	}
+
+	public char charAt(int pos) {
+		return text.charAt(pos);
+	}
+
+	/**
+	 *
+	 * @return the text as it is now, which does not change afterwards
+	 */
+	public TreeVersion snapshot() {
+		return text.snapshot();
+	}
+
+	@Override
+	public String toString() {
+		return text.toString();
+	}
+
+	/**
+	 *
+	 * @return the number of ops received that still wait for an op they
+	 *         depend on
+	 */
+	public int getWaitingCount() {
+		return waitingCount;
+	}
+
+	/**
+	 * Type s at pos in this replica
+	 *
+	 * @param pos
+	 * @param s
+	 * @return the ops to send to the other replicas
+	 * @throws IndexOutOfBoundsException
+	 */
+	public List<Op> insert(int pos, String s) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos > length())
+			throw new IndexOutOfBoundsException();
+		List<Op> ops = new ArrayList<Op>(s.length());
+		Id origin = pos == 0 ? null : elementAt(pos - 1).id;
+		for (int i = 0; i < s.length(); i++) {
+			Op op = Op.insert(new Id(++clock, site), origin, s.charAt(i));
+			integrate(op);
+			ops.add(op);
+			origin = op.id;
+		}
+		return ops;
+	}
+
+	/**
+	 * Delete length characters from pos in this replica
+	 *
+	 * @param pos
+	 * @param length
+	 * @return the ops to send to the other replicas
+	 * @throws IndexOutOfBoundsException
+	 */
+	public List<Op> delete(int pos, int length) throws IndexOutOfBoundsException {
+		if (pos < 0 || length < 0 || pos + length > length())
+			throw new IndexOutOfBoundsException();
+		List<Op> ops = new ArrayList<Op>(length);
+		for (int i = 0; i < length; i++) {
+			Op op = Op.delete(elementAt(pos).id);
+			integrate(op);
+			ops.add(op);
+		}
+		return ops;
+	}
+
+	/**
+	 * Apply ops received from other replicas. Ops already applied are
+	 * ignored, and ops whose origin has not been seen yet wait for it.
+	 *
+	 * @param ops
+	 */
+	public void apply(List<Op> ops) {
+		for (Op op : ops)
+			apply(op);
+	}
+
+	/**
+	 * same as apply(List) for one op
+	 *
+	 * @param op
+	 */
+	public void apply(Op op) {
+		Deque<Op> ready = new ArrayDeque<Op>();
+		ready.add(op);
+		while (!ready.isEmpty()) {
+			op = ready.poll();
+			Id missing = op.delete ? op.id : op.origin;
+			if (missing != null && !elements.containsKey(missing)) {
+				List<Op> list = waiting.get(missing);
+				if (list == null)
+					waiting.put(missing, list = new ArrayList<Op>(1));
+				list.add(op);
+				waitingCount++;
+				continue;
+			}
+			if (!op.delete && elements.containsKey(op.id))
+				continue;
+			clock = Math.max(clock, op.id.clock);
+			integrate(op);
+			if (!op.delete) {
+				List<Op> unblocked = waiting.remove(op.id);
+				if (unblocked != null) {
+					waitingCount -= unblocked.size();
+					ready.addAll(unblocked);
+				}
+			}
+		}
+	}
+
+	/**
+	 * apply an op whose origin, or character to delete, is known
+	 */
+	private void integrate(Op op) {
+		if (op.delete) {
+			Element e = elements.get(op.id);
+			if (e.anchor == null)
+				return;
+			int pos = e.anchor.getPosition();
+			visible.remove(e.anchor);
+			e.anchor.dispose();
+			e.anchor = null;
+			positions.deleted(pos, 1);
+			text.delete(pos);
+			return;
+		}
+		Element before = op.origin == null ? head : elements.get(op.origin);
+		// skip the characters inserted concurrently after the same origin
+		// with a larger id, and everything typed after those
+		while (before.next != null && before.next.id.compareTo(op.id) > 0)
+			before = before.next;
+		Element e = new Element(op.id);
+		e.prev = before;
+		e.next = before.next;
+		if (before.next != null)
+			before.next.prev = e;
+		before.next = e;
+		elements.put(op.id, e);
+
+		int pos = positionAfter(before);
+		text.add(op.c, pos);
+		positions.inserted(pos, 1);
+		e.anchor = positions.create(pos, Anchor.Bias.RIGHT);
+		visible.put(e.anchor, e);
+	}
+
+	/**
+	 *
+	 * @param e
+	 * @return the position in the text right after e, or where e was
+	 */
+	private int positionAfter(Element e) {
+		while (e != head && e.anchor == null)
+			e = e.prev;
+		return e == head ? 0 : e.anchor.getPosition() + 1;
+	}
+
+	private Element elementAt(int pos) {
+		return visible.get(positions.find(pos, Anchor.Bias.RIGHT));
+	}
+}
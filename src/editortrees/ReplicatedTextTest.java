@@ -0,0 +1,92 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import editortrees.ReplicatedText.Op;
+
+/**
+ * Tests for {@link ReplicatedText} over a {@link SimulatedNetwork}
+ *
+ */
+public class ReplicatedTextTest {
+
+	@Test
+	public void testConcurrentInsertsAtTheSamePlace() {
+		SimulatedNetwork net = new SimulatedNetwork(3, 1);
+		net.insert(0, 0, "hello world");
+		net.deliverAll();
+		net.insert(0, 5, ",");
+		net.insert(1, 5, " there");
+		net.insert(2, 11, "!");
+		net.deliverAll();
+		assertTrue(net.isConverged());
+		// the later typed text of site 1 comes first
+		assertEquals("hello there, world!", net.replica(2).toString());
+	}
+
+	@Test
+	public void testDeleteBeforeItsInsertArrives() {
+		ReplicatedText a = new ReplicatedText(0);
+		ReplicatedText b = new ReplicatedText(1);
+		ReplicatedText c = new ReplicatedText(2);
+		List<Op> typed = a.insert(0, "abc");
+		b.apply(typed);
+		List<Op> deleted = b.delete(1, 1);
+		c.apply(deleted);
+		assertEquals(1, c.getWaitingCount());
+		c.apply(typed);
+		c.apply(typed);
+		a.apply(deleted);
+		assertEquals(0, c.getWaitingCount());
+		assertEquals("ac", c.toString());
+		assertEquals("ac", a.toString());
+	}
+
+	@Test
+	public void testRandomSessionsConverge() {
+		for (int seed = 0; seed < 20; seed++) {
+			Random r = new Random(seed);
+			SimulatedNetwork net = new SimulatedNetwork(2 + r.nextInt(4), seed);
+			for (int step = 0; step < 400; step++) {
+				int site = r.nextInt(net.size());
+				ReplicatedText replica = net.replica(site);
+				int pos = r.nextInt(replica.length() + 1);
+				if (replica.length() > 0 && r.nextInt(3) == 0)
+					net.delete(site, Math.min(pos, replica.length() - 1),
+							Math.min(1 + r.nextInt(4), replica.length() - Math.min(pos, replica.length() - 1)));
+				else
+					net.insert(site, pos, "" + (char) ('a' + site) + step);
+				for (int i = r.nextInt(4); i > 0; i--)
+					net.deliverOne();
+			}
+			net.deliverAll();
+			assertTrue("seed " + seed, net.isConverged());
+		}
+	}
+
+	@Test
+	public void testLocalEditsAreLikeAString() {
+		ReplicatedText t = new ReplicatedText(0);
+		StringBuilder model = new StringBuilder();
+		Random r = new Random(44);
+		for (int i = 0; i < 500; i++) {
+			int pos = r.nextInt(model.length() + 1);
+			if (model.length() > 3 && r.nextBoolean()) {
+				int length = r.nextInt(Math.min(3, model.length() - pos) + 1);
+				t.delete(pos, length);
+				model.delete(pos, pos + length);
+			} else {
+				String s = "xyz".substring(r.nextInt(3));
+				t.insert(pos, s);
+				model.insert(pos, s);
+			}
+			assertEquals(model.toString(), t.toString());
+		}
+	}
+}
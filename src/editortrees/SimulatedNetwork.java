@@ -0,0 +1,134 @@
+package editortrees;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import editortrees.ReplicatedText.Op;
+
+/**
+ * Replicas of one {@link ReplicatedText} connected by an in-process network,
+ * to test convergence and measure throughput offline. Every pair of replicas
+ * has a channel that keeps the ops it carries in order, as TCP would, but the
+ * channels are served in random order, so ops from different sites arrive
+ * interleaved and late at each replica.
+ *
+ * @author zhang
+ *
+ */
+public class SimulatedNetwork {
+	private final List<ReplicatedText> replicas = new ArrayList<ReplicatedText>();
+	/**
+	 * channels[from * size + to] holds the batches sent and not delivered yet
+	 */
+	private final List<Deque<List<Op>>> channels = new ArrayList<Deque<List<Op>>>();
+	private final Random random;
+	private long deliveredOps;
+
+	/**
+	 *
+	 * @param size
+	 *            number of replicas, with sites 0 to size - 1
+	 * @param seed
+	 *            of the order in which channels are served
+	 */
+	public SimulatedNetwork(int size, long seed) {
+		random = new Random(seed);
+		for (int i = 0; i < size; i++)
+			replicas.add(new ReplicatedText(i));
+		for (int i = 0; i < size * size; i++)
+			channels.add(new ArrayDeque<List<Op>>());
+	}
+
+	public int size() {
+		return replicas.size();
+	}
+
+	public ReplicatedText replica(int site) {
+		return replicas.get(site);
+	}
+
+	/**
+	 * type s at pos in one replica and send it to the others
+	 */
+	public void insert(int site, int pos, String s) {
+		send(site, replica(site).insert(pos, s));
+	}
+
+	/**
+	 * delete in one replica and send it to the others
+	 */
+	public void delete(int site, int pos, int length) {
+		send(site, replica(site).delete(pos, length));
+	}
+
+	/**
+	 * send ops made by one replica to all the others
+	 *
+	 * @param from
+	 * @param ops
+	 */
+	public void send(int from, List<Op> ops) {
+		if (ops.isEmpty())
+			return;
+		for (int to = 0; to < size(); to++)
+			if (to != from)
+				channels.get(from * size() + to).add(ops);
+	}
+
+	/**
+	 * deliver the oldest batch of a channel chosen at random
+	 *
+	 * @return false if nothing was waiting to be delivered
+	 */
+	public boolean deliverOne() {
+		int busy = 0;
+		for (Deque<List<Op>> channel : channels)
+			if (!channel.isEmpty())
+				busy++;
+		if (busy == 0)
+			return false;
+		int pick = random.nextInt(busy);
+		for (int i = 0; i < channels.size(); i++) {
+			Deque<List<Op>> channel = channels.get(i);
+			if (!channel.isEmpty() && pick-- == 0) {
+				List<Op> ops = channel.poll();
+				replicas.get(i % size()).apply(ops);
+				deliveredOps += ops.size();
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * deliver everything that was sent
+	 */
+	public void deliverAll() {
+		while (deliverOne())
+			;
+	}
+
+	/**
+	 *
+	 * @return the number of ops applied by receiving replicas so far
+	 */
+	public long getDeliveredOps() {
+		return deliveredOps;
+	}
+
+	/**
+	 *
+	 * @return true if all replicas hold the same text and none waits for an
+	 *         op
+	 */
+	public boolean isConverged() {
+		String text = replicas.get(0).toString();
+		for (ReplicatedText r : replicas)
+			if (r.getWaitingCount() > 0 || !r.toString().equals(text))
+				return false;
+		return true;
+	}
+}
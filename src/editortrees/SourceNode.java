@@ -0,0 +1,156 @@
+package editortrees;
+
+import java.util.List;
+
+/**
+ * A lazy subtree that holds a range of a {@link TextSource}. When it is
+ * materialized it becomes the middle character of its range, with two lazy
+ * children for the two halves, so the tree unfolds into exactly the shape
+ * EditTree(String) would have built. Reads that do not change the tree are
+ * answered straight from the source without materializing anything.
+ * 
+ * @author zhang
+ *
+ */
+class SourceNode extends LazyNode {
+	private final TextSource text;
+	private final int offset;
+
+	private SourceNode(TextSource text, int offset, int length) {
+		super(length, balanceFromSize(length));
+		this.text = text;
+		this.offset = offset;
+	}
+
+	/**
+	 * 
+	 * @param text
+	 * @param offset
+	 *            index of the first character of the subtree in text
+	 * @param length
+	 *            number of characters in the subtree
+	 * @return the root of a lazy balanced subtree over the range
+	 */
+	static Node create(TextSource text, int offset, int length) {
+		if (length == 0)
+			return NULL_NODE;
+		return new SourceNode(text, offset, length);
+	}
+
+	static Code balanceFromSize(int length) {
+		int leftSize = length / 2;
+		return Code.getCode(EditTree.balancedHeightFromSize(length - leftSize - 1)
+				- EditTree.balancedHeightFromSize(leftSize));
+	}
+
+	/**
+	 * 
+	 * @param position
+	 *            of this subtree in the tree
+	 * @return true unless this node reads a memory mapped file at another
+	 *         position
+	 */
+	boolean readsFrom(int position) {
+		return !(text instanceof MappedText) || offset == position;
+	}
+
+	@Override
+	int knownHeight() {
+		return EditTree.balancedHeightFromSize(size());
+	}
+
+	@Override
+	void checkLazy(int height) throws TreeCheckException {
+		super.checkLazy(height);
+		if (getBalance() != balanceFromSize(size()))
+			throw new TreeCheckException("lazy subtree of size " + size() + " has balance code " + getBalance()
+					+ " instead of " + balanceFromSize(size()));
+	}
+
+	@Override
+	protected void materialize() {
+		int leftSize = size() / 2;
+		install(text.charAt(offset + leftSize), create(text, offset, leftSize),
+				create(text, offset + leftSize + 1, size() - leftSize - 1));
+	}
+
+	@Override
+	public Node constructFromTree() {
+		if (isMaterialized())
+			return super.constructFromTree();
+		return new SourceNode(text, offset, size());
+	}
+
+	/**
+	 * 
+	 * @return the compact text this node reads from, null if it reads from
+	 *         somewhere else, like a mapped file
+	 */
+	CompactText getCompactText() {
+		return text instanceof CompactText ? (CompactText) text : null;
+	}
+
+	@Override
+	public char get(int pos) {
+		if (isMaterialized())
+			return super.get(pos);
+		return text.charAt(offset + pos);
+	}
+
+	@Override
+	public void get(int start, int end, StringBuilder sb) {
+		if (isMaterialized()) {
+			super.get(start, end, sb);
+			return;
+		}
+		for (int i = start; i < end; i++)
+			sb.append(text.charAt(offset + i));
+	}
+
+	/**
+	 * copy characters straight from the source, whether or not this node has
+	 * been materialized
+	 * 
+	 * @param start
+	 *            first position in this subtree
+	 * @param end
+	 *            first position not to copy
+	 * @param dst
+	 * @param off
+	 *            where to put the first character in dst
+	 */
+	void getChars(int start, int end, char[] dst, int off) {
+		for (int i = start; i < end; i++)
+			dst[off++] = text.charAt(offset + i);
+	}
+
+	/**
+	 * 
+	 * @param op
+	 * @return a lazy subtree of the same shape over the text of this one
+	 *         rewritten by op
+	 */
+	Node transformed(CharUnaryOperator op) {
+		return create(CompactText.transformed(text, offset, offset + size(), op), 0, size());
+	}
+
+	@Override
+	public int find(String s, int pos, List<Integer> found) {
+		if (isMaterialized())
+			return super.find(s, pos, found);
+		for (int i = pos; i < size(); i++) {
+			if (matchNext(s, text.charAt(offset + i), found))
+				return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		if (isMaterialized())
+			return super.toString();
+		StringBuilder sb = new StringBuilder(size());
+		get(0, size(), sb);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,46 @@
+package editortrees;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A subtree that has been written to the spill file of a {@link Pager}. It is
+ * read back, with its exact shape, the first time anything below this node is
+ * needed.
+ * 
+ * @author zhang
+ *
+ */
+class SpilledNode extends LazyNode {
+	private final Pager pager;
+	private final long position;
+	private final int length;
+	private Node[] lazy;
+
+	/**
+	 * 
+	 * @param original
+	 *            the subtree that was spilled
+	 * @param pager
+	 * @param position
+	 *            where the subtree starts in the spill file
+	 * @param length
+	 *            number of bytes written
+	 * @param lazy
+	 *            lazy nodes inside the subtree, which stay in memory
+	 */
+	SpilledNode(Node original, Pager pager, long position, int length, Node[] lazy) {
+		super(original.size(), original.getBalance());
+		this.pager = pager;
+		this.position = position;
+		this.length = length;
+		this.lazy = lazy;
+	}
+
+	@Override
+	protected void materialize() {
+		ByteBuffer bytes = pager.fault(position, length, size());
+		Node root = SubtreeCodec.read(bytes, lazy);
+		install(root.getElement(), root.getLeft(), root.getRight());
+		lazy = null;
+	}
+}
@@ -0,0 +1,144 @@
+package editortrees;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.List;
+
+import editortrees.Node.Code;
+
+/**
+ * Writes a subtree in preorder with its exact shape and balance codes, and
+ * reads it back without any rebalancing. Every node takes one header byte
+ * followed by its character:
+ * 
+ * <pre>
+ * bits 0-1  balance code (ordinal of Node.Code)
+ * bit  2    has a left child
+ * bit  3    has a right child
+ * bit  4    lazy: the node was not materialized when written and is kept in
+ *           memory; an int index into the lazy node list follows instead of
+ *           the character and the children
+ * bit  5    not used
+ * bit  6    text: a lazy leaf over compact text (see {@link CompactText});
+ *           an int length and its characters follow, one byte each unless
+ *           bit 7 is set
+ * bit  7    the characters of a text leaf take two bytes each
+ * </pre>
+ * 
+ * Other lazy nodes are passed through untouched, so writing a subtree never
+ * decodes or loads parts of it that are not in memory yet.
+ * 
+ * @author zhang
+ *
+ */
+final class SubtreeCodec {
+	private static final int HAS_LEFT = 1 << 2;
+	private static final int HAS_RIGHT = 1 << 3;
+	private static final int LAZY = 1 << 4;
+	private static final int TEXT = 1 << 6;
+	private static final int WIDE = 1 << 7;
+	private static final Code[] CODES = Code.values();
+
+	private SubtreeCodec() {
+	}
+
+	/**
+	 * 
+	 * @param n
+	 *            root of the subtree, must not be NULL_NODE
+	 * @return the number of bytes write() takes for this subtree, not counting
+	 *         what is below lazy nodes
+	 */
+	static int encodedSize(Node n) {
+		if (n == Node.NULL_NODE)
+			return 0;
+		CompactText text = compactText(n);
+		if (text != null)
+			return 5 + (text.isLatin1() ? 1 : 2) * n.size();
+		if (LazyNode.isLazy(n))
+			return 5;
+		return 3 + encodedSize(n.getLeft()) + encodedSize(n.getRight());
+	}
+
+	/**
+	 * write the subtree rooted at n
+	 * 
+	 * @param n
+	 *            root of the subtree, must not be NULL_NODE
+	 * @param out
+	 *            buffer with at least encodedSize(n) bytes remaining
+	 * @param lazy
+	 *            lazy nodes found in the subtree are appended to this list
+	 */
+	static void write(Node n, ByteBuffer out, List<Node> lazy) {
+		int header = n.getBalance().ordinal();
+		CompactText text = compactText(n);
+		if (text != null) {
+			out.put((byte) (header | TEXT | (text.isLatin1() ? 0 : WIDE)));
+			out.putInt(n.size());
+			for (int i = 0; i < n.size(); i++) {
+				char c = n.get(i);
+				if (text.isLatin1())
+					out.put((byte) c);
+				else
+					out.putChar(c);
+			}
+			return;
+		}
+		if (LazyNode.isLazy(n)) {
+			out.put((byte) (header | LAZY));
+			out.putInt(lazy.size());
+			lazy.add(n);
+			return;
+		}
+		Node left = n.getLeft();
+		Node right = n.getRight();
+		if (left != Node.NULL_NODE)
+			header |= HAS_LEFT;
+		if (right != Node.NULL_NODE)
+			header |= HAS_RIGHT;
+		out.put((byte) header);
+		out.putChar(n.getElement());
+		if (left != Node.NULL_NODE)
+			write(left, out, lazy);
+		if (right != Node.NULL_NODE)
+			write(right, out, lazy);
+	}
+
+	/**
+	 * 
+	 * @param n
+	 * @return the compact text n reads from if n is a lazy leaf over one, null
+	 *         otherwise
+	 */
+	private static CompactText compactText(Node n) {
+		if (n instanceof SourceNode && LazyNode.isLazy(n))
+			return ((SourceNode) n).getCompactText();
+		return null;
+	}
+
+	/**
+	 * read back a subtree written by write()
+	 * 
+	 * @param in
+	 * @param lazy
+	 *            the lazy nodes collected by write()
+	 * @return root of the subtree
+	 */
+	static Node read(ByteBuffer in, Node[] lazy) {
+		int header = in.get() & 0xff;
+		if ((header & TEXT) != 0) {
+			int length = in.getInt();
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++)
+				chars[i] = (header & WIDE) != 0 ? in.getChar() : (char) (in.get() & 0xff);
+			return SourceNode.create(CompactText.of(CharBuffer.wrap(chars), 0, length), 0, length);
+		}
+		if ((header & LAZY) != 0)
+			return lazy[in.getInt()];
+		char element = in.getChar();
+		Node left = (header & HAS_LEFT) != 0 ? read(in, lazy) : Node.NULL_NODE;
+		Node right = (header & HAS_RIGHT) != 0 ? read(in, lazy) : Node.NULL_NODE;
+		return new Node(element, left, right, CODES[header & 3]);
+	}
+}
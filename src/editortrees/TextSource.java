@@ -0,0 +1,18 @@
+package editortrees;
+
+/**
+ * Random access to characters that live outside of the tree, for example in a
+ * memory mapped file.
+ * 
+ * @author zhang
+ *
+ */
+interface TextSource {
+
+	/**
+	 * 
+	 * @param index
+	 * @return the character at index
+	 */
+	char charAt(int index);
+}
@@ -0,0 +1,121 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EditTree#transform(int, int, CharUnaryOperator)}
+ *
+ */
+public class TransformTest {
+	private static final CharUnaryOperator UPPER = new CharUnaryOperator() {
+		@Override
+		public char apply(char c) {
+			return Character.toUpperCase(c);
+		}
+	};
+
+	private static final CharUnaryOperator MASK = new CharUnaryOperator() {
+		@Override
+		public char apply(char c) {
+			return '*';
+		}
+	};
+
+	private static String randomText(Random r, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		return sb.toString();
+	}
+
+	/**
+	 * 
+	 * @return the number of source nodes of the subtree that have been turned
+	 *         into nodes
+	 */
+	private static int materialized(Node n) {
+		if (n == Node.NULL_NODE || LazyNode.isLazy(n))
+			return 0;
+		return (n instanceof SourceNode ? 1 : 0) + materialized(n.getLeft()) + materialized(n.getRight());
+	}
+
+	@Test
+	public void testAgainstModel() {
+		Random r = new Random(47);
+		String s = randomText(r, 3000);
+		EditTree t = new EditTree(s);
+		StringBuilder model = new StringBuilder(s);
+		for (int i = 0; i < 200; i++) {
+			int start = r.nextInt(model.length());
+			int end = start + r.nextInt(Math.min(300, model.length() - start + 1));
+			int height = t.height();
+			if (r.nextBoolean()) {
+				t.transform(start, end, UPPER);
+				model.replace(start, end, model.substring(start, end).toUpperCase());
+			} else {
+				t.transform(start, end, MASK);
+				for (int k = start; k < end; k++)
+					model.setCharAt(k, '*');
+			}
+			assertEquals(height, t.height());
+			if (i % 10 == 0) {
+				int pos = r.nextInt(model.length());
+				t.add('#', pos);
+				model.insert(pos, '#');
+			}
+			assertEquals(model.toString(), t.toString());
+		}
+	}
+
+	@Test
+	public void testLazyLeavesStayLazy() {
+		Random r = new Random(47);
+		// many lazy source nodes, which check() leaves as they are
+		String s = randomText(r, 20000);
+		EditTree t = new EditTree(s);
+		t.transform(0, s.length(), UPPER);
+		// only the paths to the two ends, which are marked as changed
+		assertTrue(materialized(t.getRoot()) <= 2 * 7);
+		assertEquals(s.toUpperCase(), t.toString());
+	}
+
+	@Test
+	public void testParallelRange() {
+		Random r = new Random(47);
+		String s = randomText(r, 4 * EditTree.PARALLEL_CUTOFF + 100);
+		EditTree t = new EditTree(s);
+		for (int i = 0; i < 100; i++)
+			t.add('x', r.nextInt(t.length()));
+		String before = t.toString();
+		TreeVersion version = t.snapshot();
+		int start = 1000;
+		int end = t.length() - 1000;
+		t.transform(start, end, UPPER);
+		assertEquals(before.substring(0, start) + before.substring(start, end).toUpperCase() + before.substring(end),
+				t.toString());
+		assertEquals(before, version.toString());
+	}
+
+	@Test
+	public void testListenersAndAnchors() {
+		EditTree t = new EditTree("password=hunter2;");
+		t.checkpoint();
+		UndoManager undo = new UndoManager(t);
+		DecorationSet<String> decorations = new DecorationSet<String>(t);
+		Decoration<String> secret = decorations.add(9, 16, "secret");
+		Anchor anchor = t.createAnchor(12, Anchor.Bias.LEFT);
+		t.transform(9, 16, MASK);
+		assertEquals("password=*******;", t.toString());
+		assertEquals(12, anchor.getPosition());
+		assertEquals(9, secret.getStart());
+		assertEquals(16, secret.getEnd());
+		assertEquals(new Edit(9, 7, "*******").toString(), t.changesSinceCheckpoint().toString());
+		undo.undo();
+		assertEquals("password=hunter2;", t.toString());
+	}
+}
@@ -0,0 +1,66 @@
+package editortrees;
+
+/**
+ * Thrown when a check of an EditTree finds a node that breaks an invariant:
+ * a size that does not add up or a balance code that does not match the
+ * heights of the subtrees. Tells which node, by its path from the root.
+ *
+ * @author zhang
+ *
+ */
+public class TreeCheckException extends IllegalStateException {
+	private static final long serialVersionUID = 1L;
+
+	private final String problem;
+	private final StringBuilder path = new StringBuilder();
+	private String tree = "";
+
+	TreeCheckException(String problem) {
+		super(problem);
+		this.problem = problem;
+	}
+
+	/**
+	 * the node at fault is in the given subtree of the node checked next
+	 * 
+	 * @param direction
+	 *            'L' or 'R'
+	 * @return this
+	 */
+	TreeCheckException under(char direction) {
+		path.insert(0, direction);
+		return this;
+	}
+
+	/**
+	 * describe the tree that was checked
+	 * 
+	 * @return this
+	 */
+	TreeCheckException in(String tree) {
+		this.tree = tree;
+		return this;
+	}
+
+	/**
+	 * 
+	 * @return what is wrong
+	 */
+	public String getProblem() {
+		return problem;
+	}
+
+	/**
+	 * 
+	 * @return L and R for each step from the root to the node at fault,
+	 *         empty for the root
+	 */
+	public String getPath() {
+		return path.toString();
+	}
+
+	@Override
+	public String getMessage() {
+		return problem + " at " + (path.length() == 0 ? "the root" : "root." + path) + tree;
+	}
+}
@@ -0,0 +1,408 @@
+package editortrees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The differences between two trees that share nodes, e.g. two versions
+ * kept by an {@link UndoManager} or two documents built with one
+ * {@link Interner}.
+ *
+ * Only nodes marked shared, and the nodes below them, can be in both trees;
+ * the nodes above them were made by edits since the trees parted. From the
+ * highest shared nodes down, both trees are unfolded, always the largest
+ * subtree first, and a subtree that turns up in both is matched by reference
+ * without looking inside it. Only subtrees that are in one tree alone are
+ * unfolded further, so a few edits to a large document cost about O(edits
+ * log n). The matched
+ * subtrees that keep their order (the heaviest such chain, in case text was
+ * moved) split the two texts into regions, and a Myers diff finds the edits
+ * inside each region that differs.
+ *
+ * @author zhang
+ *
+ */
+final class TreeDiff {
+	/**
+	 * Myers diff gives up after this many inserted and deleted characters in
+	 * one region, and replaces the region as a whole instead
+	 */
+	static final int MAX_DIFFERENCES = 1024;
+
+	/**
+	 * a subtree found at more places than this (places in one tree times
+	 * places in the other) is only paired with places of about the same rank
+	 */
+	private static final int MAX_PAIRS = 4096;
+	private static final int PAIR_BAND = 16;
+
+	private TreeDiff() {
+	}
+
+	/**
+	 * a subtree waiting to be matched or unfolded
+	 */
+	private static class Entry {
+		final Node node;
+		final int pos;
+		final boolean inA;
+		boolean done;
+
+		Entry(Node node, int pos, boolean inA) {
+			this.node = node;
+			this.pos = pos;
+			this.inA = inA;
+		}
+	}
+
+	/**
+	 * a subtree found in both trees
+	 */
+	private static class Match {
+		final int posA;
+		final int posB;
+		final int length;
+
+		Match(int posA, int posB, int length) {
+			this.posA = posA;
+			this.posB = posB;
+			this.length = length;
+		}
+	}
+
+	private static final Comparator<Entry> LARGEST_FIRST = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return e2.node.size() - e1.node.size();
+		}
+	};
+
+	/**
+	 *
+	 * @param a
+	 * @param b
+	 * @return sorted edits, in the positions of a, that turn a into b with
+	 *         EditTree.applyEdits
+	 */
+	static List<Edit> diff(EditTree a, EditTree b) {
+		List<Edit> edits = new ArrayList<Edit>();
+		if (a.getRoot() == b.getRoot())
+			return edits;
+		List<Match> matches = chain(match(a.getRoot(), b.getRoot()));
+		int posA = 0;
+		int posB = 0;
+		for (Match m : matches) {
+			region(a, posA, m.posA, b, posB, m.posB, edits);
+			posA = m.posA + m.length;
+			posB = m.posB + m.length;
+		}
+		region(a, posA, a.length(), b, posB, b.length(), edits);
+		return edits;
+	}
+
+	/**
+	 * unfold both trees until every subtree left is in both of them
+	 *
+	 * @return the pairs of places where the same subtree is in both trees
+	 */
+	private static List<Match> match(Node rootA, Node rootB) {
+		Map<Node, List<Entry>> seenA = new IdentityHashMap<Node, List<Entry>>();
+		Map<Node, List<Entry>> seenB = new IdentityHashMap<Node, List<Entry>>();
+		PriorityQueue<Entry> queue = new PriorityQueue<Entry>(16, LARGEST_FIRST);
+		List<Entry> frontier = new ArrayList<Entry>();
+		sharedFrontier(rootA, 0, true, frontier);
+		sharedFrontier(rootB, 0, false, frontier);
+		for (Entry e : frontier)
+			offer(e, seenA, seenB, queue);
+		while (!queue.isEmpty()) {
+			Entry e = queue.poll();
+			if (e.done)
+				continue;
+			// a subtree of the other tree that holds this one would be larger,
+			// so it has been unfolded already: this one is in its tree alone
+			e.done = true;
+			seenFor(e, seenA, seenB).get(e.node).remove(e);
+			Node n = e.node;
+			int rank = n.getLeft().size();
+			offer(new Entry(n.getLeft(), e.pos, e.inA), seenA, seenB, queue);
+			offer(new Entry(n.getRight(), e.pos + rank + 1, e.inA), seenA, seenB, queue);
+		}
+		List<Match> matches = new ArrayList<Match>();
+		for (Map.Entry<Node, List<Entry>> inA : seenA.entrySet()) {
+			List<Entry> inB = seenB.get(inA.getKey());
+			if (inB != null && !inB.isEmpty())
+				pair(inA.getValue(), inB, inA.getKey().size(), matches);
+		}
+		return matches;
+	}
+
+	/**
+	 * Collect the highest shared nodes of a tree. A node that is not marked
+	 * shared, and has no shared node above it, is in this tree alone, and so
+	 * is all of it if it is lazy: only shared nodes can be in the other tree.
+	 */
+	private static void sharedFrontier(Node n, int pos, boolean inA, List<Entry> frontier) {
+		if (n == Node.NULL_NODE)
+			return;
+		if (n.isShared()) {
+			frontier.add(new Entry(n, pos, inA));
+			return;
+		}
+		if (LazyNode.isLazy(n))
+			return;
+		sharedFrontier(n.getLeft(), pos, inA, frontier);
+		sharedFrontier(n.getRight(), pos + n.getLeft().size() + 1, inA, frontier);
+	}
+
+	private static Map<Node, List<Entry>> seenFor(Entry e, Map<Node, List<Entry>> seenA,
+			Map<Node, List<Entry>> seenB) {
+		return e.inA ? seenA : seenB;
+	}
+
+	private static void offer(Entry e, Map<Node, List<Entry>> seenA, Map<Node, List<Entry>> seenB,
+			PriorityQueue<Entry> queue) {
+		if (e.node == Node.NULL_NODE)
+			return;
+		Map<Node, List<Entry>> own = seenFor(e, seenA, seenB);
+		List<Entry> same = own.get(e.node);
+		if (same == null) {
+			same = new ArrayList<Entry>(1);
+			own.put(e.node, same);
+		}
+		same.add(e);
+		List<Entry> other = (e.inA ? seenB : seenA).get(e.node);
+		if (other != null && !other.isEmpty()) {
+			// in both trees: none of its places is unfolded
+			e.done = true;
+			for (Entry o : other)
+				o.done = true;
+		} else {
+			queue.add(e);
+		}
+	}
+
+	/**
+	 * Pair up the places of a subtree that is in both trees, several times in
+	 * at least one of them. All pairs are candidates when there are few, the
+	 * ones close in order otherwise; chain() picks among them.
+	 */
+	private static void pair(List<Entry> inA, List<Entry> inB, int length, List<Match> matches) {
+		Comparator<Entry> byPosition = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				return e1.pos < e2.pos ? -1 : e1.pos == e2.pos ? 0 : 1;
+			}
+		};
+		Collections.sort(inA, byPosition);
+		Collections.sort(inB, byPosition);
+		boolean all = (long) inA.size() * inB.size() <= MAX_PAIRS;
+		for (int i = 0; i < inA.size(); i++) {
+			int from = all ? 0 : Math.max(0, i - PAIR_BAND);
+			int to = all ? inB.size() : Math.min(inB.size(), i + PAIR_BAND + 1);
+			for (int j = from; j < to; j++)
+				matches.add(new Match(inA.get(i).pos, inB.get(j).pos, length));
+		}
+	}
+
+	/**
+	 * Keep the heaviest set of matches that are in the same order in both
+	 * trees, with a Fenwick tree of the best chain ending below each position
+	 * in b.
+	 *
+	 * @return the matches kept, by position
+	 */
+	private static List<Match> chain(List<Match> matches) {
+		int k = matches.size();
+		Collections.sort(matches, new Comparator<Match>() {
+			@Override
+			public int compare(Match m1, Match m2) {
+				if (m1.posA != m2.posA)
+					return m1.posA < m2.posA ? -1 : 1;
+				// pairs at one place in a must not chain with each other
+				return m1.posB > m2.posB ? -1 : m1.posB == m2.posB ? 0 : 1;
+			}
+		});
+		int[] positionsB = new int[k];
+		boolean ordered = true;
+		for (int i = 0; i < k; i++) {
+			positionsB[i] = matches.get(i).posB;
+			if (i > 0 && positionsB[i] <= positionsB[i - 1])
+				ordered = false;
+		}
+		if (ordered)
+			return matches;
+		Arrays.sort(positionsB);
+		int distinct = 0;
+		for (int i = 0; i < k; i++)
+			if (distinct == 0 || positionsB[i] != positionsB[distinct - 1])
+				positionsB[distinct++] = positionsB[i];
+		positionsB = Arrays.copyOf(positionsB, distinct);
+		long[] best = new long[k + 1];
+		int[] bestAt = new int[k + 1];
+		Arrays.fill(bestAt, -1);
+		long[] weight = new long[k];
+		int[] previous = new int[k];
+		for (int i = 0; i < k; i++) {
+			Match m = matches.get(i);
+			int rank = Arrays.binarySearch(positionsB, m.posB) + 1;
+			long w = 0;
+			int from = -1;
+			for (int j = rank - 1; j > 0; j -= j & -j) {
+				if (best[j] > w) {
+					w = best[j];
+					from = bestAt[j];
+				}
+			}
+			weight[i] = w + m.length;
+			previous[i] = from;
+			for (int j = rank; j <= k; j += j & -j) {
+				if (weight[i] > best[j]) {
+					best[j] = weight[i];
+					bestAt[j] = i;
+				}
+			}
+		}
+		int last = 0;
+		for (int i = 1; i < k; i++)
+			if (weight[i] > weight[last])
+				last = i;
+		List<Match> kept = new ArrayList<Match>();
+		for (int i = last; i >= 0; i = previous[i])
+			kept.add(matches.get(i));
+		Collections.reverse(kept);
+		return kept;
+	}
+
+	/**
+	 * add the edits that turn a[startA, endA) into b[startB, endB)
+	 */
+	private static void region(EditTree a, int startA, int endA, EditTree b, int startB, int endB, List<Edit> edits) {
+		if (startA == endA && startB == endB)
+			return;
+		if (startA == endA || startB == endB) {
+			edits.add(new Edit(startA, endA - startA, b.get(startB, endB - startB)));
+			return;
+		}
+		String x = a.get(startA, endA - startA);
+		String y = b.get(startB, endB - startB);
+		myers(x, y, startA, edits);
+	}
+
+	/**
+	 * Myers' O((N+M)D) diff, keeping the furthest point of every diagonal for
+	 * each number of differences d so the path can be walked back
+	 *
+	 * @param x
+	 * @param y
+	 * @param offset
+	 *            position of x in the tree
+	 * @param edits
+	 */
+	static void myers(String x, String y, int offset, List<Edit> edits) {
+		int prefix = 0;
+		while (prefix < x.length() && prefix < y.length() && x.charAt(prefix) == y.charAt(prefix))
+			prefix++;
+		int suffix = 0;
+		while (suffix < x.length() - prefix && suffix < y.length() - prefix
+				&& x.charAt(x.length() - 1 - suffix) == y.charAt(y.length() - 1 - suffix))
+			suffix++;
+		x = x.substring(prefix, x.length() - suffix);
+		y = y.substring(prefix, y.length() - suffix);
+		offset += prefix;
+		int n = x.length();
+		int m = y.length();
+		if (n == 0 || m == 0) {
+			if (n + m > 0)
+				edits.add(new Edit(offset, n, y));
+			return;
+		}
+		List<int[]> trace = new ArrayList<int[]>();
+		int[] previous = null;
+		for (int d = 0; d <= Math.min(n + m, MAX_DIFFERENCES); d++) {
+			int[] v = new int[d + 1];
+			for (int k = -d; k <= d; k += 2) {
+				int px = d == 0 ? 0 : step(previous, n, m, d, k);
+				if (px >= 0) {
+					int py = px - k;
+					while (px < n && py < m && x.charAt(px) == y.charAt(py)) {
+						px++;
+						py++;
+					}
+					if (px == n && py == m) {
+						trace.add(v);
+						backtrack(trace, n, m, y, offset, edits);
+						return;
+					}
+				}
+				v[(k + d) / 2] = px;
+			}
+			trace.add(v);
+			previous = v;
+		}
+		edits.add(new Edit(offset, n, y));
+	}
+
+	/**
+	 *
+	 * @return the x where diagonal k starts after d differences, before its
+	 *         snake, or -1 if no path of d differences gets there. It is
+	 *         below the previous x of diagonal k+1 (an insertion) or right of
+	 *         the one of k-1 (a deletion), whichever is further.
+	 */
+	private static int step(int[] previous, int n, int m, int d, int k) {
+		int down = -1;
+		if (k + 1 <= d - 1) {
+			int px = previous[(k + 1 + d - 1) / 2];
+			if (px >= 0 && px - k <= m)
+				down = px;
+		}
+		int right = -1;
+		if (k - 1 >= -(d - 1)) {
+			int px = previous[(k - 1 + d - 1) / 2];
+			if (px >= 0 && px + 1 <= n)
+				right = px + 1;
+		}
+		return Math.max(down, right);
+	}
+
+	private static void backtrack(List<int[]> trace, int n, int m, String y, int offset, List<Edit> edits) {
+		// edits of one character each, from the end of the texts back
+		List<int[]> moves = new ArrayList<int[]>();
+		int x = n;
+		int yPos = m;
+		for (int d = trace.size() - 1; d > 0; d--) {
+			int k = x - yPos;
+			int[] previous = trace.get(d - 1);
+			int start = step(previous, n, m, d, k);
+			boolean down = k + 1 <= d - 1 && previous[(k + 1 + d - 1) / 2] == start;
+			int prevK = down ? k + 1 : k - 1;
+			int px = previous[(prevK + d - 1) / 2];
+			int py = px - prevK;
+			moves.add(new int[] { px, py, down ? 1 : 0 });
+			x = px;
+			yPos = py;
+		}
+		Collections.reverse(moves);
+		int i = 0;
+		while (i < moves.size()) {
+			int startX = moves.get(i)[0];
+			int startY = moves.get(i)[1];
+			int endX = startX;
+			int endY = startY;
+			while (i < moves.size() && moves.get(i)[0] == endX && moves.get(i)[1] == endY) {
+				if (moves.get(i)[2] == 1)
+					endY++;
+				else
+					endX++;
+				i++;
+			}
+			edits.add(new Edit(offset + startX, endX - startX, y.substring(startY, endY)));
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EditTree#diff(EditTree)}
+ * 
+ */
+public class TreeDiffTest {
+
+	private static String randomText(Random r, int n, int letters) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			sb.append((char) ('a' + r.nextInt(letters)));
+		return sb.toString();
+	}
+
+	private static int lcs(String x, String y) {
+		int[][] l = new int[x.length() + 1][y.length() + 1];
+		for (int i = 1; i <= x.length(); i++)
+			for (int j = 1; j <= y.length(); j++)
+				l[i][j] = x.charAt(i - 1) == y.charAt(j - 1) ? l[i - 1][j - 1] + 1 : Math.max(l[i - 1][j], l[i][j - 1]);
+		return l[x.length()][y.length()];
+	}
+
+	private static int cost(List<Edit> edits) {
+		int cost = 0;
+		for (Edit e : edits)
+			cost += e.getDeleteLength() + e.getText().length();
+		return cost;
+	}
+
+	private static void assertDiff(EditTree a, EditTree b) {
+		String expected = b.toString();
+		List<Edit> edits = a.diff(b);
+		EditTree copy = new EditTree(a.toString());
+		copy.applyEdits(edits);
+		assertEquals(expected, copy.toString());
+	}
+
+	private static int realNodes(Node n) {
+		if (n == Node.NULL_NODE || LazyNode.isLazy(n))
+			return 0;
+		return 1 + realNodes(n.getLeft()) + realNodes(n.getRight());
+	}
+
+	@Test
+	public void testUnrelatedTreesMinimal() {
+		Random r = new Random(38);
+		for (int i = 0; i < 300; i++) {
+			String x = randomText(r, r.nextInt(40), 3);
+			String y = randomText(r, r.nextInt(40), 3);
+			EditTree a = new EditTree(x);
+			EditTree b = new EditTree(y);
+			List<Edit> edits = a.diff(b);
+			assertEquals(x.length() + y.length() - 2 * lcs(x, y), cost(edits));
+			assertDiff(a, b);
+		}
+	}
+
+	@Test
+	public void testSameTree() {
+		EditTree a = new EditTree("same");
+		assertTrue(a.diff(a).isEmpty());
+		assertTrue(a.diff(new EditTree("same")).isEmpty());
+	}
+
+	@Test
+	public void testSharedVersions() {
+		Random r = new Random(380);
+		String s = randomText(r, 200000, 26);
+		EditTree a = new EditTree(s);
+		for (int round = 0; round < 20; round++) {
+			EditTree b = new EditTree(a.share(), a.height());
+			for (int i = 0; i < 5; i++) {
+				int pos = r.nextInt(b.length());
+				if (r.nextBoolean())
+					b.insert(pos, "edit");
+				else
+					b.delete(pos, 3);
+			}
+			int before = realNodes(a.getRoot()) + realNodes(b.getRoot());
+			List<Edit> edits = a.diff(b);
+			assertTrue(edits.size() <= 5);
+			assertTrue(cost(edits) <= 5 * 4);
+			// only the nodes around the edits were unfolded
+			assertTrue(realNodes(a.getRoot()) + realNodes(b.getRoot()) - before < 2000);
+			a.applyEdits(edits);
+			assertEquals(b.toString(), a.toString());
+			a = b;
+		}
+	}
+
+	@Test
+	public void testMovedText() {
+		Random r = new Random(3800);
+		for (int i = 0; i < 50; i++) {
+			EditTree a = new EditTree(randomText(r, 5000, 26));
+			EditTree b = new EditTree(a.share(), a.height());
+			EditTree tail = b.split(r.nextInt(5000));
+			tail.concatenate(b);
+			assertDiff(a, tail);
+			assertDiff(tail, a);
+		}
+	}
+
+	@Test
+	public void testInternedDocuments() {
+		Random r = new Random(38000);
+		Interner interner = new Interner();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			sb.append("line ").append(r.nextInt(50)).append('\n');
+		String s = sb.toString();
+		sb.insert(5000, "new line\n").delete(100, 130);
+		EditTree a = new EditTreeBuilder().setInterner(interner).append(s).build();
+		EditTree b = new EditTreeBuilder().setInterner(interner).append(sb).build();
+		assertDiff(a, b);
+		assertTrue(cost(a.diff(b)) < 100);
+	}
+}
@@ -0,0 +1,303 @@
+package editortrees;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import editortrees.EditTree.CharSink;
+import editortrees.Node.Code;
+
+/**
+ * A binary image of an EditTree that loads back into exactly the same tree,
+ * in one sequential pass with no height computation and no rebalancing.
+ *
+ * <pre>
+ * header  long magic, int version, int size, int height, int text format,
+ *         long length of the shape
+ * shape   one byte per node in preorder: bits 0-1 the balance code (ordinal
+ *         of Node.Code), bit 2 has a left child, bit 3 has a right child;
+ *         or, with bit 4 set, one byte and an int size for a whole subtree
+ *         of that size in the balanced shape EditTree(String) builds
+ * text    the characters in order, one byte each (Latin-1) if they are all
+ *         below 256, two bytes each (UTF-16BE) otherwise
+ * </pre>
+ *
+ * read() maps the file and builds every node straight from the mapping: a
+ * node is created once its left subtree is done, taking the next character
+ * of the text, so shape and text are both read front to back. Balanced
+ * subtrees come back as lazy nodes over a compact copy of their text, which
+ * unfold into the same shape when they are edited, so a loaded tree takes
+ * about as much memory as a freshly opened one. Lazily opened parts of a
+ * tree are written as balanced subtrees without being materialized, and so
+ * are small materialized subtrees that happen to have the balanced shape.
+ * Version 1 files, which have no balanced subtrees and no shape length, are
+ * still read.
+ *
+ * @author zhang
+ *
+ */
+public final class TreeSnapshot {
+	private static final long MAGIC = 0x4544545253484150L; // "EDTRSHAP"
+	private static final int VERSION = 2;
+	private static final int HEADER = 32;
+	private static final int HEADER_V1 = 24;
+	private static final int LATIN1 = 1;
+	private static final int UTF16 = 2;
+
+	private static final int HAS_LEFT = 1 << 2;
+	private static final int HAS_RIGHT = 1 << 3;
+	private static final int BALANCED = 1 << 4;
+	/**
+	 * smallest materialized subtree written as a balanced one; below that a
+	 * lazy node and its copy of the text take more memory than the nodes
+	 */
+	private static final int MIN_BALANCED = 16;
+	private static final Code[] CODES = Code.values();
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final ByteBuffer shape;
+	private final ByteBuffer text;
+	private final boolean wide;
+	private final int height;
+
+	private TreeSnapshot(ByteBuffer shape, ByteBuffer text, boolean wide, int height) {
+		this.shape = shape;
+		this.text = text;
+		this.wide = wide;
+		this.height = height;
+	}
+
+	/**
+	 * Write tree to path, replacing what is there.
+	 *
+	 * @param tree
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void write(EditTree tree, Path path) throws IOException {
+		try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			out.position(HEADER);
+			if (tree.getRoot() != Node.NULL_NODE)
+				writeShape(tree.getRoot(), out, buffer);
+			flush(out, buffer);
+			long textStart = out.position();
+			long shapeLength = textStart - HEADER;
+			int format = LATIN1;
+			if (!writeText(tree, out, buffer, false)) {
+				out.truncate(textStart);
+				out.position(textStart);
+				writeText(tree, out, buffer, true);
+				format = UTF16;
+			}
+			buffer.clear();
+			buffer.putLong(MAGIC).putInt(VERSION).putInt(tree.length()).putInt(tree.height()).putInt(format)
+					.putLong(shapeLength);
+			buffer.flip();
+			long position = 0;
+			while (buffer.hasRemaining())
+				position += out.write(buffer, position);
+		}
+	}
+
+	private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	private static void put(FileChannel out, ByteBuffer buffer, int b) throws IOException {
+		if (!buffer.hasRemaining())
+			flush(out, buffer);
+		buffer.put((byte) b);
+	}
+
+	/**
+	 * write the shape of the subtree rooted at n in preorder
+	 */
+	private static void writeShape(Node n, FileChannel out, ByteBuffer buffer) throws IOException {
+		int size = n.size();
+		if ((n instanceof SourceNode && LazyNode.isLazy(n))
+				|| (size >= MIN_BALANCED && size <= EditTree.CHUNK_SIZE && isBalanced(n, size))) {
+			put(out, buffer, SourceNode.balanceFromSize(size).ordinal() | BALANCED);
+			for (int shift = 24; shift >= 0; shift -= 8)
+				put(out, buffer, size >>> shift);
+			return;
+		}
+		Node left = n.getLeft();
+		Node right = n.getRight();
+		put(out, buffer, n.getBalance().ordinal() | (left != Node.NULL_NODE ? HAS_LEFT : 0)
+				| (right != Node.NULL_NODE ? HAS_RIGHT : 0));
+		if (left != Node.NULL_NODE)
+			writeShape(left, out, buffer);
+		if (right != Node.NULL_NODE)
+			writeShape(right, out, buffer);
+	}
+
+	/**
+	 *
+	 * @param n
+	 * @param size
+	 * @return true if the subtree rooted at n has the shape EditTree(String)
+	 *         gives a subtree of size nodes, found without materializing it
+	 */
+	private static boolean isBalanced(Node n, int size) {
+		if (size == 0)
+			return n == Node.NULL_NODE;
+		if (n.size() != size)
+			return false;
+		if (LazyNode.isLazy(n))
+			return n instanceof SourceNode;
+		int leftSize = size / 2;
+		return n.getBalance() == SourceNode.balanceFromSize(size) && isBalanced(n.getLeft(), leftSize)
+				&& isBalanced(n.getRight(), size - leftSize - 1);
+	}
+
+	/**
+	 *
+	 * @return false if wide is false and the text has a character that does
+	 *         not fit in one byte; what was written must be thrown away then
+	 */
+	private static boolean writeText(EditTree tree, final FileChannel out, final ByteBuffer buffer,
+			final boolean wide) throws IOException {
+		final boolean[] narrow = { true };
+		tree.drain(new char[BUFFER_SIZE / 2], new CharSink() {
+			@Override
+			public int write(char[] chars, int length, boolean last) throws IOException {
+				if (!narrow[0])
+					return 0;
+				for (int i = 0; i < length; i++) {
+					char c = chars[i];
+					if (buffer.remaining() < 2)
+						flush(out, buffer);
+					if (wide) {
+						buffer.putChar(c);
+					} else if (c < 256) {
+						buffer.put((byte) c);
+					} else {
+						narrow[0] = false;
+						buffer.clear();
+						return 0;
+					}
+				}
+				if (last)
+					flush(out, buffer);
+				return 0;
+			}
+		});
+		return narrow[0];
+	}
+
+	/**
+	 * Load a tree written by write(). The tree is at a checkpoint.
+	 *
+	 * @param path
+	 * @return the tree, with the same shape and balance codes as the one
+	 *         written
+	 * @throws IOException
+	 *             if the file is not a snapshot or is damaged
+	 */
+	public static EditTree read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize < HEADER)
+				throw new IOException(path + " is not a tree snapshot");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_V1);
+			if (header.getLong() != MAGIC)
+				throw new IOException(path + " is not a tree snapshot");
+			int version = header.getInt();
+			if (version != 1 && version != VERSION)
+				throw new IOException(path + " is not a tree snapshot");
+			int size = header.getInt();
+			int height = header.getInt();
+			int format = header.getInt();
+			int headerSize = HEADER_V1;
+			long shapeLength = size;
+			if (version == VERSION) {
+				if (fileSize < HEADER)
+					throw new IOException(path + " is damaged");
+				headerSize = HEADER;
+				shapeLength = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_V1, HEADER - HEADER_V1).getLong();
+			}
+			long textSize = format == LATIN1 ? size : 2L * size;
+			if (size < 0 || shapeLength < 0 || (format != LATIN1 && format != UTF16)
+					|| fileSize != headerSize + shapeLength + textSize)
+				throw new IOException(path + " is damaged");
+			if (textSize > Integer.MAX_VALUE || shapeLength > Integer.MAX_VALUE)
+				throw new IOException(path + " is too large to be mapped");
+			EditTree tree;
+			if (size == 0) {
+				tree = new EditTree();
+			} else {
+				ByteBuffer shape = channel.map(FileChannel.MapMode.READ_ONLY, headerSize, shapeLength);
+				ByteBuffer text = channel.map(FileChannel.MapMode.READ_ONLY, headerSize + shapeLength, textSize);
+				TreeSnapshot snapshot = new TreeSnapshot(shape, text, format == UTF16, height);
+				Node root;
+				try {
+					root = snapshot.build(0);
+				} catch (IndexOutOfBoundsException e) {
+					throw new IOException(path + " is damaged", e);
+				} catch (BufferUnderflowException e) {
+					throw new IOException(path + " is damaged", e);
+				}
+				if (root.size() != size || shape.hasRemaining())
+					throw new IOException(path + " is damaged");
+				tree = new EditTree(root, height);
+			}
+			tree.checkpoint();
+			return tree;
+		}
+	}
+
+	/**
+	 * build the next subtree of the shape
+	 *
+	 * @param depth
+	 *            of the subtree root, to reject damaged files that are deeper
+	 *            than they claim
+	 * @return its root
+	 * @throws IOException
+	 */
+	private Node build(int depth) throws IOException {
+		if (depth > height)
+			throw new IOException("snapshot is deeper than its height");
+		int header = shape.get();
+		if ((header & BALANCED) != 0)
+			return buildBalanced(depth, shape.getInt());
+		Node left = (header & HAS_LEFT) != 0 ? build(depth + 1) : Node.NULL_NODE;
+		char element = wide ? text.getChar() : (char) (text.get() & 0xff);
+		Node right = (header & HAS_RIGHT) != 0 ? build(depth + 1) : Node.NULL_NODE;
+		return new Node(element, left, right, CODES[header & 3]);
+	}
+
+	/**
+	 * build a balanced subtree of size nodes from the next characters of the
+	 * text
+	 *
+	 * @param depth
+	 * @param size
+	 * @return its lazy root
+	 * @throws IOException
+	 */
+	private Node buildBalanced(int depth, int size) throws IOException {
+		if (size <= 0 || depth + EditTree.balancedHeightFromSize(size) > height
+				|| (wide ? 2L : 1L) * size > text.remaining())
+			throw new IOException("snapshot has a damaged balanced subtree");
+		CompactText run;
+		if (wide) {
+			run = CompactText.of(text.asCharBuffer(), 0, size);
+			text.position(text.position() + 2 * size);
+		} else {
+			byte[] latin1 = new byte[size];
+			text.get(latin1);
+			run = new CompactText(latin1, null);
+		}
+		return SourceNode.create(run, 0, size);
+	}
+}
@@ -0,0 +1,133 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link editortrees.TreeSnapshot}
+ *
+ */
+public class TreeSnapshotTest {
+
+	private static EditTree roundTrip(EditTree t) throws IOException {
+		Path file = Files.createTempFile("snapshot", ".bin");
+		try {
+			TreeSnapshot.write(t, file);
+			return TreeSnapshot.read(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testSameShape() throws IOException {
+		Random r = new Random(33);
+		EditTree t = new EditTree();
+		for (int i = 0; i < 3000; i++) {
+			if (t.length() > 0 && r.nextInt(3) == 0)
+				t.delete(r.nextInt(t.length()));
+			else
+				t.add((char) ('a' + r.nextInt(26)), r.nextInt(t.length() + 1));
+			if (i % 300 == 0) {
+				EditTree copy = roundTrip(t);
+				assertEquals(t.toDebugString(), copy.toDebugString());
+				assertEquals(t.height(), copy.height());
+			}
+		}
+	}
+
+	@Test
+	public void testEmptyAndSingle() throws IOException {
+		assertEquals("", roundTrip(new EditTree()).toString());
+		assertEquals("[a0=]", roundTrip(new EditTree('a')).toDebugString());
+	}
+
+	@Test
+	public void testWideCharacters() throws IOException {
+		EditTree t = new EditTree("caf\u00e9 \u4e2d\u6587 \ud83d\ude00 end");
+		t.add('\u20ac', 3);
+		EditTree copy = roundTrip(t);
+		assertEquals(t.toString(), copy.toString());
+		assertEquals(t.toDebugString(), copy.toDebugString());
+	}
+
+	@Test
+	public void testLazyTreeIsWrittenAsBalanced() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			sb.append((char) ('a' + i % 26));
+		Path file = Files.createTempFile("snapshot", ".txt");
+		Files.write(file, sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		EditTree lazy = EditTree.open(file, StandardCharsets.ISO_8859_1);
+		lazy.add('!', 1234);
+		EditTree eager = new EditTree(sb.toString());
+		eager.add('!', 1234);
+		assertEquals(eager.toDebugString(), roundTrip(lazy).toDebugString());
+		Files.delete(file);
+	}
+
+	@Test
+	public void testDamagedFile() throws IOException {
+		Path file = Files.createTempFile("snapshot", ".bin");
+		TreeSnapshot.write(new EditTree("hello world"), file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 1);
+		}
+		try {
+			TreeSnapshot.read(file);
+			fail("read a damaged snapshot");
+		} catch (IOException e) {
+			// expected
+		}
+		Files.write(file, "not a snapshot at all, just text".getBytes(StandardCharsets.US_ASCII));
+		try {
+			TreeSnapshot.read(file);
+			fail("read a text file");
+		} catch (IOException e) {
+			// expected
+		}
+		Files.delete(file);
+	}
+
+	@Test
+	public void testReloadedTreeStaysLazy() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1 << 20; i++)
+			sb.append((char) ('a' + i % 26));
+		sb.setCharAt(777, '\u4e2d');
+		EditTree t = new EditTree(sb.toString());
+		Random r = new Random(333);
+		for (int i = 0; i < 100; i++)
+			t.add('!', r.nextInt(t.length()));
+		EditTree copy = roundTrip(t);
+		assertEquals(t.toString(), copy.toString());
+		// no more nodes than the tree that was written, about one per chunk
+		int nodes = nodes(copy.getRoot());
+		assertTrue(nodes <= nodes(t.getRoot()));
+		assertTrue(nodes < copy.length() / 32);
+		copy.add('?', 12345);
+		t.add('?', 12345);
+		assertEquals(t.toDebugString(), copy.toDebugString());
+	}
+
+	/**
+	 *
+	 * @return the number of nodes of the subtree that are not lazy
+	 */
+	private static int nodes(Node n) {
+		if (n == Node.NULL_NODE || LazyNode.isLazy(n))
+			return 0;
+		return 1 + nodes(n.getLeft()) + nodes(n.getRight());
+	}
+}
@@ -0,0 +1,169 @@
+package editortrees;
+
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+
+/**
+ * A Spliterator over a range of a version of an EditTree, for
+ * {@link EditTree#chars()} and {@link EditTree#codePoints()}. It splits at
+ * the node of the range whose position is closest to the middle, so the two
+ * halves are subtrees of the version (a lazy node is split in the middle
+ * without being materialized), and its size is always exact. The characters
+ * are read a chunk at a time with one descent per chunk, O(n) in all.
+ *
+ * In code point mode it never splits a surrogate pair and passes each pair
+ * as one code point; its size is then only an estimate.
+ *
+ * @author zhang
+ *
+ */
+final class TreeSpliterator implements Spliterator.OfInt {
+	/**
+	 * number of characters read with one descent
+	 */
+	private static final int CHUNK = 1024;
+	/**
+	 * smallest range that is split further
+	 */
+	private static final int MIN_SPLIT = 4096;
+
+	private final Node root;
+	private final boolean codePoints;
+	private int pos;
+	private final int end;
+
+	private final StringBuilder chunk = new StringBuilder();
+	/**
+	 * position in chunk of the character at pos
+	 */
+	private int next;
+
+	/**
+	 *
+	 * @param root
+	 *            of a version that does not change anymore
+	 * @param start
+	 * @param end
+	 * @param codePoints
+	 *            true to pass code points rather than chars
+	 */
+	TreeSpliterator(Node root, int start, int end, boolean codePoints) {
+		this.root = root;
+		this.pos = start;
+		this.end = end;
+		this.codePoints = codePoints;
+	}
+
+	@Override
+	public OfInt trySplit() {
+		if (next < chunk.length() || end - pos < MIN_SPLIT)
+			return null;
+		int split = boundary();
+		if (codePoints && Character.isLowSurrogate(root.get(split))
+				&& Character.isHighSurrogate(root.get(split - 1)))
+			split++;
+		if (split <= pos || split >= end)
+			return null;
+		TreeSpliterator prefix = new TreeSpliterator(root, pos, split, codePoints);
+		pos = split;
+		return prefix;
+	}
+
+	/**
+	 *
+	 * @return the position inside the range of the node on the way to its
+	 *         middle that is closest to it
+	 */
+	private int boundary() {
+		int middle = (pos + end) >>> 1;
+		int best = -1;
+		int offset = 0;
+		Node n = root;
+		while (n != Node.NULL_NODE) {
+			int at;
+			if (LazyNode.isLazy(n))
+				at = offset + n.size() / 2;
+			else
+				at = offset + n.getRank();
+			if (at > pos && at < end && (best == -1 || Math.abs(at - middle) < Math.abs(best - middle)))
+				best = at;
+			if (at == middle || LazyNode.isLazy(n))
+				break;
+			if (middle < at) {
+				n = n.getLeft();
+			} else {
+				offset = at + 1;
+				n = n.getRight();
+			}
+		}
+		return best == -1 ? middle : best;
+	}
+
+	/**
+	 * make sure there is a character at next, unless the range is done
+	 *
+	 * @return false if the range is done
+	 */
+	private boolean fill() {
+		if (next < chunk.length())
+			return true;
+		if (pos == end)
+			return false;
+		chunk.setLength(0);
+		next = 0;
+		root.get(pos, Math.min(end, pos + CHUNK), chunk);
+		return true;
+	}
+
+	/**
+	 *
+	 * @return the next char or code point
+	 */
+	private int take() {
+		char c = chunk.charAt(next++);
+		pos++;
+		if (codePoints && Character.isHighSurrogate(c) && fill()) {
+			char low = chunk.charAt(next);
+			if (Character.isLowSurrogate(low)) {
+				next++;
+				pos++;
+				return Character.toCodePoint(c, low);
+			}
+		}
+		return c;
+	}
+
+	@Override
+	public boolean tryAdvance(IntConsumer action) {
+		if (!fill())
+			return false;
+		action.accept(take());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(IntConsumer action) {
+		while (fill()) {
+			if (codePoints) {
+				action.accept(take());
+			} else {
+				int n = chunk.length();
+				for (int i = next; i < n; i++)
+					action.accept(chunk.charAt(i));
+				pos += n - next;
+				next = n;
+			}
+		}
+	}
+
+	@Override
+	public long estimateSize() {
+		return end - pos;
+	}
+
+	@Override
+	public int characteristics() {
+		int c = ORDERED | IMMUTABLE | NONNULL;
+		return codePoints ? c : c | SIZED | SUBSIZED;
+	}
+}
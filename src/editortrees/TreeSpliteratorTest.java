@@ -0,0 +1,97 @@
+package editortrees;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EditTree#chars()}, {@link EditTree#codePoints()} and
+ * {@link TreeSpliterator}
+ *
+ */
+public class TreeSpliteratorTest {
+
+	private static EditTree editedTree(int length, boolean surrogates) {
+		Random r = new Random(length);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			if (surrogates && r.nextInt(10) == 0)
+				sb.appendCodePoint(0x1F600 + r.nextInt(50));
+			else
+				sb.append((char) ('a' + r.nextInt(26)));
+		}
+		EditTree t = new EditTree(sb.toString());
+		for (int i = 0; i < 200; i++)
+			t.add(surrogates ? '\u00e9' : 'x', r.nextInt(t.length() + 1));
+		return t;
+	}
+
+	@Test
+	public void testChars() {
+		for (int length : new int[] { 0, 1, 100, 5000, 300000 }) {
+			EditTree t = editedTree(length, false);
+			String s = t.toString();
+			assertArrayEquals(s.chars().toArray(), t.chars().toArray());
+			assertArrayEquals(s.chars().toArray(), t.chars().parallel().toArray());
+			IntPredicate vowel = new IntPredicate() {
+				@Override
+				public boolean test(int c) {
+					return "aeiou".indexOf(c) >= 0;
+				}
+			};
+			assertEquals(s.chars().filter(vowel).count(), t.chars().parallel().filter(vowel).count());
+		}
+	}
+
+	@Test
+	public void testCodePoints() {
+		for (int length : new int[] { 1, 5000, 300000 }) {
+			EditTree t = editedTree(length, true);
+			String s = t.toString();
+			assertArrayEquals(s.codePoints().toArray(), t.codePoints().toArray());
+			assertArrayEquals(s.codePoints().toArray(), t.codePoints().parallel().toArray());
+		}
+	}
+
+	@Test
+	public void testSplitsAreExact() {
+		EditTree t = editedTree(200000, false);
+		final StringBuilder joined = new StringBuilder();
+		List<Spliterator.OfInt> parts = new ArrayList<Spliterator.OfInt>();
+		parts.add(new TreeSpliterator(t.getRoot(), 0, t.length(), false));
+		for (int round = 0; round < 6; round++) {
+			List<Spliterator.OfInt> split = new ArrayList<Spliterator.OfInt>();
+			for (Spliterator.OfInt part : parts) {
+				Spliterator.OfInt prefix = part.trySplit();
+				if (prefix != null)
+					split.add(prefix);
+				split.add(part);
+			}
+			parts = split;
+		}
+		assertTrue(parts.size() > 32);
+		for (Spliterator.OfInt part : parts) {
+			assertTrue(part.hasCharacteristics(Spliterator.SUBSIZED));
+			long size = part.estimateSize();
+			final int[] count = new int[1];
+			part.forEachRemaining(new IntConsumer() {
+				@Override
+				public void accept(int c) {
+					joined.append((char) c);
+					count[0]++;
+				}
+			});
+			assertEquals(size, count[0]);
+		}
+		assertEquals(t.toString(), joined.toString());
+	}
+}
@@ -0,0 +1,159 @@
+package editortrees;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Stack;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * One version of the text of an EditTree, taken in O(1) by
+ * {@link EditTree#snapshot()}. It never changes: the root of the tree is
+ * shared when the version is taken, so later edits copy the paths they change
+ * instead of changing nodes of this version. Any number of threads can read
+ * it without synchronization, e.g. a full text search, an export or a linter
+ * running while the user keeps typing.
+ *
+ * A version keeps the nodes it needs alive, so long living ones cost memory
+ * for everything edited since.
+ *
+ * @author zhang
+ *
+ */
+public final class TreeVersion implements CharSequence, Iterable<Character> {
+	/**
+	 * final, so that the nodes are seen as they were when the version was
+	 * taken by a thread it was handed to without synchronization
+	 */
+	private final Node root;
+
+	TreeVersion(Node root) {
+		this.root = root;
+	}
+
+	Node getRoot() {
+		return root;
+	}
+
+	@Override
+	public int length() {
+		return root.size();
+	}
+
+	@Override
+	public char charAt(int pos) throws IndexOutOfBoundsException {
+		if (pos < 0 || pos >= length())
+			throw new IndexOutOfBoundsException();
+		return root.get(pos);
+	}
+
+	/**
+	 *
+	 * @param pos
+	 * @param length
+	 * @return the text from pos of that length
+	 * @throws IndexOutOfBoundsException
+	 */
+	public String get(int pos, int length) throws IndexOutOfBoundsException {
+		if (pos < 0 || length < 0 || pos + length > length())
+			throw new IndexOutOfBoundsException();
+		StringBuilder sb = new StringBuilder(length);
+		root.get(pos, pos + length, sb);
+		return sb.toString();
+	}
+
+	@Override
+	public String subSequence(int start, int end) {
+		return get(start, end - start);
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @return position of the first occurrence of s, -1 if there is none
+	 */
+	public int find(String s) {
+		return find(s, 0);
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @param pos
+	 * @return position of the first occurrence of s that does not start before
+	 *         pos, -1 if there is none
+	 */
+	public int find(String s, int pos) {
+		if (s.length() == 0)
+			return pos;
+		int l = root.find(s, pos, new LinkedList<Integer>());
+		if (l == -1)
+			return -1;
+		return l - s.length() + 1;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(length());
+		root.get(0, length(), sb);
+		return sb.toString();
+	}
+
+	/**
+	 * The characters of this version, in a stream that splits along subtrees
+	 * for parallel use and reads the characters in O(n).
+	 */
+	@Override
+	public IntStream chars() {
+		return StreamSupport.intStream(new TreeSpliterator(root, 0, length(), false), false);
+	}
+
+	/**
+	 * Same as chars(), with surrogate pairs combined into one code point
+	 */
+	@Override
+	public IntStream codePoints() {
+		return StreamSupport.intStream(new TreeSpliterator(root, 0, length(), true), false);
+	}
+
+	@Override
+	public Iterator<Character> iterator() {
+		return new InOrderIterator();
+	}
+
+	private class InOrderIterator implements Iterator<Character> {
+		private Stack<Node> stack;
+
+		public InOrderIterator() {
+			stack = new Stack<Node>();
+			advance(root);
+		}
+
+		private void advance(Node current) {
+			while (current != Node.NULL_NODE) {
+				stack.push(current);
+				current = current.getLeft();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !stack.isEmpty();
+		}
+
+		@Override
+		public Character next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Node current = stack.pop();
+			advance(current.getRight());
+			return current.getElement();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EditTree#snapshot()}
+ *
+ */
+public class TreeVersionTest {
+
+	@Test
+	public void testSnapshotsNeverChange() {
+		Random r = new Random(43);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			sb.append((char) ('a' + r.nextInt(26)));
+		EditTree t = new EditTree(sb.toString());
+		List<TreeVersion> versions = new ArrayList<TreeVersion>();
+		List<String> texts = new ArrayList<String>();
+		for (int round = 0; round < 300; round++) {
+			if (round % 10 == 0) {
+				versions.add(t.snapshot());
+				texts.add(t.toString());
+			}
+			int pos = r.nextInt(t.length());
+			switch (r.nextInt(5)) {
+			case 0:
+				t.add('#', pos);
+				break;
+			case 1:
+				t.insert(pos, "inserted");
+				break;
+			case 2:
+				t.delete(pos, Math.min(r.nextInt(100), t.length() - pos - 1));
+				break;
+			case 3:
+				EditTree tail = t.split(pos);
+				tail.add('|', 0);
+				t.concatenate(tail);
+				break;
+			default:
+				List<Edit> edits = new ArrayList<Edit>();
+				edits.add(Edit.insert(pos / 2, "AB"));
+				edits.add(Edit.delete(pos, Math.min(3, t.length() - pos)));
+				t.applyEdits(edits);
+			}
+		}
+		for (int i = 0; i < versions.size(); i++) {
+			TreeVersion v = versions.get(i);
+			String text = texts.get(i);
+			assertEquals(text, v.toString());
+			assertEquals(text.length(), v.length());
+			assertEquals(text.charAt(text.length() / 3), v.charAt(text.length() / 3));
+			assertEquals(text.substring(100, 200), v.subSequence(100, 200));
+			String word = text.substring(text.length() / 2, text.length() / 2 + 4);
+			assertEquals(text.indexOf(word, 100), v.find(word, 100));
+		}
+	}
+
+	@Test
+	public void testIterateWhileEditing() {
+		EditTree t = new EditTree("abcdef");
+		StringBuilder seen = new StringBuilder();
+		Iterator<Character> it = t.iterator();
+		seen.append(it.next());
+		t.add('x', 1);
+		t.delete(3);
+		while (it.hasNext())
+			seen.append(it.next());
+		assertEquals("abcdef", seen.toString());
+		assertEquals("axbdef", t.toString());
+	}
+
+	@Test
+	public void testWriteWhileEditing() throws Exception {
+		final EditTree t = new EditTree("0123456789");
+		StringWriter out = new StringWriter() {
+			@Override
+			public void write(char[] chars, int offset, int length) {
+				t.insert(0, "edit");
+				super.write(chars, offset, length);
+			}
+		};
+		t.writeTo(out);
+		assertEquals("0123456789", out.toString());
+		assertEquals("edit0123456789", t.toString());
+	}
+
+	@Test
+	public void testReadFromAnotherThread() throws InterruptedException {
+		final EditTree t = new EditTree();
+		for (int i = 0; i < 2000; i++)
+			t.insert(t.length(), i + ",");
+		final TreeVersion v = t.snapshot();
+		final String expected = t.toString();
+		final String[] read = new String[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				StringBuilder sb = new StringBuilder();
+				for (char c : v)
+					sb.append(c);
+				read[0] = sb.toString();
+			}
+		};
+		reader.start();
+		Random r = new Random(43);
+		for (int i = 0; i < 2000; i++)
+			t.delete(r.nextInt(t.length() - 1));
+		reader.join();
+		assertEquals(expected, read[0]);
+	}
+}
@@ -0,0 +1,313 @@
+package editortrees;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Undo and redo for one EditTree, by keeping whole versions of the tree
+ * rather than the inverse of every edit.
+ *
+ * After every edit (or every transaction, see beginTransaction()) the root
+ * of the tree is kept and marked shared, so later edits copy the O(log n)
+ * nodes on the paths they change and leave the kept version alone. Undo and
+ * redo just put an older or newer root back into the tree, in O(1) however
+ * much the step changed; listeners such as an {@link EditLog} see that as
+ * one replacement of the range that differs.
+ *
+ * Each step is charged the nodes that were new in it, and when the history
+ * takes more than the memory budget the oldest steps are dropped. The last
+ * step is always kept.
+ *
+ * @author zhang
+ *
+ */
+public class UndoManager implements EditListener {
+	/**
+	 * bytes of history kept by default
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 16 << 20;
+
+	/**
+	 * estimated heap taken by a node, and by a lazy node without its text
+	 */
+	private static final int NODE_BYTES = 32;
+	private static final int LAZY_BYTES = 96;
+
+	/**
+	 * one undoable change: the versions before and after it, and the range
+	 * where they differ
+	 */
+	private static class Step {
+		final Node before;
+		final int beforeHeight;
+		final Node after;
+		final int afterHeight;
+		final int start;
+		final int beforeEnd;
+		final int afterEnd;
+		final long bytes;
+
+		Step(Node before, int beforeHeight, Node after, int afterHeight, int start, int beforeEnd, int afterEnd,
+				long bytes) {
+			this.before = before;
+			this.beforeHeight = beforeHeight;
+			this.after = after;
+			this.afterHeight = afterHeight;
+			this.start = start;
+			this.beforeEnd = beforeEnd;
+			this.afterEnd = afterEnd;
+			this.bytes = bytes;
+		}
+	}
+
+	private final EditTree tree;
+	private final Deque<Step> undo = new ArrayDeque<Step>();
+	private final Deque<Step> redo = new ArrayDeque<Step>();
+	private long budget;
+	private long used;
+
+	/**
+	 * the version the next step starts from
+	 */
+	private Node base;
+	private int baseHeight;
+	private int baseLength;
+
+	/**
+	 * what changed since base: everything before start and the last tail
+	 * characters are the same as in base
+	 */
+	private int start;
+	private int tail;
+	private int length;
+
+	private int transactions;
+	private boolean restoring;
+
+	/**
+	 *
+	 * @param tree
+	 *            the tree whose edits can be undone from now on
+	 */
+	public UndoManager(EditTree tree) {
+		this(tree, DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 *
+	 * @param tree
+	 *            the tree whose edits can be undone from now on
+	 * @param budget
+	 *            bytes of history to keep at most
+	 */
+	public UndoManager(EditTree tree, long budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException();
+		this.tree = tree;
+		this.budget = budget;
+		rebase();
+		tree.addEditListener(this);
+	}
+
+	/**
+	 * start a new step at the version the tree is at now
+	 */
+	private void rebase() {
+		base = tree.share();
+		baseHeight = tree.height();
+		baseLength = tree.length();
+		length = baseLength;
+		start = Integer.MAX_VALUE;
+		tail = baseLength;
+	}
+
+	/**
+	 * Make the edits up to the matching endTransaction() one step, that is
+	 * undone and redone as a whole. Transactions may be nested.
+	 */
+	public void beginTransaction() {
+		transactions++;
+	}
+
+	/**
+	 * end a transaction started by beginTransaction()
+	 *
+	 * @throws IllegalStateException
+	 *             if there is no transaction
+	 */
+	public void endTransaction() throws IllegalStateException {
+		if (transactions == 0)
+			throw new IllegalStateException("no transaction");
+		if (--transactions == 0)
+			commit();
+	}
+
+	@Override
+	public void inserted(EditTree tree, int pos, int length) {
+		if (restoring || tree != this.tree)
+			return;
+		this.length += length;
+		start = Math.min(start, pos);
+		tail = Math.min(tail, this.length - pos - length);
+	}
+
+	@Override
+	public void deleted(EditTree tree, int pos, int length) {
+		if (restoring || tree != this.tree)
+			return;
+		this.length -= length;
+		start = Math.min(start, pos);
+		tail = Math.min(tail, this.length - pos);
+	}
+
+	@Override
+	public void done(EditTree tree) {
+		if (!restoring && tree == this.tree && transactions == 0)
+			commit();
+	}
+
+	/**
+	 * turn the changes since base into a step
+	 */
+	private void commit() {
+		if (start == Integer.MAX_VALUE)
+			return;
+		long bytes = freshBytes(tree.getRoot());
+		Step step = new Step(base, baseHeight, tree.getRoot(), tree.height(), start, baseLength - tail,
+				length - tail, bytes);
+		rebase();
+		for (Step s : redo)
+			used -= s.bytes;
+		redo.clear();
+		undo.addLast(step);
+		used += step.bytes;
+		while (used > budget && undo.size() > 1)
+			used -= undo.removeFirst().bytes;
+	}
+
+	/**
+	 *
+	 * @return estimated bytes taken by the nodes below n that no kept version
+	 *         has, which are the ones not marked shared
+	 */
+	private static long freshBytes(Node n) {
+		if (n == Node.NULL_NODE || n.isShared())
+			return 0;
+		if (LazyNode.isLazy(n))
+			return LAZY_BYTES + n.size();
+		return NODE_BYTES + freshBytes(n.getLeft()) + freshBytes(n.getRight());
+	}
+
+	/**
+	 *
+	 * @return true if there is a step to undo
+	 */
+	public boolean canUndo() {
+		return !undo.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return true if there is a step to redo
+	 */
+	public boolean canRedo() {
+		return !redo.isEmpty();
+	}
+
+	/**
+	 * put the tree back to the version before the last step
+	 *
+	 * @throws IllegalStateException
+	 *             if there is nothing to undo or a transaction is open
+	 */
+	public void undo() throws IllegalStateException {
+		if (transactions > 0)
+			throw new IllegalStateException("transaction open");
+		if (undo.isEmpty())
+			throw new IllegalStateException("nothing to undo");
+		Step step = undo.removeLast();
+		restore(step.before, step.beforeHeight, step.start, step.afterEnd - step.start, step.beforeEnd - step.start);
+		redo.addLast(step);
+	}
+
+	/**
+	 * put the tree forward to the version after the last step undone
+	 *
+	 * @throws IllegalStateException
+	 *             if there is nothing to redo or a transaction is open
+	 */
+	public void redo() throws IllegalStateException {
+		if (transactions > 0)
+			throw new IllegalStateException("transaction open");
+		if (redo.isEmpty())
+			throw new IllegalStateException("nothing to redo");
+		Step step = redo.removeLast();
+		restore(step.after, step.afterHeight, step.start, step.beforeEnd - step.start, step.afterEnd - step.start);
+		undo.addLast(step);
+	}
+
+	private void restore(Node version, int height, int from, int removed, int inserted) {
+		restoring = true;
+		try {
+			tree.restore(version, height, from, removed, inserted);
+		} finally {
+			restoring = false;
+		}
+		rebase();
+	}
+
+	/**
+	 * stop following the edits of the tree, and forget the history
+	 */
+	public void dispose() {
+		tree.removeEditListener(this);
+		undo.clear();
+		redo.clear();
+		used = 0;
+	}
+
+	/**
+	 *
+	 * @return number of steps that can be undone
+	 */
+	public int getUndoCount() {
+		return undo.size();
+	}
+
+	/**
+	 *
+	 * @return number of steps that can be redone
+	 */
+	public int getRedoCount() {
+		return redo.size();
+	}
+
+	/**
+	 *
+	 * @return estimated bytes taken by the history
+	 */
+	public long getMemoryUsed() {
+		return used;
+	}
+
+	/**
+	 *
+	 * @return bytes of history to keep at most
+	 */
+	public long getMemoryBudget() {
+		return budget;
+	}
+
+	/**
+	 * change the budget, dropping the oldest steps if the history is larger
+	 *
+	 * @param budget
+	 */
+	public void setMemoryBudget(long budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException();
+		this.budget = budget;
+		while (used > budget && undo.size() > 1)
+			used -= undo.removeFirst().bytes;
+	}
+}
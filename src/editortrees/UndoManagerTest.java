@@ -0,0 +1,163 @@
+package editortrees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link UndoManager}
+ * 
+ */
+public class UndoManagerTest {
+
+	private static void randomEdit(Random r, EditTree t) {
+		int pos = r.nextInt(t.length() + 1);
+		switch (r.nextInt(4)) {
+		case 0:
+			t.add((char) ('a' + r.nextInt(26)), pos);
+			break;
+		case 1:
+			if (pos < t.length())
+				t.delete(pos);
+			break;
+		case 2:
+			t.insert(pos, "xyz");
+			break;
+		default:
+			if (pos < t.length())
+				t.delete(pos, Math.min(r.nextInt(20), t.length() - pos - 1));
+		}
+	}
+
+	@Test
+	public void testUndoRedoAll() {
+		Random r = new Random(37);
+		EditTree t = new EditTree("the quick brown fox jumps over the lazy dog");
+		UndoManager undo = new UndoManager(t);
+		List<String> versions = new ArrayList<String>();
+		versions.add(t.toString());
+		for (int i = 0; i < 300; i++) {
+			randomEdit(r, t);
+			if (!t.toString().equals(versions.get(versions.size() - 1)))
+				versions.add(t.toString());
+		}
+		assertEquals(versions.size() - 1, undo.getUndoCount());
+		for (int i = versions.size() - 2; i >= 0; i--) {
+			undo.undo();
+			assertEquals(versions.get(i), t.toString());
+			t.check();
+		}
+		assertFalse(undo.canUndo());
+		for (int i = 1; i < versions.size(); i++) {
+			undo.redo();
+			assertEquals(versions.get(i), t.toString());
+		}
+		assertFalse(undo.canRedo());
+	}
+
+	@Test
+	public void testEditAfterUndoDropsRedo() {
+		EditTree t = new EditTree("abc");
+		UndoManager undo = new UndoManager(t);
+		t.add('d');
+		t.add('e');
+		undo.undo();
+		assertEquals("abcd", t.toString());
+		assertTrue(undo.canRedo());
+		t.add('x', 0);
+		assertFalse(undo.canRedo());
+		undo.undo();
+		assertEquals("abcd", t.toString());
+		undo.undo();
+		assertEquals("abc", t.toString());
+	}
+
+	@Test
+	public void testTransaction() {
+		EditTree t = new EditTree("hello");
+		UndoManager undo = new UndoManager(t);
+		undo.beginTransaction();
+		for (char c : " world".toCharArray())
+			t.add(c);
+		undo.beginTransaction();
+		t.delete(0);
+		undo.endTransaction();
+		undo.endTransaction();
+		assertEquals("ello world", t.toString());
+		assertEquals(1, undo.getUndoCount());
+		undo.undo();
+		assertEquals("hello", t.toString());
+		undo.redo();
+		assertEquals("ello world", t.toString());
+	}
+
+	@Test
+	public void testListenersSeeReplacement() {
+		Random r = new Random(370);
+		final EditTree t = new EditTree("0123456789abcdefghij");
+		UndoManager undo = new UndoManager(t);
+		final StringBuilder mirror = new StringBuilder(t.toString());
+		t.addEditListener(new EditListener() {
+			public void inserted(EditTree tree, int pos, int length) {
+				mirror.insert(pos, tree.get(pos, length));
+			}
+
+			public void deleted(EditTree tree, int pos, int length) {
+				mirror.delete(pos, pos + length);
+			}
+
+			public void done(EditTree tree) {
+			}
+		});
+		for (int i = 0; i < 200; i++) {
+			if (r.nextInt(3) == 0 && undo.canUndo())
+				undo.undo();
+			else if (r.nextInt(3) == 0 && undo.canRedo())
+				undo.redo();
+			else
+				randomEdit(r, t);
+			assertEquals(t.toString(), mirror.toString());
+		}
+	}
+
+	@Test
+	public void testCheckpointAfterUndo() {
+		EditTree t = new EditTree("abcdefghijklmnopqrstuvwxyz");
+		UndoManager undo = new UndoManager(t);
+		t.insert(3, "123");
+		t.checkpoint();
+		undo.undo();
+		Edit e = t.changesSinceCheckpoint();
+		StringBuilder sb = new StringBuilder("abc123defghijklmnopqrstuvwxyz");
+		sb.replace(e.getPosition(), e.getEnd(), e.getText());
+		assertEquals(t.toString(), sb.toString());
+	}
+
+	@Test
+	public void testMemoryBudget() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+			sb.append((char) ('a' + i % 26));
+		EditTree t = new EditTree(sb.toString());
+		UndoManager undo = new UndoManager(t, 20000);
+		for (int i = 0; i < 1000; i++)
+			t.add('x', i * 97);
+		assertTrue(undo.getMemoryUsed() <= 20000);
+		assertTrue(undo.getUndoCount() > 10);
+		assertTrue(undo.getUndoCount() < 1000);
+		int steps = undo.getUndoCount();
+		while (undo.canUndo())
+			undo.undo();
+		assertEquals(1000 - steps, t.length() - 100000);
+		while (undo.canRedo())
+			undo.redo();
+		undo.setMemoryBudget(0);
+		assertEquals(1, undo.getUndoCount());
+	}
+}